@@ -0,0 +1,19 @@
+package Bench;
+
+/**
+ * Runs the JMH benchmarks of this module; the arguments are those of the JMH command
+ * line, e.g. a name filter and {@code -prof gc}:
+ * <pre>
+ *   java -cp &lt;module classpath&gt; Bench.BenchmarkMain HlaCodec -prof gc
+ * </pre>
+ * The benchmark code is generated by the JMH annotation processor when the module is
+ * compiled (see the "jmh" profile in .idea/compiler.xml). The codec benchmarks need
+ * portico.jar, like the federates.
+ */
+public class BenchmarkMain
+{
+	public static void main( String[] args ) throws Exception
+	{
+		org.openjdk.jmh.Main.main( args );
+	}
+}
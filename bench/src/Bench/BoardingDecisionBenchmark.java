@@ -0,0 +1,58 @@
+package Bench;
+
+import Config.Config;
+import Model.BoardingDecision;
+import Model.RandomStreams;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The boarding decision the Prom makes at every station (PromFederate.boardPassengersOrCars),
+ * over a spread of queue states so the branches are not perfectly predicted.
+ */
+@State( Scope.Thread )
+@BenchmarkMode( Mode.AverageTime )
+@OutputTimeUnit( TimeUnit.NANOSECONDS )
+@Warmup( iterations = 5, time = 1 )
+@Measurement( iterations = 5, time = 1 )
+@Fork( 1 )
+public class BoardingDecisionBenchmark
+{
+	//----------------------------------------------------------
+	//                    STATIC VARIABLES
+	//----------------------------------------------------------
+	private static final int STATES = 1024;
+
+	//----------------------------------------------------------
+	//                   INSTANCE VARIABLES
+	//----------------------------------------------------------
+	private final int[] people = new int[STATES];
+	private final int[] cars = new int[STATES];
+	private SplittableRandom random;
+	private int next;
+
+	//----------------------------------------------------------
+	//                    INSTANCE METHODS
+	//----------------------------------------------------------
+	@Setup
+	public void setup()
+	{
+		SplittableRandom states = new SplittableRandom( 42 );
+		for( int i = 0; i < STATES; i++ )
+		{
+			people[i] = states.nextInt( Config.MAKS_LACZNA_POJEMNOSC_STACJI + 1 );
+			cars[i] = states.nextInt( 6 );
+		}
+		random = RandomStreams.ferryStream( 42, 0 );
+	}
+
+	@Benchmark
+	public BoardingDecision decide()
+	{
+		int i = next;
+		next = (i + 1) & (STATES - 1);
+		return BoardingDecision.decide( people[i], cars[i], Config.POJEMNOSC_OSOB_PROMU, random );
+	}
+}
@@ -0,0 +1,69 @@
+package Bench;
+
+import Config.Config;
+import Model.FerrySimulation;
+import Model.ParallelExperimentRunner;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Whole multi-experiment runs of the discrete-event model, in process: the same steps
+ * the federation goes through per experiment, without the RTI round trips. The time of
+ * real federation runs is recorded by the Manager as experiment.wallclock (see
+ * -Dferry.metrics).
+ */
+@State( Scope.Benchmark )
+@BenchmarkMode( Mode.AverageTime )
+@OutputTimeUnit( TimeUnit.MICROSECONDS )
+@Warmup( iterations = 5, time = 1 )
+@Measurement( iterations = 5, time = 1 )
+@Fork( 1 )
+public class FerrySimulationBenchmark
+{
+	//----------------------------------------------------------
+	//                   INSTANCE VARIABLES
+	//----------------------------------------------------------
+	@Param( {"3", "100"} )
+	public int liczbaStacji;
+
+	@Param( {"1", "3"} )
+	public int liczbaPromow;
+
+	private FerrySimulation simulation;
+	private ParallelExperimentRunner runner;
+	private long seed;
+
+	//----------------------------------------------------------
+	//                    INSTANCE METHODS
+	//----------------------------------------------------------
+	@Setup
+	public void setup()
+	{
+		simulation = new FerrySimulation( liczbaStacji, liczbaPromow, Config.POJEMNOSC_OSOB_PROMU,
+		                                  Config.MAKS_LACZNA_POJEMNOSC_STACJI, Config.CAR_PROBABILITY );
+		runner = new ParallelExperimentRunner();
+	}
+
+	@TearDown
+	public void tearDown()
+	{
+		runner.shutdown();
+	}
+
+	/** One experiment plan of Config.LICZBA_EKSPERYMENTOW experiments, like one Manager run */
+	@Benchmark
+	public int[] runExperiments()
+	{
+		return simulation.runExperiments( Config.LICZBA_EKSPERYMENTOW, seed++ );
+	}
+
+	/** A thousand experiments spread over all cores */
+	@Benchmark
+	@OutputTimeUnit( TimeUnit.MILLISECONDS )
+	public int[] runParallel()
+	{
+		return runner.run( liczbaStacji, liczbaPromow, Config.POJEMNOSC_OSOB_PROMU,
+		                   Config.MAKS_LACZNA_POJEMNOSC_STACJI, Config.CAR_PROBABILITY, 1000, seed++ );
+	}
+}
@@ -0,0 +1,129 @@
+package Bench;
+
+import Common.HlaCodec;
+import hla.rti1516e.RtiFactoryFactory;
+import hla.rti1516e.encoding.EncoderFactory;
+import hla.rti1516e.encoding.HLAinteger32BE;
+import hla.rti1516e.encoding.HLAunicodeString;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Encoding and decoding of the Stacja and Prom attributes, as done on every update
+ * and reflect. Each HlaCodec benchmark has a counterpart using the Portico
+ * EncoderFactory elements, which is what the federates did before HlaCodec existed.
+ */
+@State( Scope.Thread )
+@BenchmarkMode( Mode.AverageTime )
+@OutputTimeUnit( TimeUnit.NANOSECONDS )
+@Warmup( iterations = 5, time = 1 )
+@Measurement( iterations = 5, time = 1 )
+@Fork( 1 )
+public class HlaCodecBenchmark
+{
+	//----------------------------------------------------------
+	//                   INSTANCE VARIABLES
+	//----------------------------------------------------------
+	// within the shared cache of HlaCodec, and beyond it
+	@Param( {"42", "100000"} )
+	public int people;
+
+	private EncoderFactory encoderFactory;
+	private HLAinteger32BE int32Decoder;
+	private HLAunicodeString promIdDecoder;
+
+	private byte[] encodedStationId;
+	private byte[] encodedPeople;
+	private byte[] encodedCars;
+	private byte[] encodedPromId;
+
+	//----------------------------------------------------------
+	//                    INSTANCE METHODS
+	//----------------------------------------------------------
+	@Setup
+	public void setup() throws Exception
+	{
+		encoderFactory = RtiFactoryFactory.getRtiFactory().getEncoderFactory();
+		int32Decoder = encoderFactory.createHLAinteger32BE();
+		promIdDecoder = encoderFactory.createHLAunicodeString();
+
+		encodedStationId = HlaCodec.encodeInt32( 7 );
+		encodedPeople = HlaCodec.encodeInt32( people );
+		encodedCars = HlaCodec.encodeInt32( 3 );
+		encodedPromId = encoderFactory.createHLAunicodeString( "Prom1" ).toByteArray();
+	}
+
+	/** The three attributes of a full Stacja update */
+	@Benchmark
+	public void encodeStation( Blackhole bh )
+	{
+		bh.consume( HlaCodec.encodeInt32(7) );
+		bh.consume( HlaCodec.encodeInt32(people) );
+		bh.consume( HlaCodec.encodeInt32(3) );
+	}
+
+	@Benchmark
+	public void encodeStationEncoderFactory( Blackhole bh ) throws Exception
+	{
+		bh.consume( encoderFactory.createHLAinteger32BE(7).toByteArray() );
+		bh.consume( encoderFactory.createHLAinteger32BE(people).toByteArray() );
+		bh.consume( encoderFactory.createHLAinteger32BE(3).toByteArray() );
+	}
+
+	/** What the Prom reads from every Stacja reflect */
+	@Benchmark
+	public int decodeStation() throws Exception
+	{
+		return HlaCodec.decodeInt32( encodedStationId ) + HlaCodec.decodeInt32( encodedPeople ) +
+		       HlaCodec.decodeInt32( encodedCars );
+	}
+
+	@Benchmark
+	public int decodeStationEncoderFactory() throws Exception
+	{
+		int sum = 0;
+		for( byte[] bytes : new byte[][]{ encodedStationId, encodedPeople, encodedCars } )
+		{
+			HLAinteger32BE value = encoderFactory.createHLAinteger32BE();
+			value.decode( bytes );
+			sum += value.getValue();
+		}
+		return sum;
+	}
+
+	/** The Prom update after a boarding decision: id is encoded once, the rest per update */
+	@Benchmark
+	public void encodeProm( Blackhole bh )
+	{
+		bh.consume( encodedPromId );
+		bh.consume( HlaCodec.encodeInt32(7) );
+		bh.consume( HlaCodec.encodeInt32(2) );
+		bh.consume( HlaCodec.encodeInt32(people) );
+		bh.consume( HlaCodec.encodeInt32(0) );
+	}
+
+	/** IdentyfikatorPromu of every ZaladunekRozpoczety/Zakonczony, with the decoder reused */
+	@Benchmark
+	public String decodePromId() throws Exception
+	{
+		promIdDecoder.decode( encodedPromId );
+		return promIdDecoder.getValue();
+	}
+
+	@Benchmark
+	public String decodePromIdNewDecoder() throws Exception
+	{
+		HLAunicodeString decoder = encoderFactory.createHLAunicodeString();
+		decoder.decode( encodedPromId );
+		return decoder.getValue();
+	}
+
+	@Benchmark
+	public int decodeInt32Reused() throws Exception
+	{
+		int32Decoder.decode( encodedPeople );
+		return int32Decoder.getValue();
+	}
+}
@@ -0,0 +1,70 @@
+package Bench;
+
+import Config.Config;
+import Model.RandomStreams;
+import Model.StationQueues;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The queue work of StacjaFederate: filling every station at the start of an experiment,
+ * and unloading what a ferry took when ZaladunekZakonczony arrives.
+ */
+@State( Scope.Thread )
+@BenchmarkMode( Mode.AverageTime )
+@OutputTimeUnit( TimeUnit.MICROSECONDS )
+@Warmup( iterations = 5, time = 1 )
+@Measurement( iterations = 5, time = 1 )
+@Fork( 1 )
+public class StationQueuesBenchmark
+{
+	//----------------------------------------------------------
+	//                   INSTANCE VARIABLES
+	//----------------------------------------------------------
+	@Param( {"3", "1000", "100000"} )
+	public int liczbaStacji;
+
+	private StationQueues queues;
+	private SplittableRandom[] stationRandom;
+	private int station;
+
+	//----------------------------------------------------------
+	//                    INSTANCE METHODS
+	//----------------------------------------------------------
+	@Setup( Level.Iteration )
+	public void setup()
+	{
+		queues = new StationQueues( liczbaStacji );
+		stationRandom = new SplittableRandom[liczbaStacji];
+		for( int i = 0; i < liczbaStacji; i++ )
+			stationRandom[i] = RandomStreams.stationStream( 42, i );
+	}
+
+	/** Start of an experiment: clear and fill every station */
+	@Benchmark
+	public boolean fillAll()
+	{
+		queues.clear();
+		for( int i = 0; i < liczbaStacji; i++ )
+			queues.fill( i, Config.MAKS_LACZNA_POJEMNOSC_STACJI, Config.CAR_PROBABILITY, stationRandom[i] );
+		return queues.isEmpty();
+	}
+
+	/** One boarding completed: unload a ferry load at the next station, refilling it when empty */
+	@Benchmark
+	@OutputTimeUnit( TimeUnit.NANOSECONDS )
+	public boolean unload()
+	{
+		station = station + 1 < liczbaStacji ? station + 1 : 0;
+		if( queues.isEmpty(station) )
+			queues.fill( station, Config.MAKS_LACZNA_POJEMNOSC_STACJI, Config.CAR_PROBABILITY, stationRandom[station] );
+
+		if( queues.cars(station) > 0 )
+			queues.removeCars( station, 1 );
+		else
+			queues.removePeople( station, Config.POJEMNOSC_OSOB_PROMU );
+		return queues.isEmpty();
+	}
+}
@@ -0,0 +1,53 @@
+package Common;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Hand-off between the RTI callback thread(s) and the simulation thread when a
+ * federate is connected with HLA_IMMEDIATE. Ambassador callbacks decode what they
+ * received and {@link #post(Runnable)} the state change; the simulation thread runs
+ * the posted events in arrival order from {@link #awaitAndDrain(long)}, so federate
+ * state is still only touched by one thread. Posting never blocks and the waiting
+ * simulation thread is woken up straight away.
+ */
+public final class CallbackQueue
+{
+	private final ConcurrentLinkedQueue<Runnable> events = new ConcurrentLinkedQueue<>();
+	private volatile Thread consumer;
+
+	/** Called from the RTI callback thread */
+	public void post( Runnable event )
+	{
+		events.offer( event );
+		Thread waiting = consumer;
+		if( waiting != null )
+			LockSupport.unpark( waiting );
+	}
+
+	/**
+	 * Called from the simulation thread: waits up to the given time for at least one
+	 * event and then runs everything queued so far. Returns the number of events run.
+	 */
+	public int awaitAndDrain( long timeoutMillis )
+	{
+		if( events.isEmpty() )
+		{
+			consumer = Thread.currentThread();
+			// re-check after publishing ourselves, or a post in between would be missed
+			if( events.isEmpty() )
+				LockSupport.parkNanos( this, TimeUnit.MILLISECONDS.toNanos(timeoutMillis) );
+			consumer = null;
+		}
+
+		int count = 0;
+		Runnable event;
+		while( (event = events.poll()) != null )
+		{
+			event.run();
+			count++;
+		}
+		return count;
+	}
+}
@@ -0,0 +1,101 @@
+package Common;
+
+import hla.rti1516e.encoding.DecoderException;
+
+/**
+ * Encoding of the HLAinteger32BE values that make up almost every attribute and
+ * parameter in the FOM (station ids, entity types, counts), plus the few HLAinteger64BE
+ * and HLAfloat64BE parameters of the start interaction, without the encoder objects of
+ * the RTI. Every call returns a new array owned by the caller: arrays handed to the RTI
+ * are not shared, so nothing the RTI or a caller does to one can leak into another message.
+ */
+public final class HlaCodec
+{
+	//----------------------------------------------------------
+	//                      CONSTRUCTORS
+	//----------------------------------------------------------
+	private HlaCodec()
+	{
+	}
+
+	//----------------------------------------------------------
+	//                     STATIC METHODS
+	//----------------------------------------------------------
+	/** Returns the big-endian encoding of the value in a new 4-byte array */
+	public static byte[] encodeInt32( int value )
+	{
+		return newInt32( value );
+	}
+
+	/** Writes the big-endian encoding of the value into the buffer at the given offset */
+	public static void writeInt32( byte[] buffer, int offset, int value )
+	{
+		buffer[offset]     = (byte)(value >>> 24);
+		buffer[offset + 1] = (byte)(value >>> 16);
+		buffer[offset + 2] = (byte)(value >>> 8);
+		buffer[offset + 3] = (byte)value;
+	}
+
+	/** Decodes an HLAinteger32BE value without creating a decoder object */
+	public static int decodeInt32( byte[] bytes ) throws DecoderException
+	{
+		if( bytes == null || bytes.length < 4 )
+			throw new DecoderException( "Expected 4 bytes for HLAinteger32BE, got " +
+			                            (bytes == null ? "null" : bytes.length) );
+		return readInt32( bytes, 0 );
+	}
+
+	/** Like {@link #decodeInt32(byte[])}, but returns {@code absent} when there is no value */
+	public static int decodeInt32( byte[] bytes, int absent ) throws DecoderException
+	{
+		return bytes == null ? absent : decodeInt32( bytes );
+	}
+
+	/** Reads a big-endian int from the buffer at the given offset */
+	public static int readInt32( byte[] buffer, int offset )
+	{
+		return ((buffer[offset] & 0xFF) << 24) |
+		       ((buffer[offset + 1] & 0xFF) << 16) |
+		       ((buffer[offset + 2] & 0xFF) << 8) |
+		       (buffer[offset + 3] & 0xFF);
+	}
+
+	/** Big-endian encoding of the value, for HLAinteger64BE parameters */
+	public static byte[] encodeInt64( long value )
+	{
+		byte[] bytes = new byte[8];
+		writeInt32( bytes, 0, (int)(value >>> 32) );
+		writeInt32( bytes, 4, (int)value );
+		return bytes;
+	}
+
+	/** Decodes an HLAinteger64BE value without creating a decoder object */
+	public static long decodeInt64( byte[] bytes ) throws DecoderException
+	{
+		if( bytes == null || bytes.length < 8 )
+			throw new DecoderException( "Expected 8 bytes for a 64-bit value, got " +
+			                            (bytes == null ? "null" : bytes.length) );
+		long high = readInt32( bytes, 0 );
+		long low = readInt32( bytes, 4 ) & 0xFFFFFFFFL;
+		return (high << 32) | low;
+	}
+
+	/** Big-endian IEEE 754 encoding of the value, for HLAfloat64BE parameters */
+	public static byte[] encodeFloat64( double value )
+	{
+		return encodeInt64( Double.doubleToLongBits(value) );
+	}
+
+	/** Decodes an HLAfloat64BE value without creating a decoder object */
+	public static double decodeFloat64( byte[] bytes ) throws DecoderException
+	{
+		return Double.longBitsToDouble( decodeInt64(bytes) );
+	}
+
+	private static byte[] newInt32( int value )
+	{
+		byte[] bytes = new byte[4];
+		writeInt32( bytes, 0, value );
+		return bytes;
+	}
+}
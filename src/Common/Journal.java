@@ -0,0 +1,364 @@
+package Common;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Append-only binary journal of the messages exchanged in a federation run: interactions,
+ * object discoveries, attribute updates and removals, each with its logical time (NaN for
+ * receive-order messages). The file is written through memory-mapped regions, so recording
+ * a message is a copy into the page cache and the simulation never waits on a write call.
+ * <p/>
+ * Layout: a 16-byte header (magic "FJRN", version, end of the last complete record) and
+ * records of the form {@code int length, byte kind, payload}. Class, parameter and attribute
+ * names are written once, as a NAME record, and referred to by number afterwards. The end
+ * offset in the header is moved after every record, so a journal whose writer was killed
+ * can still be read up to the last complete message.
+ */
+public final class Journal
+{
+	//----------------------------------------------------------
+	//                    STATIC VARIABLES
+	//----------------------------------------------------------
+	private static final int MAGIC = 0x464A524E; // "FJRN"
+	private static final int VERSION = 1;
+	private static final int HEADER = 16;
+	private static final long REGION = 64L << 20;
+
+	private static final byte NAME = 0;
+	private static final byte INTERACTION = 1;
+	private static final byte DISCOVER = 2;
+	private static final byte UPDATE = 3;
+	private static final byte REMOVE = 4;
+
+	//----------------------------------------------------------
+	//                      CONSTRUCTORS
+	//----------------------------------------------------------
+	private Journal()
+	{
+	}
+
+	//----------------------------------------------------------
+	//                     STATIC METHODS
+	//----------------------------------------------------------
+	/** Starts a new journal, replacing the file if it exists */
+	public static Writer create( Path file ) throws IOException
+	{
+		if( file.getParent() != null )
+			Files.createDirectories( file.getParent() );
+		return new Writer( FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+		                                    StandardOpenOption.READ, StandardOpenOption.WRITE) );
+	}
+
+	/** Reads the journal from start to end, handing every message to the listener */
+	public static void read( Path file, Listener listener ) throws IOException
+	{
+		try( FileChannel channel = FileChannel.open(file, StandardOpenOption.READ) )
+		{
+			ByteBuffer header = channel.map( FileChannel.MapMode.READ_ONLY, 0, HEADER );
+			if( channel.size() < HEADER || header.getInt() != MAGIC || header.getInt() != VERSION )
+				throw new IOException( file + " is not a journal of this version" );
+			long end = header.getLong();
+
+			List<String> names = new ArrayList<>();
+			Values values = new Values();
+			long position = HEADER;
+			MappedByteBuffer region = null;
+			while( position < end )
+			{
+				// remap when the next record does not lie entirely in the current region;
+				// a record larger than a region gets a mapping of its own
+				if( region == null || region.remaining() < 4 || region.remaining() < 4 + region.getInt(region.position()) )
+				{
+					region = channel.map( FileChannel.MapMode.READ_ONLY, position, Math.min(REGION, end - position) );
+					int recordSize = 4 + region.getInt( region.position() );
+					if( region.remaining() < recordSize )
+						region = channel.map( FileChannel.MapMode.READ_ONLY, position, recordSize );
+				}
+
+				int length = region.getInt();
+				int start = region.position();
+				switch( region.get() )
+				{
+					case NAME:
+						names.add( readString(region) );
+						break;
+					case INTERACTION:
+						String interaction = names.get( region.getInt() );
+						double time = region.getDouble();
+						values.read( region, names );
+						listener.interaction( interaction, time, values );
+						break;
+					case DISCOVER:
+						int discovered = region.getInt();
+						String objectClass = names.get( region.getInt() );
+						listener.discover( discovered, objectClass, readString(region) );
+						break;
+					case UPDATE:
+						int updated = region.getInt();
+						double updateTime = region.getDouble();
+						values.read( region, names );
+						listener.update( updated, updateTime, values );
+						break;
+					case REMOVE:
+						int removed = region.getInt();
+						listener.remove( removed, region.getDouble() );
+						break;
+					default:
+						throw new IOException( "Unknown record at offset " + position + " of " + file );
+				}
+				region.position( start + length );
+				position += 4 + length;
+			}
+		}
+	}
+
+	private static String readString( ByteBuffer buffer )
+	{
+		byte[] bytes = new byte[buffer.getShort() & 0xFFFF];
+		buffer.get( bytes );
+		return new String( bytes, StandardCharsets.UTF_8 );
+	}
+
+	//----------------------------------------------------------
+	//                     INNER CLASSES
+	//----------------------------------------------------------
+	/** Receives the messages of a journal in the order they were recorded */
+	public interface Listener
+	{
+		void interaction( String interactionClass, double time, Values parameters );
+
+		void discover( int instance, String objectClass, String instanceName );
+
+		void update( int instance, double time, Values attributes );
+
+		void remove( int instance, double time );
+	}
+
+	/**
+	 * Parameters or attributes of one message, by name. The instance is reused for the
+	 * next message; the value arrays are not, so they can be handed on as they are.
+	 */
+	public static final class Values
+	{
+		private String[] names = new String[8];
+		private byte[][] values = new byte[8][];
+		private int size;
+
+		public int size()
+		{
+			return size;
+		}
+
+		public String name( int index )
+		{
+			return names[index];
+		}
+
+		public byte[] value( int index )
+		{
+			return values[index];
+		}
+
+		private void read( ByteBuffer buffer, List<String> nameTable )
+		{
+			size = buffer.getShort();
+			if( size > names.length )
+			{
+				names = new String[size];
+				values = new byte[size][];
+			}
+			for( int i = 0; i < size; i++ )
+			{
+				names[i] = nameTable.get( buffer.getInt() );
+				values[i] = new byte[buffer.getInt()];
+				buffer.get( values[i] );
+			}
+		}
+	}
+
+	/**
+	 * Writes a journal. A message is written as {@code begin...(), value()* , commit()};
+	 * names are numbered with {@link #name(String)}, which callers are expected to cache.
+	 * Not thread-safe: one recorder thread writes.
+	 */
+	public static final class Writer implements Closeable
+	{
+		private final FileChannel channel;
+		private final MappedByteBuffer header;
+		private final Map<String, Integer> names = new HashMap<>();
+		private MappedByteBuffer region;
+		private long regionStart;
+		private long end = HEADER;
+
+		// the record being built, copied into the mapped region on commit
+		private ByteBuffer record = ByteBuffer.allocate( 4096 );
+		private int valueCountPosition = -1;
+		private short valueCount;
+
+		private Writer( FileChannel channel ) throws IOException
+		{
+			this.channel = channel;
+			this.header = channel.map( FileChannel.MapMode.READ_WRITE, 0, HEADER );
+			header.putInt( 0, MAGIC );
+			header.putInt( 4, VERSION );
+			header.putLong( 8, end );
+			map( end, 0 );
+		}
+
+		/** Number of the given class, parameter or attribute name, recorded the first time it is used */
+		public int name( String name ) throws IOException
+		{
+			Integer id = names.get( name );
+			if( id != null )
+				return id;
+
+			id = names.size();
+			names.put( name, id );
+			begin( NAME );
+			putString( name );
+			commit();
+			return id;
+		}
+
+		public void beginInteraction( int interactionClass, double time )
+		{
+			begin( INTERACTION );
+			record.putInt( interactionClass );
+			record.putDouble( time );
+			beginValues();
+		}
+
+		public void beginUpdate( int instance, double time )
+		{
+			begin( UPDATE );
+			record.putInt( instance );
+			record.putDouble( time );
+			beginValues();
+		}
+
+		public void value( int name, byte[] value )
+		{
+			ensure( 8 + value.length );
+			record.putInt( name );
+			record.putInt( value.length );
+			record.put( value );
+			valueCount++;
+		}
+
+		public void discover( int instance, int objectClass, String instanceName ) throws IOException
+		{
+			begin( DISCOVER );
+			record.putInt( instance );
+			record.putInt( objectClass );
+			putString( instanceName );
+			commit();
+		}
+
+		public void remove( int instance, double time ) throws IOException
+		{
+			begin( REMOVE );
+			record.putInt( instance );
+			record.putDouble( time );
+			commit();
+		}
+
+		/** Appends the message begun last and makes it visible to readers */
+		public void commit() throws IOException
+		{
+			if( valueCountPosition >= 0 )
+			{
+				record.putShort( valueCountPosition, valueCount );
+				valueCountPosition = -1;
+			}
+			record.putInt( 0, record.position() - 4 );
+			record.flip();
+			if( region.remaining() < record.remaining() )
+				map( end, record.remaining() );
+			region.put( record );
+			end = regionStart + region.position();
+			header.putLong( 8, end );
+		}
+
+		/** Bytes written so far, header included */
+		public long size()
+		{
+			return end;
+		}
+
+		/**
+		 * Writes out the journal and cuts off the unused rest of the last region. Java cannot
+		 * unmap a region, and Windows refuses to truncate a file with live mappings; the file
+		 * then keeps its mapped length, which readers ignore since they stop at the end
+		 * offset in the header.
+		 */
+		@Override
+		public void close() throws IOException
+		{
+			region.force();
+			header.force();
+			region = null;
+			try
+			{
+				channel.truncate( end );
+			}
+			catch( IOException e )
+			{
+				// still mapped, the header already tells readers where the journal ends
+			}
+			channel.close();
+		}
+
+		private void begin( byte kind )
+		{
+			record.clear();
+			record.putInt( 0 );
+			record.put( kind );
+		}
+
+		private void beginValues()
+		{
+			valueCountPosition = record.position();
+			valueCount = 0;
+			record.putShort( (short)0 );
+		}
+
+		private void putString( String value )
+		{
+			byte[] bytes = value.getBytes( StandardCharsets.UTF_8 );
+			ensure( 2 + bytes.length );
+			record.putShort( (short)bytes.length );
+			record.put( bytes );
+		}
+
+		private void ensure( int bytes )
+		{
+			if( record.remaining() >= bytes )
+				return;
+			ByteBuffer larger = ByteBuffer.allocate( Math.max(record.capacity() * 2, record.position() + bytes) );
+			record.flip();
+			larger.put( record );
+			record = larger;
+		}
+
+		/** Maps the next region at the given position, large enough for a record of the given size */
+		private void map( long position, int recordSize ) throws IOException
+		{
+			if( region != null )
+				region.force();
+			regionStart = position;
+			region = channel.map( FileChannel.MapMode.READ_WRITE, position, Math.max(REGION, recordSize) );
+		}
+	}
+}
@@ -0,0 +1,179 @@
+package Common;
+
+import Config.Config;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * Minimal logging facade used by the federates and their ambassadors. Messages below
+ * Config.LOG_LEVEL are discarded before they are built - the Supplier variants only
+ * concatenate when the level is enabled - and enabled ones are handed to a single
+ * background writer through a bounded queue, so the simulation thread never waits on
+ * console I/O. When the queue is full the message is dropped and counted instead of
+ * blocking; the writer reports how many were lost.
+ * <p/>
+ * With -Dferry.log.async=false every line is printed synchronously, as before.
+ */
+public final class Log
+{
+	//----------------------------------------------------------
+	//                    STATIC VARIABLES
+	//----------------------------------------------------------
+	public enum Level
+	{
+		DEBUG, INFO, WARN, ERROR, OFF
+	}
+
+	private static final Level THRESHOLD = Config.LOG_LEVEL;
+	private static final BlockingQueue<String> QUEUE =
+		Config.LOG_ASYNC ? new ArrayBlockingQueue<>( Config.LOG_BUFFER ) : null;
+	private static final AtomicLong DROPPED = new AtomicLong();
+	private static final AtomicLong PENDING = new AtomicLong();
+
+	static
+	{
+		if( QUEUE != null )
+		{
+			Thread writer = new Thread( Log::drain, "ferry-log" );
+			writer.setDaemon( true );
+			writer.start();
+			Runtime.getRuntime().addShutdownHook( new Thread(Log::flush, "ferry-log-flush") );
+		}
+	}
+
+	//----------------------------------------------------------
+	//                   INSTANCE VARIABLES
+	//----------------------------------------------------------
+	private final String prefix;
+
+	//----------------------------------------------------------
+	//                      CONSTRUCTORS
+	//----------------------------------------------------------
+	private Log( String prefix )
+	{
+		this.prefix = prefix + ": ";
+	}
+
+	//----------------------------------------------------------
+	//                    INSTANCE METHODS
+	//----------------------------------------------------------
+	public boolean isEnabled( Level level )
+	{
+		return level.compareTo( THRESHOLD ) >= 0 && level != Level.OFF;
+	}
+
+	public boolean isDebugEnabled()
+	{
+		return isEnabled( Level.DEBUG );
+	}
+
+	public void debug( Supplier<String> message )
+	{
+		if( isEnabled(Level.DEBUG) )
+			write( message.get() );
+	}
+
+	public void info( String message )
+	{
+		if( isEnabled(Level.INFO) )
+			write( message );
+	}
+
+	public void info( Supplier<String> message )
+	{
+		if( isEnabled(Level.INFO) )
+			write( message.get() );
+	}
+
+	public void warn( Supplier<String> message )
+	{
+		if( isEnabled(Level.WARN) )
+			write( message.get() );
+	}
+
+	public void error( String message )
+	{
+		if( isEnabled(Level.ERROR) )
+			write( message );
+	}
+
+	private void write( String message )
+	{
+		String line = prefix + message;
+		if( QUEUE == null )
+			System.out.println( line );
+		else
+		{
+			PENDING.incrementAndGet();
+			if( !QUEUE.offer(line) )
+			{
+				PENDING.decrementAndGet();
+				DROPPED.incrementAndGet();
+			}
+		}
+	}
+
+	//----------------------------------------------------------
+	//                     STATIC METHODS
+	//----------------------------------------------------------
+	/** Logger whose lines start with the given prefix, e.g. "PromFederate   " */
+	public static Log get( String prefix )
+	{
+		return new Log( prefix );
+	}
+
+	/**
+	 * Waits (up to a second) until everything queued so far has been printed. Called on
+	 * shutdown, and by whoever wants the log complete before printing something else.
+	 */
+	public static void flush()
+	{
+		if( QUEUE == null )
+			return;
+
+		long deadline = System.currentTimeMillis() + 1000;
+		while( PENDING.get() > 0 && System.currentTimeMillis() < deadline )
+		{
+			Thread.onSpinWait();
+		}
+		System.out.flush();
+	}
+
+	/** Body of the writer thread: prints whatever is queued, in batches */
+	private static void drain()
+	{
+		List<String> batch = new ArrayList<>();
+		StringBuilder text = new StringBuilder();
+		String lineSeparator = System.lineSeparator();
+		while( true )
+		{
+			try
+			{
+				batch.add( QUEUE.take() );
+			}
+			catch( InterruptedException e )
+			{
+				return;
+			}
+
+			QUEUE.drainTo( batch );
+			for( String line : batch )
+				text.append( line ).append( lineSeparator );
+
+			long dropped = DROPPED.getAndSet( 0 );
+			if( dropped > 0 )
+				text.append( "Log: " ).append( dropped ).append( " messages dropped, queue full" ).append( lineSeparator );
+
+			System.out.print( text );
+			System.out.flush();
+			text.setLength( 0 );
+			PENDING.addAndGet( -batch.size() );
+			batch.clear();
+		}
+	}
+}
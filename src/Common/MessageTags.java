@@ -0,0 +1,107 @@
+package Common;
+
+/**
+ * User-supplied tags attached to every updateAttributeValues and sendInteraction.
+ * By default the tag is empty; with tracing enabled it carries 8 bytes, either a
+ * per-federate sequence number or a send timestamp. Timestamped tags let the
+ * receiving ambassador measure delivery latency through {@link #observe(byte[])}.
+ * <p/>
+ * Timestamps are nanoTime-based but shifted to the epoch once per JVM, so they are
+ * comparable between federates on the same host (and exact within one JVM).
+ */
+public final class MessageTags
+{
+	//----------------------------------------------------------
+	//                    STATIC VARIABLES
+	//----------------------------------------------------------
+	public enum Policy
+	{
+		NONE,      // empty tags
+		SEQUENCE,  // 8-byte message sequence number
+		NANOTIME   // 8-byte send timestamp in nanoseconds
+	}
+
+	private static final byte[] EMPTY = new byte[0];
+	private static final long EPOCH_OFFSET_NANOS = System.currentTimeMillis() * 1_000_000L - System.nanoTime();
+
+	//----------------------------------------------------------
+	//                   INSTANCE VARIABLES
+	//----------------------------------------------------------
+	private final Policy policy;
+	private long sequence = 0;
+
+	// statystyki opóźnień odebranych wiadomości (tylko NANOTIME)
+	private long observedCount = 0;
+	private long observedTotalNanos = 0;
+	private long observedMaxNanos = 0;
+
+	//----------------------------------------------------------
+	//                      CONSTRUCTORS
+	//----------------------------------------------------------
+	public MessageTags( Policy policy )
+	{
+		this.policy = policy;
+	}
+
+	//----------------------------------------------------------
+	//                    INSTANCE METHODS
+	//----------------------------------------------------------
+	/** Tag for the next outgoing message */
+	public byte[] next()
+	{
+		switch( policy )
+		{
+			case SEQUENCE:
+				return toBytes( ++sequence );
+			case NANOTIME:
+				return toBytes( now() );
+			default:
+				return EMPTY;
+		}
+	}
+
+	/**
+	 * Records the latency of a received message when timestamped tags are in use.
+	 * Returns the latency in nanoseconds, or -1 if the tag carries no timestamp.
+	 */
+	public long observe( byte[] tag )
+	{
+		if( policy != Policy.NANOTIME || tag == null || tag.length != 8 )
+			return -1;
+
+		long latency = now() - fromBytes( tag );
+		observedCount++;
+		observedTotalNanos += latency;
+		observedMaxNanos = Math.max( observedMaxNanos, latency );
+		return latency;
+	}
+
+	/** Human readable latency summary, empty when nothing was observed */
+	public String latencySummary()
+	{
+		if( observedCount == 0 )
+			return "";
+		return String.format( "messages=%d, mean=%.1f us, max=%.1f us", observedCount,
+		                      observedTotalNanos / (observedCount * 1000.0), observedMaxNanos / 1000.0 );
+	}
+
+	//----------------------------------------------------------
+	//                     STATIC METHODS
+	//----------------------------------------------------------
+	private static long now()
+	{
+		return System.nanoTime() + EPOCH_OFFSET_NANOS;
+	}
+
+	private static byte[] toBytes( long value )
+	{
+		return HlaCodec.encodeInt64( value );
+	}
+
+	private static long fromBytes( byte[] bytes )
+	{
+		long high = HlaCodec.readInt32( bytes, 0 );
+		long low = HlaCodec.readInt32( bytes, 4 ) & 0xFFFFFFFFL;
+		return (high << 32) | low;
+	}
+}
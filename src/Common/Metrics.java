@@ -0,0 +1,275 @@
+package Common;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Per-federate registry of named counters and histograms. Lookups by name are meant to
+ * happen once, with the returned instrument kept in a field; recording is then a few
+ * atomic adds and safe from both the simulation thread and the RTI callback thread.
+ * <p/>
+ * Histograms use HdrHistogram-style buckets: a power-of-two range split into 16 linear
+ * sub-buckets, so any value up to Long.MAX_VALUE is kept with about 6% precision in a
+ * fixed array of under a thousand slots.
+ */
+public final class Metrics
+{
+	//----------------------------------------------------------
+	//                    STATIC VARIABLES
+	//----------------------------------------------------------
+	private static final int SUB_BUCKET_BITS = 4;
+	private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+	private static final int BUCKETS = (64 - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+
+	//----------------------------------------------------------
+	//                   INSTANCE VARIABLES
+	//----------------------------------------------------------
+	private final String name;
+	private final long createdNanos = System.nanoTime();
+	private final Map<String, Counter> counters = new ConcurrentSkipListMap<>();
+	private final Map<String, Histogram> histograms = new ConcurrentSkipListMap<>();
+
+	//----------------------------------------------------------
+	//                      CONSTRUCTORS
+	//----------------------------------------------------------
+	public Metrics( String name )
+	{
+		this.name = name;
+	}
+
+	//----------------------------------------------------------
+	//                    INSTANCE METHODS
+	//----------------------------------------------------------
+	public Counter counter( String counterName )
+	{
+		return counters.computeIfAbsent( counterName, n -> new Counter() );
+	}
+
+	/** Histogram of durations, recorded in nanoseconds */
+	public Histogram timer( String histogramName )
+	{
+		return histograms.computeIfAbsent( histogramName, n -> new Histogram(true) );
+	}
+
+	/** Histogram of plain values, e.g. callbacks delivered per tick */
+	public Histogram histogram( String histogramName )
+	{
+		return histograms.computeIfAbsent( histogramName, n -> new Histogram(false) );
+	}
+
+	/**
+	 * Writes every counter (with its rate over the lifetime of the registry) and every
+	 * histogram (count, mean, percentiles and max) as plain text. Timers are recorded in
+	 * nanoseconds and printed in microseconds.
+	 */
+	public void dump( PrintWriter out )
+	{
+		double seconds = (System.nanoTime() - createdNanos) / 1e9;
+		out.printf( "# metrics of %s, %.3f s%n", name, seconds );
+		for( Map.Entry<String, Counter> entry : counters.entrySet() )
+		{
+			long value = entry.getValue().get();
+			out.printf( "counter   %-40s %12d  %12.1f/s%n", entry.getKey(), value, value / seconds );
+		}
+		for( Map.Entry<String, Histogram> entry : histograms.entrySet() )
+		{
+			Histogram h = entry.getValue();
+			double unit = h.nanos ? 1000.0 : 1.0;
+			out.printf( "%-9s %-40s count=%d mean=%.1f p50=%.1f p90=%.1f p99=%.1f p99.9=%.1f max=%.1f%s%n",
+			            h.nanos ? "timer" : "histogram", entry.getKey(), h.count(), h.mean() / unit,
+			            h.percentile(50) / unit, h.percentile(90) / unit, h.percentile(99) / unit,
+			            h.percentile(99.9) / unit, h.max() / unit, h.nanos ? " us" : "" );
+		}
+		out.flush();
+	}
+
+	/** Writes {@link #dump(PrintWriter)} to the given file, creating parent directories */
+	public void dump( Path file ) throws IOException
+	{
+		if( file.getParent() != null )
+			Files.createDirectories( file.getParent() );
+		try( PrintWriter out = new PrintWriter(Files.newBufferedWriter(file, StandardCharsets.UTF_8)) )
+		{
+			dump( out );
+		}
+	}
+
+	//----------------------------------------------------------
+	//                     STATIC METHODS
+	//----------------------------------------------------------
+	private static int bucketIndex( long value )
+	{
+		if( value < SUB_BUCKETS )
+			return (int)Math.max( value, 0 );
+
+		int exponent = 63 - Long.numberOfLeadingZeros( value );
+		int shift = exponent - SUB_BUCKET_BITS;
+		int subBucket = (int)(value >>> shift) & (SUB_BUCKETS - 1);
+		return (shift + 1) * SUB_BUCKETS + subBucket;
+	}
+
+	/** Middle of the range of values that fall into the given bucket */
+	private static long bucketValue( int index )
+	{
+		if( index < SUB_BUCKETS )
+			return index;
+
+		int shift = index / SUB_BUCKETS - 1;
+		long lower = (long)(SUB_BUCKETS + index % SUB_BUCKETS) << shift;
+		return lower + ((1L << shift) >>> 1);
+	}
+
+	//----------------------------------------------------------
+	//                     INNER CLASSES
+	//----------------------------------------------------------
+	public static final class Counter
+	{
+		private final LongAdder value = new LongAdder();
+
+		public void increment()
+		{
+			value.increment();
+		}
+
+		public void add( long amount )
+		{
+			value.add( amount );
+		}
+
+		public long get()
+		{
+			return value.sum();
+		}
+	}
+
+	public static final class Histogram
+	{
+		private final boolean nanos;
+		private final AtomicLongArray buckets = new AtomicLongArray( BUCKETS );
+		private final LongAdder count = new LongAdder();
+		private final LongAdder total = new LongAdder();
+		private final LongAccumulator max = new LongAccumulator( Math::max, 0 );
+
+		Histogram( boolean nanos )
+		{
+			this.nanos = nanos;
+		}
+
+		public void record( long value )
+		{
+			buckets.incrementAndGet( bucketIndex(value) );
+			count.increment();
+			total.add( value );
+			max.accumulate( value );
+		}
+
+		/** Records the same value {@code times} times, e.g. for a group of units that waited equally long */
+		public void record( long value, long times )
+		{
+			buckets.addAndGet( bucketIndex(value), times );
+			count.add( times );
+			total.add( value * times );
+			max.accumulate( value );
+		}
+
+		/** Adds all values recorded by another histogram to this one */
+		public void add( Histogram other )
+		{
+			for( int i = 0; i < BUCKETS; i++ )
+			{
+				long n = other.buckets.get( i );
+				if( n != 0 )
+					buckets.addAndGet( i, n );
+			}
+			count.add( other.count.sum() );
+			total.add( other.total.sum() );
+			max.accumulate( other.max.get() );
+		}
+
+		/** Records the time elapsed since {@code startNanos}, a System.nanoTime() value */
+		public void recordSince( long startNanos )
+		{
+			record( System.nanoTime() - startNanos );
+		}
+
+		public long count()
+		{
+			return count.sum();
+		}
+
+		public double mean()
+		{
+			long n = count.sum();
+			return n == 0 ? 0.0 : (double)total.sum() / n;
+		}
+
+		public long max()
+		{
+			return max.get();
+		}
+
+		/** Value below which the given percentage of the recorded values fall */
+		public long percentile( double percent )
+		{
+			long n = count.sum();
+			if( n == 0 )
+				return 0;
+
+			long rank = Math.max( 1, (long)Math.ceil(n * percent / 100.0) );
+			long seen = 0;
+			for( int i = 0; i < BUCKETS; i++ )
+			{
+				seen += buckets.get( i );
+				if( seen >= rank )
+					return Math.min( bucketValue(i), max() );
+			}
+			return max();
+		}
+
+		/** Writes the recorded values (only the non-empty buckets) for {@link #readFrom} */
+		void writeTo( DataOutput out ) throws IOException
+		{
+			out.writeLong( count.sum() );
+			out.writeLong( total.sum() );
+			out.writeLong( max.get() );
+			int used = 0;
+			for( int i = 0; i < BUCKETS; i++ )
+				if( buckets.get(i) != 0 )
+					used++;
+			out.writeInt( used );
+			for( int i = 0; i < BUCKETS; i++ )
+			{
+				long n = buckets.get( i );
+				if( n != 0 )
+				{
+					out.writeShort( i );
+					out.writeLong( n );
+				}
+			}
+		}
+
+		/** Adds the values written by {@link #writeTo} to this histogram */
+		void readFrom( DataInput in ) throws IOException
+		{
+			count.add( in.readLong() );
+			total.add( in.readLong() );
+			max.accumulate( in.readLong() );
+			int used = in.readInt();
+			for( int i = 0; i < used; i++ )
+			{
+				int index = in.readShort();
+				buckets.addAndGet( index, in.readLong() );
+			}
+		}
+	}
+}
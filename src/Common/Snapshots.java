@@ -0,0 +1,153 @@
+package Common;
+
+import Config.Config;
+import hla.rti1516e.ObjectInstanceHandle;
+import hla.rti1516e.ObjectInstanceHandleFactory;
+import hla.rti1516e.exceptions.RTIexception;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+
+/**
+ * Files behind federation save and restore. Every federate writes its state for a save
+ * label to {@code Config.CHECKPOINT_DIR/<label>/<federate name>.snap}: a small header
+ * (magic "FSNP", version, federate type) followed by whatever the federate writes with
+ * a DataOutputStream. Files are written next to their final name and moved into place,
+ * so a crash during a save never leaves a half-written snapshot behind.
+ * <p/>
+ * The Manager records the last label the whole federation saved in {@code latest}, which
+ * is what {@code -Dferry.resume=latest} resumes from.
+ */
+public final class Snapshots
+{
+	//----------------------------------------------------------
+	//                    STATIC VARIABLES
+	//----------------------------------------------------------
+	private static final int MAGIC = 0x46534E50; // "FSNP"
+	private static final int VERSION = 2;  // 2: waiting statistics count their experiments
+	private static final String LATEST = "latest";
+
+	//----------------------------------------------------------
+	//                      CONSTRUCTORS
+	//----------------------------------------------------------
+	private Snapshots()
+	{
+	}
+
+	//----------------------------------------------------------
+	//                     STATIC METHODS
+	//----------------------------------------------------------
+	public static Path file( String label, String federateName ) throws IOException
+	{
+		return directory().resolve( label ).resolve( federateName + ".snap" );
+	}
+
+	public static void write( String label, String federateName, String federateType, Body<DataOutputStream> body )
+		throws IOException
+	{
+		Path target = file( label, federateName );
+		Files.createDirectories( target.getParent() );
+		Path temporary = target.resolveSibling( target.getFileName() + ".tmp" );
+		try( DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temporary))) )
+		{
+			out.writeInt( MAGIC );
+			out.writeInt( VERSION );
+			out.writeUTF( federateType );
+			body.accept( out );
+		}
+		Files.move( temporary, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE );
+	}
+
+	public static void read( String label, String federateName, String federateType, Body<DataInputStream> body )
+		throws IOException
+	{
+		Path source = file( label, federateName );
+		try( DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(source))) )
+		{
+			if( in.readInt() != MAGIC || in.readInt() != VERSION )
+				throw new IOException( source + " is not a snapshot of this version" );
+			String type = in.readUTF();
+			if( !type.equals(federateType) )
+				throw new IOException( source + " is a snapshot of a " + type + ", not of a " + federateType );
+			body.accept( in );
+		}
+	}
+
+	/** Remembers the label of the last complete federation save */
+	public static void markLatest( String label ) throws IOException
+	{
+		Path latest = directory().resolve( LATEST );
+		Path temporary = latest.resolveSibling( LATEST + ".tmp" );
+		Files.write( temporary, label.getBytes(StandardCharsets.UTF_8) );
+		Files.move( temporary, latest, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE );
+	}
+
+	/** The label itself, or the last complete save for "latest" */
+	public static String resolve( String label ) throws IOException
+	{
+		if( !LATEST.equals(label) )
+			return label;
+		return new String( Files.readAllBytes(directory().resolve(LATEST)), StandardCharsets.UTF_8 ).trim();
+	}
+
+	private static Path directory() throws IOException
+	{
+		if( Config.CHECKPOINT_DIR == null )
+			throw new IOException( "no checkpoint directory, set -Dferry.checkpoint" );
+		return Paths.get( Config.CHECKPOINT_DIR );
+	}
+
+	/** Writes the RTI encoding of the handle; null is allowed */
+	public static void writeHandle( DataOutput out, ObjectInstanceHandle handle ) throws IOException
+	{
+		if( handle == null )
+		{
+			out.writeShort( -1 );
+			return;
+		}
+		byte[] bytes = new byte[handle.encodedLength()];
+		handle.encode( bytes, 0 );
+		out.writeShort( bytes.length );
+		out.write( bytes );
+	}
+
+	/**
+	 * Reads a handle written by {@link #writeHandle}. Handles are only meaningful inside
+	 * the federation execution they come from, which a federation restore brings back.
+	 */
+	public static ObjectInstanceHandle readHandle( DataInput in, ObjectInstanceHandleFactory factory ) throws IOException
+	{
+		int length = in.readShort();
+		if( length < 0 )
+			return null;
+		byte[] bytes = new byte[length];
+		in.readFully( bytes );
+		try
+		{
+			return factory.decode( bytes, 0 );
+		}
+		catch( RTIexception e )
+		{
+			throw new IOException( "Could not decode object instance handle", e );
+		}
+	}
+
+	//----------------------------------------------------------
+	//                     INNER CLASSES
+	//----------------------------------------------------------
+	/** Writes or reads the federate-specific part of a snapshot */
+	public interface Body<T>
+	{
+		void accept( T stream ) throws IOException;
+	}
+}
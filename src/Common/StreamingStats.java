@@ -0,0 +1,164 @@
+package Common;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Locale;
+
+/**
+ * Summary statistics of a stream of values, updated one value at a time in constant
+ * memory: count, min, max, mean and variance (Welford's algorithm, stable for long
+ * streams), percentiles from a Metrics histogram and a 95% confidence interval of the
+ * mean (Student's t for small samples).
+ * <p/>
+ * Not thread safe; the Manager and the Stacja update it from the simulation thread only.
+ */
+public final class StreamingStats
+{
+	//----------------------------------------------------------
+	//                    STATIC VARIABLES
+	//----------------------------------------------------------
+	// two-sided 97.5% quantiles of Student's t for 1..30 degrees of freedom
+	private static final double[] T_975 = {
+		12.706, 4.303, 3.182, 2.776, 2.571, 2.447, 2.365, 2.306, 2.262, 2.228,
+		2.201, 2.179, 2.160, 2.145, 2.131, 2.120, 2.110, 2.101, 2.093, 2.086,
+		2.080, 2.074, 2.069, 2.064, 2.060, 2.056, 2.052, 2.048, 2.045, 2.042
+	};
+	private static final double Z_975 = 1.960;
+
+	//----------------------------------------------------------
+	//                   INSTANCE VARIABLES
+	//----------------------------------------------------------
+	private final Metrics.Histogram histogram = new Metrics.Histogram( false );
+	private long count;
+	private double mean;
+	private double m2;
+	private long min = Long.MAX_VALUE;
+	private long max = Long.MIN_VALUE;
+
+	//----------------------------------------------------------
+	//                    INSTANCE METHODS
+	//----------------------------------------------------------
+	public void add( long value )
+	{
+		count++;
+		double delta = value - mean;
+		mean += delta / count;
+		m2 += delta * (value - mean);
+		min = Math.min( min, value );
+		max = Math.max( max, value );
+		histogram.record( value );
+	}
+
+	/** Adds the same value {@code times} times, in one step (Chan et al.) */
+	public void add( long value, long times )
+	{
+		if( times <= 0 )
+			return;
+
+		long total = count + times;
+		double delta = value - mean;
+		mean += delta * times / total;
+		m2 += delta * delta * count * times / total;
+		count = total;
+		min = Math.min( min, value );
+		max = Math.max( max, value );
+		histogram.record( value, times );
+	}
+
+	/** Adds all values of another stream, e.g. of another station or partition */
+	public void merge( StreamingStats other )
+	{
+		if( other.count == 0 )
+			return;
+
+		long total = count + other.count;
+		double delta = other.mean - mean;
+		mean += delta * other.count / total;
+		m2 += other.m2 + delta * delta * count * other.count / total;
+		count = total;
+		min = Math.min( min, other.min );
+		max = Math.max( max, other.max );
+		histogram.add( other.histogram );
+	}
+
+	public long count()
+	{
+		return count;
+	}
+
+	public double mean()
+	{
+		return mean;
+	}
+
+	/** Sample variance, 0 with fewer than two values */
+	public double variance()
+	{
+		return count < 2 ? 0.0 : m2 / (count - 1);
+	}
+
+	public double standardDeviation()
+	{
+		return Math.sqrt( variance() );
+	}
+
+	public long min()
+	{
+		return count == 0 ? 0 : min;
+	}
+
+	public long max()
+	{
+		return count == 0 ? 0 : max;
+	}
+
+	/** Approximate percentile, within the precision of the Metrics histogram buckets */
+	public long percentile( double percent )
+	{
+		return histogram.percentile( percent );
+	}
+
+	/** Half-width of the 95% confidence interval of the mean */
+	public double confidenceHalfWidth()
+	{
+		if( count < 2 )
+			return 0.0;
+
+		long degrees = count - 1;
+		double t = degrees <= T_975.length ? T_975[(int)degrees - 1] : Z_975;
+		return t * standardDeviation() / Math.sqrt( count );
+	}
+
+	/** Writes the complete state, e.g. into a checkpoint */
+	public void writeTo( DataOutput out ) throws IOException
+	{
+		out.writeLong( count );
+		out.writeDouble( mean );
+		out.writeDouble( m2 );
+		out.writeLong( min );
+		out.writeLong( max );
+		histogram.writeTo( out );
+	}
+
+	/** Statistics written by {@link #writeTo} */
+	public static StreamingStats readFrom( DataInput in ) throws IOException
+	{
+		StreamingStats stats = new StreamingStats();
+		stats.count = in.readLong();
+		stats.mean = in.readDouble();
+		stats.m2 = in.readDouble();
+		stats.min = in.readLong();
+		stats.max = in.readLong();
+		stats.histogram.readFrom( in );
+		return stats;
+	}
+
+	@Override
+	public String toString()
+	{
+		return String.format( Locale.ROOT, "n=%d mean=%.2f ±%.2f (95%%) sd=%.2f min=%d p50=%d p90=%d p99=%d max=%d",
+		                      count, mean, confidenceHalfWidth(), standardDeviation(), min(),
+		                      percentile(50), percentile(90), percentile(99), max() );
+	}
+}
@@ -1,14 +1,128 @@
 package Config;
 
+import Common.Log;
+
 public class Config {
     public static final String FEDERATION_NAME = "FerryCrossingFederation";
     public static final String FOM_PATH = "FerryCrossing.xml";
 
     public static final int LICZBA_STACJI = 3;
+    public static final int LICZBA_PROMOW = Integer.getInteger("ferry.promy", 1);
+    // na ile federatów Stacja dzielone są stacje (zakresami identyfikatorów)
+    public static final int LICZBA_PARTYCJI_STACJI = Integer.getInteger("ferry.partycjeStacji", 1);
     public static final int POJEMNOSC_OSOB_PROMU = 10;
     public static final int MAKS_LACZNA_POJEMNOSC_STACJI = 50;
     public static final int LICZBA_EKSPERYMENTOW = 10;
 
     public static final double CAR_PROBABILITY = 0.10;
 
+    // Ziarno główne eksperymentów (-Dferry.seed=...); bez niego każde uruchomienie losuje
+    // nowe. Manager je wypisuje, więc każdy przebieg da się powtórzyć co do eksperymentu.
+    public static final long ZIARNO = Long.getLong("ferry.seed", System.nanoTime());
+
+    // Napływ w trakcie eksperymentu (proces Poissona, Model.ArrivalProcess): -Dferry.arrivals.people=...
+    // i .cars=... to średnia liczba przybyć na stację na jednostkę czasu, .people.<id> i .cars.<id>
+    // ustawiają ją dla jednej stacji. Z napływem eksperyment trwa ARRIVALS_DURATION jednostek czasu,
+    // a nie do opróżnienia kolejek. Przybycia są losowane paczkami co ARRIVALS_BATCH, a natężenie
+    // mnoży harmonogram -Dferry.arrivals.schedule=czas:mnożnik,... liczony od startu eksperymentu
+    public static final double ARRIVALS_PEOPLE = doubleProperty("ferry.arrivals.people", 0.0);
+    public static final double ARRIVALS_CARS = doubleProperty("ferry.arrivals.cars", 0.0);
+    public static final double ARRIVALS_DURATION = doubleProperty("ferry.arrivals.duration", 200.0);
+    public static final double ARRIVALS_BATCH = doubleProperty("ferry.arrivals.batch", 1.0);
+    public static final String ARRIVALS_SCHEDULE = System.getProperty("ferry.arrivals.schedule", "0:1");
+
+    // Polityki promów (Model.BoardingPolicy, Model.RoutingPolicy), domyślne dla punktów planu,
+    // które ich nie podają (politykaZaladunku=..., politykaTrasy=...): -Dferry.boarding=losowa
+    // i -Dferry.routing=kolejna to zachowanie pierwotne. Przy załadunku mieszanym samochód zajmuje
+    // BOARDING_CAR_SIZE miejsc promu, a samochody dostają najwyżej BOARDING_CAR_SHARE miejsc
+    public static final String POLITYKA_ZALADUNKU = System.getProperty("ferry.boarding", "losowa");
+    public static final String POLITYKA_TRASY = System.getProperty("ferry.routing", "kolejna");
+    public static final int BOARDING_CAR_SIZE = Integer.getInteger("ferry.boarding.carSize", 5);
+    public static final double BOARDING_CAR_SHARE = doubleProperty("ferry.boarding.carShare", 0.5);
+
+    // Czasy kroków promu (w jednostkach czasu logicznego)
+    public static final double CZAS_CUMOWANIA = 0.5;    // od przybycia do rozpoczęcia załadunku
+    public static final double CZAS_ZALADUNKU = 1.0;
+    public static final double CZAS_ODCUMOWANIA = 0.5;  // od końca załadunku do odpłynięcia
+    public static final double CZAS_REJSU = 1.0;
+
+    // Lookahead każdego typu federatu (-Dferry.lookahead.prom=..., .stacja, .manager).
+    // Prom zapowiada zdarzenia najwyżej o swój najkrótszy krok do przodu, więc większa
+    // wartość przesuwałaby znaczniki czasu za koniec kolejnego kroku. Stacja odpowiada na
+    // koniec załadunku, a prom czyta kolejki dopiero po odcumowaniu, rejsie i zacumowaniu.
+    // Manager wysyła tylko sygnał startu, ale ze znacznikiem końca poprzedniego eksperymentu
+    // plus lookahead, więc każda jednostka ponad najkrótszy krok to bezczynny czas przed
+    // kolejnym eksperymentem, wliczany do jego czasu zakończenia.
+    private static final double NAJKROTSZY_KROK =
+            Math.min(Math.min(CZAS_CUMOWANIA, CZAS_ZALADUNKU), Math.min(CZAS_ODCUMOWANIA, CZAS_REJSU));
+    public static final double LOOKAHEAD_PROM = lookahead("prom", NAJKROTSZY_KROK);
+    public static final double LOOKAHEAD_STACJA = lookahead("stacja", 1.0);
+    public static final double LOOKAHEAD_MANAGER = lookahead("manager", NAJKROTSZY_KROK);
+    // Odtwarzanie dziennika wysyła każdą wiadomość z zapisanym znacznikiem czasu, więc
+    // wystarcza mu lookahead mniejszy od najkrótszego odstępu między zdarzeniami
+    public static final double LOOKAHEAD_REPLAY = lookahead("replay", 0.01);
+
+    // Tryb wsadowy (-Dferry.headless=true): zamiast czekać na Enter, Manager czeka,
+    // aż dołączą federaty poniższych typów, i sam osiąga punkt ReadyToRun
+    public static final boolean HEADLESS = Boolean.getBoolean("ferry.headless");
+    public static final String[] EXPECTED_FEDERATE_TYPES = { "Prom", "Station" };
+    public static final long HEADLESS_JOIN_TIMEOUT_MS = 60_000;
+
+    // Tryb HLA_IMMEDIATE (-Dferry.immediate=true): callbacki przychodzą z wątku RTI
+    // i są przekazywane do wątku symulacji przez kolejkę zamiast evokeMultipleCallbacks
+    public static final boolean IMMEDIATE_CALLBACKS = Boolean.getBoolean("ferry.immediate");
+
+    // Przesuwanie czasu sterowane zdarzeniami (-Dferry.nextEvent=true): federaty bez własnych
+    // zdarzeń (Manager, Stacja, Prom przed startem) używają nextMessageRequest zamiast
+    // stałego kroku 1.0, a horyzont ogranicza skok, gdy żadna wiadomość nie nadchodzi
+    public static final boolean NEXT_EVENT_ADVANCE = Boolean.getBoolean("ferry.nextEvent");
+    public static final double NEXT_EVENT_HORIZON = 100.0;
+
+    // Logowanie (-Dferry.log=DEBUG|INFO|WARN|ERROR|OFF); komunikaty z gorącej ścieżki są na
+    // poziomie DEBUG. Domyślnie wypisywane asynchronicznie przez kolejkę (-Dferry.log.async=false wyłącza)
+    public static final Log.Level LOG_LEVEL = Log.Level.valueOf(System.getProperty("ferry.log", "INFO").toUpperCase());
+    public static final boolean LOG_ASYNC = Boolean.parseBoolean(System.getProperty("ferry.log.async", "true"));
+    public static final int LOG_BUFFER = 16_384;
+
+    // Katalog na metryki federatów (-Dferry.metrics=katalog), bez niego nic nie jest zapisywane
+    public static final String METRICS_DIR = System.getProperty("ferry.metrics");
+
+    // Wyniki eksperymentów (-Dferry.results=katalog), zapisywane przez Managera wiersz po wierszu,
+    // w formacie -Dferry.results.format=CSV|BINARY|BOTH; bez katalogu nic nie jest zapisywane
+    public static final String RESULTS_DIR = System.getProperty("ferry.results");
+    public static final String RESULTS_FORMAT = System.getProperty("ferry.results.format", "CSV").toUpperCase();
+
+    // Punkty kontrolne (-Dferry.checkpoint=katalog): Manager zapisuje federację (save HLA) co
+    // CHECKPOINT_EVERY eksperymentów; -Dferry.resume=etykieta|latest wznawia przebieg od zapisu
+    public static final String CHECKPOINT_DIR = System.getProperty("ferry.checkpoint");
+    public static final int CHECKPOINT_EVERY = Integer.getInteger("ferry.checkpoint.every", 1);
+    public static final String RESUME = System.getProperty("ferry.resume");
+
+    // Dziennik wiadomości (-Dferry.journal=plik): launcher uruchamia federat Recorder, który zapisuje
+    // wszystkie interakcje i aktualizacje; Recorder.ReplayFederate odtwarza go jednemu federatowi.
+    // Odtwarzanie zaczyna się REPLAY_START_DELAY_MS po synchronizacji (federat zdąży zasubskrybować)
+    // i kończy, gdy od REPLAY_IDLE_MS nic od niego nie przyszło
+    public static final String JOURNAL = System.getProperty("ferry.journal");
+    public static final long REPLAY_START_DELAY_MS = Long.getLong("ferry.replay.delay", 1000);
+    public static final long REPLAY_IDLE_MS = Long.getLong("ferry.replay.idle", 2000);
+
+    // Znaczniki wiadomości (-Dferry.tags=NONE|SEQUENCE|NANOTIME), domyślnie puste; nazwa
+    // polityki Common.MessageTags.Policy, trzymana jako tekst, by Config nie zależał od RTI
+    public static final String TAG_POLICY = System.getProperty("ferry.tags", "NONE").toUpperCase();
+
+    /** Arrival rate of "people" or "cars" at the given station (see ARRIVALS_PEOPLE) */
+    public static double arrivalRate(String type, int station) {
+        double defaultValue = type.equals("cars") ? ARRIVALS_CARS : ARRIVALS_PEOPLE;
+        return doubleProperty("ferry.arrivals." + type + "." + station, defaultValue);
+    }
+
+    private static double lookahead(String federateType, double defaultValue) {
+        return doubleProperty("ferry.lookahead." + federateType, defaultValue);
+    }
+
+    private static double doubleProperty(String name, double defaultValue) {
+        String value = System.getProperty(name);
+        return value == null ? defaultValue : Double.parseDouble(value);
+    }
+
 }
\ No newline at end of file
@@ -0,0 +1,57 @@
+package Config;
+
+import java.util.Locale;
+
+/**
+ * One point of an experiment plan: the model parameters the Manager broadcasts in
+ * RozpocznijSymulacje, including the names of the ferries' boarding and routing policies
+ * (Model.BoardingPolicy, Model.RoutingPolicy). Immutable, so the same instance can be
+ * handed from the RTI thread to the simulation thread.
+ */
+public final class ExperimentParameters {
+    public final int liczbaStacji;
+    public final int pojemnoscOsobPromu;
+    public final int maksPojemnoscStacji;
+    public final double prawdopodobienstwoSamochodu;
+    public final String politykaZaladunku;
+    public final String politykaTrasy;
+
+    /** A point with the policies of Config (-Dferry.boarding, -Dferry.routing) */
+    public ExperimentParameters(int liczbaStacji, int pojemnoscOsobPromu, int maksPojemnoscStacji,
+                                double prawdopodobienstwoSamochodu) {
+        this(liczbaStacji, pojemnoscOsobPromu, maksPojemnoscStacji, prawdopodobienstwoSamochodu,
+                Config.POLITYKA_ZALADUNKU, Config.POLITYKA_TRASY);
+    }
+
+    public ExperimentParameters(int liczbaStacji, int pojemnoscOsobPromu, int maksPojemnoscStacji,
+                                double prawdopodobienstwoSamochodu, String politykaZaladunku, String politykaTrasy) {
+        if (liczbaStacji < 1 || pojemnoscOsobPromu < 1 || maksPojemnoscStacji < 0)
+            throw new IllegalArgumentException("Invalid experiment parameters: " + liczbaStacji + " stations, ferry capacity "
+                    + pojemnoscOsobPromu + ", station capacity " + maksPojemnoscStacji);
+        if (prawdopodobienstwoSamochodu < 0.0 || prawdopodobienstwoSamochodu > 1.0)
+            throw new IllegalArgumentException("Car probability out of [0, 1]: " + prawdopodobienstwoSamochodu);
+        if (politykaZaladunku == null || politykaZaladunku.isEmpty() || politykaTrasy == null || politykaTrasy.isEmpty())
+            throw new IllegalArgumentException("Missing ferry policy: " + politykaZaladunku + ", " + politykaTrasy);
+
+        this.liczbaStacji = liczbaStacji;
+        this.pojemnoscOsobPromu = pojemnoscOsobPromu;
+        this.maksPojemnoscStacji = maksPojemnoscStacji;
+        this.prawdopodobienstwoSamochodu = prawdopodobienstwoSamochodu;
+        this.politykaZaladunku = politykaZaladunku;
+        this.politykaTrasy = politykaTrasy;
+    }
+
+    /** The values compiled into Config */
+    public static ExperimentParameters defaults() {
+        return new ExperimentParameters(Config.LICZBA_STACJI, Config.POJEMNOSC_OSOB_PROMU,
+                Config.MAKS_LACZNA_POJEMNOSC_STACJI, Config.CAR_PROBABILITY);
+    }
+
+    @Override
+    public String toString() {
+        return "stacje=" + liczbaStacji + ", pojemnoscPromu=" + pojemnoscOsobPromu
+                + ", maksPojemnoscStacji=" + maksPojemnoscStacji
+                + ", pSamochodu=" + String.format(Locale.ROOT, "%.3f", prawdopodobienstwoSamochodu)
+                + ", zaladunek=" + politykaZaladunku + ", trasa=" + politykaTrasy;
+    }
+}
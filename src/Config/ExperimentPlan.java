@@ -0,0 +1,254 @@
+package Config;
+
+import Model.BoardingPolicy;
+import Model.RoutingPolicy;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+
+/**
+ * Grid of experiment points the Manager runs in one federation launch. Each model
+ * parameter takes a list of values and the plan is their cartesian product; every
+ * point is run liczbaEksperymentow times.
+ * <p/>
+ * Values come from a properties file (-Dferry.config=plik, or config=plik on the command
+ * line) and are overridden by key=value arguments. A value is a comma separated list,
+ * whose items may also be ranges "od..do" or "od..do:krok", e.g.
+ * <pre>
+ *   liczbaStacji=3,5
+ *   maksPojemnoscStacji=20..100:20
+ *   prawdopodobienstwoSamochodu=0.0..0.3:0.1
+ *   politykaZaladunku=losowa,mieszana
+ *   politykaTrasy=kolejna,najdluzszaKolejka
+ *   liczbaEksperymentow=20
+ *   ziarno=42
+ * </pre>
+ * Policies are lists of names only (see Model.BoardingPolicy and Model.RoutingPolicy).
+ * Parameters that are not given keep their Config value. The master seed (ziarno) makes
+ * the whole plan reproducible: experiment n of the plan always draws the same numbers. The number of ferries and of
+ * Stacja partitions is fixed when the federates are launched, so it is not part of a plan.
+ */
+public final class ExperimentPlan {
+    public static final String LICZBA_STACJI = "liczbaStacji";
+    public static final String POJEMNOSC_OSOB_PROMU = "pojemnoscOsobPromu";
+    public static final String MAKS_POJEMNOSC_STACJI = "maksPojemnoscStacji";
+    public static final String PRAWDOPODOBIENSTWO_SAMOCHODU = "prawdopodobienstwoSamochodu";
+    public static final String POLITYKA_ZALADUNKU = "politykaZaladunku";
+    public static final String POLITYKA_TRASY = "politykaTrasy";
+    public static final String LICZBA_EKSPERYMENTOW = "liczbaEksperymentow";
+    public static final String ZIARNO = "ziarno";
+    private static final String CONFIG = "config";
+    private static final List<String> KEYS = List.of(LICZBA_STACJI, POJEMNOSC_OSOB_PROMU, MAKS_POJEMNOSC_STACJI,
+            PRAWDOPODOBIENSTWO_SAMOCHODU, POLITYKA_ZALADUNKU, POLITYKA_TRASY, LICZBA_EKSPERYMENTOW, ZIARNO);
+
+    private final List<ExperimentParameters> points;
+    private final int liczbaEksperymentow;
+    private final long ziarno;
+
+    private ExperimentPlan(List<ExperimentParameters> points, int liczbaEksperymentow, long ziarno) {
+        if (liczbaEksperymentow < 1)
+            throw new IllegalArgumentException(LICZBA_EKSPERYMENTOW + " must be positive: " + liczbaEksperymentow);
+        this.points = Collections.unmodifiableList(points);
+        this.liczbaEksperymentow = liczbaEksperymentow;
+        this.ziarno = ziarno;
+    }
+
+    /** Single point with the Config values, run Config.LICZBA_EKSPERYMENTOW times */
+    public static ExperimentPlan defaults() {
+        return new ExperimentPlan(List.of(ExperimentParameters.defaults()), Config.LICZBA_EKSPERYMENTOW, Config.ZIARNO);
+    }
+
+    /**
+     * Builds the plan from -Dferry.config and the key=value arguments (including an
+     * optional config=plik); arguments without '=' are ignored, so callers may pass
+     * their whole command line.
+     */
+    public static ExperimentPlan fromArgs(String[] args) throws IOException {
+        Properties properties = new Properties();
+        String file = System.getProperty("ferry.config");
+        for (String arg : args) {
+            if (arg.startsWith(CONFIG + "="))
+                file = arg.substring(CONFIG.length() + 1);
+        }
+        if (file != null) {
+            try (Reader reader = Files.newBufferedReader(Paths.get(file), StandardCharsets.UTF_8)) {
+                properties.load(reader);
+            }
+        }
+        for (String arg : args) {
+            int eq = arg.indexOf('=');
+            if (eq > 0 && !arg.startsWith(CONFIG + "="))
+                properties.setProperty(arg.substring(0, eq).trim(), arg.substring(eq + 1).trim());
+        }
+        return fromProperties(properties);
+    }
+
+    public static ExperimentPlan fromProperties(Properties properties) {
+        for (String key : properties.stringPropertyNames()) {
+            if (!KEYS.contains(key))
+                throw new IllegalArgumentException("Unknown experiment parameter '" + key + "', expected one of " + KEYS);
+        }
+
+        List<Integer> stacje = ints(properties, LICZBA_STACJI, Config.LICZBA_STACJI);
+        List<Integer> pojemnosci = ints(properties, POJEMNOSC_OSOB_PROMU, Config.POJEMNOSC_OSOB_PROMU);
+        List<Integer> maksima = ints(properties, MAKS_POJEMNOSC_STACJI, Config.MAKS_LACZNA_POJEMNOSC_STACJI);
+        List<Double> prawdopodobienstwa = doubles(properties, PRAWDOPODOBIENSTWO_SAMOCHODU, Config.CAR_PROBABILITY);
+        List<String> zaladunki = names(properties, POLITYKA_ZALADUNKU, Config.POLITYKA_ZALADUNKU);
+        List<String> trasy = names(properties, POLITYKA_TRASY, Config.POLITYKA_TRASY);
+        // fail here rather than in the middle of a federation run
+        zaladunki.forEach(BoardingPolicy::named);
+        trasy.forEach(RoutingPolicy::named);
+        List<Integer> powtorzenia = ints(properties, LICZBA_EKSPERYMENTOW, Config.LICZBA_EKSPERYMENTOW);
+        if (powtorzenia.size() != 1)
+            throw new IllegalArgumentException(LICZBA_EKSPERYMENTOW + " takes a single value: " + powtorzenia);
+
+        long ziarno;
+        try {
+            ziarno = Long.parseLong(properties.getProperty(ZIARNO, Long.toString(Config.ZIARNO)).trim());
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException(ZIARNO + " takes a single integer: " + properties.getProperty(ZIARNO), e);
+        }
+
+        // station count outermost, so the Stacja federates re-register their stations as rarely as possible
+        List<ExperimentParameters> points = new ArrayList<>();
+        for (int liczbaStacji : stacje)
+            for (int pojemnosc : pojemnosci)
+                for (int maks : maksima)
+                    for (double p : prawdopodobienstwa)
+                        for (String zaladunek : zaladunki)
+                            for (String trasa : trasy)
+                                points.add(new ExperimentParameters(liczbaStacji, pojemnosc, maks, p, zaladunek, trasa));
+        return new ExperimentPlan(points, powtorzenia.get(0), ziarno);
+    }
+
+    /** The same plan with another master seed, e.g. the one of a run being resumed */
+    public ExperimentPlan withZiarno(long ziarno) {
+        return new ExperimentPlan(points, liczbaEksperymentow, ziarno);
+    }
+
+    public List<ExperimentParameters> points() {
+        return points;
+    }
+
+    /** How many times each point is run */
+    public int liczbaEksperymentow() {
+        return liczbaEksperymentow;
+    }
+
+    /** Master seed the experiment seeds are derived from (see Model.RandomStreams) */
+    public long ziarno() {
+        return ziarno;
+    }
+
+    public int totalExperiments() {
+        return points.size() * liczbaEksperymentow;
+    }
+
+    @Override
+    public String toString() {
+        return points.size() + " points x " + liczbaEksperymentow + " experiments, ziarno " + ziarno;
+    }
+
+    private static List<String> names(Properties properties, String key, String defaultValue) {
+        String value = properties.getProperty(key);
+        if (value == null)
+            return List.of(defaultValue);
+
+        List<String> values = new ArrayList<>();
+        for (String item : value.split(",")) {
+            if (!item.trim().isEmpty())
+                values.add(item.trim());
+        }
+        if (values.isEmpty())
+            throw new IllegalArgumentException(key + ": no policy in '" + value + "'");
+        return values;
+    }
+
+    private static List<Integer> ints(Properties properties, String key, int defaultValue) {
+        String value = properties.getProperty(key);
+        if (value == null)
+            return List.of(defaultValue);
+
+        List<Integer> values = new ArrayList<>();
+        try {
+            for (String item : value.split(",")) {
+                String[] range = range(key, item);
+                if (range.length == 1) {
+                    values.add(Integer.parseInt(range[0]));
+                    continue;
+                }
+                int from = Integer.parseInt(range[0]);
+                int to = Integer.parseInt(range[1]);
+                int step = range.length > 2 ? Integer.parseInt(range[2]) : 1;
+                if (step <= 0)
+                    throw new IllegalArgumentException(key + ": step must be positive in '" + item + "'");
+                if (from > to)
+                    throw new IllegalArgumentException(key + ": range goes down in '" + item + "'");
+                for (int v = from; v <= to; v += step)
+                    values.add(v);
+            }
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException(key + ": not an integer list '" + value + "'", e);
+        }
+        if (values.isEmpty())
+            throw new IllegalArgumentException(key + ": no value in '" + value + "'");
+        return values;
+    }
+
+    private static List<Double> doubles(Properties properties, String key, double defaultValue) {
+        String value = properties.getProperty(key);
+        if (value == null)
+            return List.of(defaultValue);
+
+        List<Double> values = new ArrayList<>();
+        try {
+            for (String item : value.split(",")) {
+                String[] range = range(key, item);
+                if (range.length == 1) {
+                    values.add(Double.parseDouble(range[0]));
+                    continue;
+                }
+                double from = Double.parseDouble(range[0]);
+                double to = Double.parseDouble(range[1]);
+                double step = range.length > 2 ? Double.parseDouble(range[2]) : 1.0;
+                if (step <= 0)
+                    throw new IllegalArgumentException(key + ": step must be positive in '" + item + "'");
+                if (from > to)
+                    throw new IllegalArgumentException(key + ": range goes down in '" + item + "'");
+                // counted in steps, so 0.1 + 0.1 + 0.1 does not miss the upper bound
+                long steps = (long) Math.floor((to - from) / step + 1e-9);
+                for (long i = 0; i <= steps; i++)
+                    values.add(from + i * step);
+            }
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException(key + ": not a number list '" + value + "'", e);
+        }
+        if (values.isEmpty())
+            throw new IllegalArgumentException(key + ": no value in '" + value + "'");
+        return values;
+    }
+
+    /** Splits "od..do:krok" into its parts; a plain value comes back as a single element */
+    private static String[] range(String key, String item) {
+        String trimmed = item.trim();
+        int dots = trimmed.indexOf("..");
+        if (dots < 0)
+            return new String[]{trimmed};
+
+        String from = trimmed.substring(0, dots);
+        String rest = trimmed.substring(dots + 2);
+        int colon = rest.indexOf(':');
+        if (colon < 0)
+            return new String[]{from.trim(), rest.trim()};
+        if (rest.substring(colon + 1).trim().isEmpty())
+            throw new IllegalArgumentException(key + ": missing step in '" + item + "'");
+        return new String[]{from.trim(), rest.substring(0, colon).trim(), rest.substring(colon + 1).trim()};
+    }
+}
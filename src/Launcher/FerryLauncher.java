@@ -0,0 +1,165 @@
+package Launcher;
+
+import Common.Log;
+import Config.Config;
+import Config.ExperimentPlan;
+import Manager.ManagerFederate;
+import Prom.PromFederate;
+import Recorder.RecorderFederate;
+import Stacja.StacjaFederate;
+
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs the Manager, Config.LICZBA_PROMOW Prom federates and Config.LICZBA_PARTYCJI_STACJI
+ * Stacja federates inside a single JVM, each on its own thread with its own RTIambassador.
+ * All of them run headless: the Manager creates the federation (and is the only one to
+ * load the FOM), the other federates are started once it has joined, and they are stopped
+ * as soon as the Manager finishes its experiments.
+ * <p/>
+ * The arguments are handed to the Manager as its experiment plan, e.g.
+ * {@code config=sweep.properties} or {@code maksPojemnoscStacji=20..100:20} (see ExperimentPlan).
+ * With -Dferry.journal=<file> a Recorder federate joins before the others and journals the run.
+ * The exit status is 1 when the Manager never joined, any federate thread failed or a
+ * federate did not leave within STOP_TIMEOUT_MS of being stopped.
+ */
+public class FerryLauncher
+{
+	//----------------------------------------------------------
+	//                    STATIC VARIABLES
+	//----------------------------------------------------------
+	private static final Log LOG = Log.get( "FerryLauncher     " );
+	private static final List<Throwable> failures = new CopyOnWriteArrayList<>();
+	// how long a stopped federate gets to resign before the launcher gives up on it
+	private static final long STOP_TIMEOUT_MS = 10_000;
+
+	//----------------------------------------------------------
+	//                     STATIC METHODS
+	//----------------------------------------------------------
+	private static void log( String message )
+	{
+		LOG.info( message );
+	}
+
+	private interface FederateTask
+	{
+		void run() throws Exception;
+	}
+
+	private static Thread start( String name, FederateTask task )
+	{
+		Thread thread = new Thread( () -> {
+			try
+			{
+				task.run();
+			}
+			catch( Exception e )
+			{
+				log( name + " failed: " + e );
+				e.printStackTrace();
+				failures.add( e );
+			}
+		}, name );
+		thread.start();
+		return thread;
+	}
+
+	/** Waits for a stopped federate; false if it is still running after STOP_TIMEOUT_MS */
+	private static boolean awaitStopped( Thread thread ) throws InterruptedException
+	{
+		thread.join( STOP_TIMEOUT_MS );
+		if( !thread.isAlive() )
+			return true;
+		log( thread.getName() + " did not leave the federation within " + STOP_TIMEOUT_MS + " ms" );
+		return false;
+	}
+
+	public static void main( String[] args ) throws InterruptedException, IOException
+	{
+		long startTime = System.nanoTime();
+
+		ManagerFederate manager = new ManagerFederate( true, ExperimentPlan.fromArgs(args) );
+		List<PromFederate> proms = new ArrayList<>();
+		for( int i = 0; i < Config.LICZBA_PROMOW; i++ )
+		{
+			// ferry i starts at station i % liczbaStacji, so they do not all start at station 0
+			proms.add( new PromFederate(true, i) );
+		}
+		List<StacjaFederate> stacje = new ArrayList<>();
+		for( int i = 0; i < Config.LICZBA_PARTYCJI_STACJI; i++ )
+		{
+			stacje.add( new StacjaFederate(true, i, Config.LICZBA_PARTYCJI_STACJI) );
+		}
+
+		Thread managerThread = start( "Manager", () -> manager.runFederate("Manager") );
+		while( !manager.awaitJoined(100, TimeUnit.MILLISECONDS) )
+		{
+			if( !managerThread.isAlive() )
+			{
+				log( "Manager exited before joining the federation" );
+				Log.flush();
+				System.exit( 1 );
+			}
+		}
+
+		// the recorder has to be subscribed before the first ferry or station joins
+		RecorderFederate recorder = Config.JOURNAL == null ? null : new RecorderFederate( Paths.get(Config.JOURNAL) );
+		Thread recorderThread = null;
+		if( recorder != null )
+		{
+			recorderThread = start( "Recorder", () -> recorder.runFederate("Recorder") );
+			while( !recorder.awaitJoined(100, TimeUnit.MILLISECONDS) )
+			{
+				if( !recorderThread.isAlive() )
+				{
+					log( "Recorder exited before joining the federation, the run is not journaled" );
+					break;
+				}
+			}
+		}
+
+		List<Thread> promThreads = new ArrayList<>();
+		for( int i = 0; i < proms.size(); i++ )
+		{
+			PromFederate prom = proms.get( i );
+			String name = proms.size() == 1 ? "Prom" : "Prom" + (i + 1);
+			promThreads.add( start(name, () -> prom.runFederate(name)) );
+		}
+		List<Thread> stacjaThreads = new ArrayList<>();
+		for( int i = 0; i < stacje.size(); i++ )
+		{
+			StacjaFederate stacja = stacje.get( i );
+			String name = stacje.size() == 1 ? "Stacja" : "Stacja" + i;
+			stacjaThreads.add( start(name, () -> stacja.runFederate(name)) );
+		}
+
+		// stop() also breaks the sync point and time grant waits, so the others leave
+		// even when the Manager failed halfway
+		managerThread.join();
+		proms.forEach( PromFederate::stop );
+		stacje.forEach( StacjaFederate::stop );
+		boolean allStopped = true;
+		for( Thread promThread : promThreads )
+			allStopped &= awaitStopped( promThread );
+		for( Thread stacjaThread : stacjaThreads )
+			allStopped &= awaitStopped( stacjaThread );
+		if( recorder != null )
+		{
+			recorder.stop();
+			allStopped &= awaitStopped( recorderThread );
+		}
+
+		long elapsed = TimeUnit.NANOSECONDS.toMillis( System.nanoTime() - startTime );
+		log( "Finished in " + elapsed + " ms, failures: " + failures.size() );
+		Log.flush();
+		// a nightly batch run has to see a failed federate in the exit status; exit() also
+		// ends federate threads that are still stuck
+		if( !failures.isEmpty() || !allStopped )
+			System.exit( 1 );
+	}
+}
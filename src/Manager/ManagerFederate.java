@@ -14,7 +14,18 @@
  */
 package Manager;
 
+import Common.CallbackQueue;
+import Common.HlaCodec;
+import Common.Log;
+import Common.MessageTags;
+import Common.Metrics;
+import Common.Snapshots;
+import Common.StreamingStats;
 import Config.Config;
+import Config.ExperimentParameters;
+import Config.ExperimentPlan;
+import Model.QueueStatistics;
+import Model.RandomStreams;
 import hla.rti1516e.*;
 import hla.rti1516e.encoding.EncoderFactory;
 import hla.rti1516e.exceptions.*;
@@ -23,26 +34,38 @@ import hla.rti1516e.time.HLAfloat64Time;
 import hla.rti1516e.time.HLAfloat64TimeFactory;
 
 import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
+import java.io.IOException;
 import java.io.InputStreamReader;
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 
 public class ManagerFederate
 {
 	//----------------------------------------------------------
 	//                    STATIC VARIABLES
 	//----------------------------------------------------------
+	private static final Log LOG = Log.get( "ManagerFederate   " );
 	/** The number of times we will update our attributes and send an interaction */
 	public static final int ITERATIONS = 20;
 
 	/** The sync point all federates will sync up on before starting */
 	public static final String READY_TO_RUN = "ReadyToRun";
 
+	/** How often (in ms) the MOM is asked again for the joined federates while running headless */
+	private static final long MOM_POLL_INTERVAL_MS = 1000;
+
 	//----------------------------------------------------------
 	//                   INSTANCE VARIABLES
 	//----------------------------------------------------------
@@ -51,26 +74,101 @@ public class ManagerFederate
 	private HLAfloat64TimeFactory timeFactory; // set when we join
 	protected EncoderFactory encoderFactory;     // set when we join
 
+	// HLA_IMMEDIATE: callbacks are handed over through this queue (see Config.IMMEDIATE_CALLBACKS)
+	protected boolean immediateCallbacks = Config.IMMEDIATE_CALLBACKS;
+	protected final CallbackQueue callbacks = new CallbackQueue();
+	protected MessageTags tags = new MessageTags( MessageTags.Policy.valueOf(Config.TAG_POLICY) );
+
+	// instrumentation, written to Config.METRICS_DIR when the federate leaves
+	protected final Metrics metrics = new Metrics( "Manager" );
+	protected final Metrics.Counter callbacksDelivered = metrics.counter( "callbacks" );
+	protected final Metrics.Histogram messageLatency = metrics.timer( "message.latency" );
+	private final Metrics.Histogram callbacksPerTick = metrics.histogram( "callbacks.per.tick" );
+	private final Metrics.Histogram timeAdvanceGrant = metrics.timer( "rti.timeAdvanceRequest.grant" );
+	private final Metrics.Histogram nextMessageGrant = metrics.timer( "rti.nextMessageRequest.grant" );
+	private final Metrics.Histogram interactionSend = metrics.timer( "rti.sendInteraction" );
+	private final Metrics.Histogram experimentTime = metrics.timer( "experiment.wallclock" );
+	private final Metrics.Counter unreadableWaitReports = metrics.counter( "waitReports.unreadable" );
+
 	// caches of handle types - set once we join a federation
 	protected InteractionClassHandle rozpocznijSymulacjeHandle;
 	protected InteractionClassHandle wszystkieJednostkiPrzetransportowaneHandle;
+	protected ParameterHandle liczbaStacjiParam, pojemnoscOsobParam, maksPojemnoscStacjiParam, prawdopodobienstwoSamochoduParam;
+	protected ParameterHandle ziarnoParam, numerEksperymentuParam, politykaZaladunkuParam, politykaTrasyParam;
+	protected ParameterHandle liczbaWykonanychKursowParam;
+	protected InteractionClassHandle statystykiOczekiwaniaHandle;
+	protected ParameterHandle statystykiPartycjaParam, statystykiParam;
+	protected ObjectClassHandle momFederateHandle;
+	protected AttributeHandle momFederateTypeHandle;
+
+	// when true, waitForFederates() replaces waitForUser() (see Config.HEADLESS)
+	protected boolean headless;
+
+	// points to run and how many experiments per point (see ExperimentPlan); a resumed
+	// run takes over the master seed of the run it continues
+	protected ExperimentPlan plan;
+
+	// released once the federation exists and we have joined it
+	private final CountDownLatch joined = new CountDownLatch( 1 );
 
 	protected int currentTripCount = 0;
 	protected Map<Integer, int[]> stationQueuesState = new HashMap<>();
-	protected List<Integer> tripResults = new ArrayList<>();
+
+	// results: statistics kept incrementally, rows streamed to Config.RESULTS_DIR as they arrive
+	private StreamingStats tripStats = new StreamingStats();
+	private StreamingStats pointStats = new StreamingStats();
+	private final List<String> pointSummaries = new ArrayList<>();
+	private ResultsWriter results;                // null when results are not written
+	private ExperimentParameters currentPoint;
+	private int currentPointIndex;
+	private int currentExperiment;
+	private long experimentStart;
+	// waiting times and queue lengths, reported by every Stacja partition at the end of an experiment
+	private QueueStatistics.Report experimentWaits = new QueueStatistics.Report();
+	private QueueStatistics.Report runWaits = new QueueStatistics.Report();
+
+	// checkpoints (see Config.CHECKPOINT_DIR): where a resumed run continues
+	private String federateName;
+	private int firstExperiment = 0;
+	private long[] resumedPositions;              // results positions saved with the checkpoint
 	//----------------------------------------------------------
 	//                      CONSTRUCTORS
 	//----------------------------------------------------------
+	public ManagerFederate()
+	{
+		this( Config.HEADLESS );
+	}
+
+	public ManagerFederate( boolean headless )
+	{
+		this( headless, ExperimentPlan.defaults() );
+	}
+
+	public ManagerFederate( boolean headless, ExperimentPlan plan )
+	{
+		this.headless = headless;
+		this.plan = plan;
+	}
 
 	//----------------------------------------------------------
 	//                    INSTANCE METHODS
 	//----------------------------------------------------------
+	/**
+	 * Waits until this federate has created (or found) the federation and joined it.
+	 * Used by the in-process launcher to start the other federates only once the FOM
+	 * has been loaded by the Manager. Returns false if the timeout elapsed first.
+	 */
+	public boolean awaitJoined( long timeout, TimeUnit unit ) throws InterruptedException
+	{
+		return joined.await( timeout, unit );
+	}
+
 	/**
 	 * This is just a helper method to make sure all logging it output in the same form
 	 */
 	private void log( String message )
 	{
-		System.out.println( "ManagerFederate   : " + message );
+		LOG.info( message );
 	}
 
 	/**
@@ -91,6 +189,69 @@ public class ManagerFederate
 		}
 	}
 
+	/**
+	 * Headless counterpart of {@link #waitForUser()}. Subscribes to the MOM federate
+	 * objects and blocks until every type listed in Config.EXPECTED_FEDERATE_TYPES has
+	 * joined the federation (Prom Config.LICZBA_PROMOW times, Station once per partition),
+	 * so the Manager can achieve ReadyToRun on its own.
+	 */
+	private void waitForFederates() throws RTIexception
+	{
+		Map<String, Integer> expected = new HashMap<>();
+		for( String type : Config.EXPECTED_FEDERATE_TYPES )
+			expected.put( type, expectedCount(type) );
+		log( "Headless mode, waiting for federate types: " + expected );
+
+		momFederateHandle = rtiamb.getObjectClassHandle( "HLAobjectRoot.HLAmanager.HLAfederate" );
+		momFederateTypeHandle = rtiamb.getAttributeHandle( momFederateHandle, "HLAfederateType" );
+		AttributeHandleSet momAttributes = rtiamb.getAttributeHandleSetFactory().create();
+		momAttributes.add( momFederateTypeHandle );
+		rtiamb.subscribeObjectClassAttributes( momFederateHandle, momAttributes );
+
+		long deadline = System.currentTimeMillis() + Config.HEADLESS_JOIN_TIMEOUT_MS;
+		long nextPoll = 0;
+		while( !allJoined(expected) )
+		{
+			long now = System.currentTimeMillis();
+			if( now > deadline )
+			{
+				throw new IllegalStateException( "Timed out waiting for federates, joined types: " +
+				                                 fedamb.joinedFederateTypes.values() );
+			}
+
+			// the MOM only reflects federate attributes on request
+			if( now >= nextPoll )
+			{
+				rtiamb.requestAttributeValueUpdate( momFederateHandle, momAttributes, null );
+				nextPoll = now + MOM_POLL_INTERVAL_MS;
+			}
+			tick();
+		}
+
+		rtiamb.unsubscribeObjectClass( momFederateHandle );
+		log( "All expected federate types joined: " + fedamb.joinedFederateTypes.values() );
+	}
+
+	private static int expectedCount( String federateType )
+	{
+		switch( federateType )
+		{
+			case "Prom":    return Config.LICZBA_PROMOW;
+			case "Station": return Config.LICZBA_PARTYCJI_STACJI;
+			default:        return 1;
+		}
+	}
+
+	private boolean allJoined( Map<String, Integer> expected )
+	{
+		for( Map.Entry<String, Integer> entry : expected.entrySet() )
+		{
+			if( Collections.frequency(fedamb.joinedFederateTypes.values(), entry.getKey()) < entry.getValue() )
+				return false;
+		}
+		return true;
+	}
+
 	///////////////////////////////////////////////////////////////////////////
 	////////////////////////// Main Simulation Method /////////////////////////
 	///////////////////////////////////////////////////////////////////////////
@@ -111,7 +272,7 @@ public class ManagerFederate
 		// connect
 		log( "Connecting..." );
 		fedamb = new ManagerFederateAmbassador( this );
-		rtiamb.connect( fedamb, CallbackModel.HLA_EVOKED );
+		rtiamb.connect( fedamb, immediateCallbacks ? CallbackModel.HLA_IMMEDIATE : CallbackModel.HLA_EVOKED );
 
 		//////////////////////////////
 		// 3. create the federation //
@@ -148,7 +309,25 @@ public class ManagerFederate
 		                                 );           // modules we want to add
 
 		log( "Joined Federation as " + federateName );
+		this.federateName = federateName;
+		joined.countDown();
 
+		// a failure from here on (e.g. the headless join timeout) must not leave the
+		// federation behind with the other federates waiting for ReadyToRun
+		try
+		{
+			runJoined( federateName );
+		}
+		catch( Exception e )
+		{
+			abandonFederation();
+			throw e;
+		}
+	}
+
+	/** Steps 5 to 10 of runFederate, once we have joined the federation */
+	private void runJoined( String federateName ) throws Exception
+	{
 		// cache the time factory for easy access
 		this.timeFactory = (HLAfloat64TimeFactory)rtiamb.getTimeFactory();
 
@@ -162,14 +341,17 @@ public class ManagerFederate
 		// wait until the point is announced
 		while( fedamb.isAnnounced == false )
 		{
-			rtiamb.evokeMultipleCallbacks( 0.1, 0.2 );
+			tick();
 		}
 
 		// WAIT FOR USER TO KICK US OFF
 		// So that there is time to add other federates, we will wait until the
 		// user hits enter before proceeding. That was, you have time to start
-		// other federates.
-		waitForUser();
+		// other federates. In headless mode we wait for the federates themselves.
+		if( headless )
+			waitForFederates();
+		else
+			waitForUser();
 
 		///////////////////////////////////////////////////////
 		// 6. achieve the point and wait for synchronization //
@@ -180,7 +362,7 @@ public class ManagerFederate
 		log( "Achieved sync point: " +READY_TO_RUN+ ", waiting for federation..." );
 		while( fedamb.isReadyToRun == false )
 		{
-			rtiamb.evokeMultipleCallbacks( 0.1, 0.2 );
+			tick();
 		}
 
 		/////////////////////////////
@@ -206,24 +388,67 @@ public class ManagerFederate
 		// update the attribute values of the object we registered, and will
 		// send an interaction.
 
-		for (int i = 0; i < Config.LICZBA_EKSPERYMENTOW; i++) {
-			log("=============== ROZPOCZYNAM EKSPERYMENT " + (i + 1) + "/" + Config.LICZBA_EKSPERYMENTOW + " ===============");
-			fedamb.isExperimentRunning = true;
-			sendStartSimulationInteraction();
-
-			while (fedamb.isExperimentRunning) {
-				advanceTime(1.0);
-				rtiamb.evokeMultipleCallbacks(0.0, 0.1);
+		if (Config.RESUME != null) {
+			resume();
+		}
+		log("Plan eksperymentów: " + plan);
+		openResults(federateName);
+
+		// a resumed run continues in the point of the last completed experiment, so that a
+		// checkpoint taken at the end of a point still gets the summary of that point
+		int perPoint = plan.liczbaEksperymentow();
+		int firstPoint = firstExperiment == 0 ? 0 : (firstExperiment - 1) / perPoint;
+		currentExperiment = firstExperiment;
+		for (currentPointIndex = firstPoint; currentPointIndex < plan.points().size(); currentPointIndex++) {
+			currentPoint = plan.points().get(currentPointIndex);
+			int first = 0;
+			if (currentPointIndex == firstPoint && firstExperiment > 0) {
+				first = firstExperiment - firstPoint * perPoint;
+			} else {
+				pointStats = new StreamingStats();
 			}
-			log("=============== EKSPERYMENT " + (i + 1) + " ZAKOŃCZONY ===============");
+			log("=============== PUNKT " + (currentPointIndex + 1) + "/" + plan.points().size() + ": " + currentPoint + " ===============");
+			for (int i = first; i < perPoint; i++) {
+				log("=============== ROZPOCZYNAM EKSPERYMENT " + (currentExperiment + 1) + "/" + plan.totalExperiments() + " ===============");
+				experimentStart = System.nanoTime();
+				fedamb.isExperimentRunning = true;
+				fedamb.pendingWaitReports = Config.LICZBA_PARTYCJI_STACJI;
+				sendStartSimulationInteraction(currentPoint, currentExperiment);
+
+				while (fedamb.isExperimentRunning || fedamb.pendingWaitReports > 0) {
+					advanceIdle();
+					tick();
+				}
+				experimentTime.recordSince(experimentStart);
+				log("Oczekiwanie na stacjach: " + experimentWaits);
+				runWaits.addExperiment(experimentWaits);
+				experimentWaits = new QueueStatistics.Report();
+				log("=============== EKSPERYMENT " + (currentExperiment + 1) + " ZAKOŃCZONY ===============");
+				currentExperiment++;
+
+				if (Config.CHECKPOINT_DIR != null && (currentExperiment % Config.CHECKPOINT_EVERY == 0
+				                                      || currentExperiment == plan.totalExperiments())) {
+					saveFederation("eksperyment-" + currentExperiment);
+				}
+			}
+
+			log("Liczba kursów dla " + currentPoint + ": " + pointStats);
+			pointSummaries.add(String.format("  %-70s %s", currentPoint, pointStats));
+			writeSummary();
 		}
+		closeResults();
 
-		double averageTrips = tripResults.stream().mapToInt(val -> val).average().orElse(0.0);
 		log("\n================== WYNIKI KOŃCOWE ==================");
-		log("Liczba eksperymentów: " + Config.LICZBA_EKSPERYMENTOW);
-		log("Maks. poj. kolejki na stacji: " + Config.MAKS_LACZNA_POJEMNOSC_STACJI);
-		log("Średnia liczba kursów potrzebna do obsłużenia kolejek: " + String.format("%.2f", averageTrips));
+		log("Liczba eksperymentów: " + plan.totalExperiments() + " (" + plan + ")");
+		pointSummaries.forEach(this::log);
+		log("Liczba kursów potrzebna do obsłużenia kolejek: " + tripStats);
+		log("Oczekiwanie na stacjach (wszystkie eksperymenty): " + runWaits);
+		if (unreadableWaitReports.get() > 0)
+			log("UWAGA: statystyki oczekiwania są niepełne, nieodczytanych raportów: " + unreadableWaitReports.get());
 		log("====================================================\n");
+		if( !tags.latencySummary().isEmpty() )
+			log( "Message latency: " + tags.latencySummary() );
+		dumpMetrics( federateName );
 
 		resignFederation();
 	}
@@ -236,19 +461,246 @@ public class ManagerFederate
 	 * the federate
 	 */
 
-	private void sendStartSimulationInteraction() throws RTIexception {
+	/**
+	 * Starts one experiment. Besides the model parameters and the ferry policies it carries
+	 * the master seed and the number of the experiment in the plan, from which every
+	 * federate derives its random streams (see Model.RandomStreams).
+	 */
+	private void sendStartSimulationInteraction(ExperimentParameters point, int experiment) throws RTIexception {
 		log("Sending 'RozpocznijSymulacje' interaction");
-		ParameterHandleValueMap parameters = rtiamb.getParameterHandleValueMapFactory().create(2);
+		ParameterHandleValueMap parameters = rtiamb.getParameterHandleValueMapFactory().create(8);
+
+		parameters.put(liczbaStacjiParam, HlaCodec.encodeInt32(point.liczbaStacji));
+		parameters.put(pojemnoscOsobParam, HlaCodec.encodeInt32(point.pojemnoscOsobPromu));
+		parameters.put(maksPojemnoscStacjiParam, HlaCodec.encodeInt32(point.maksPojemnoscStacji));
+		parameters.put(prawdopodobienstwoSamochoduParam, HlaCodec.encodeFloat64(point.prawdopodobienstwoSamochodu));
+		parameters.put(ziarnoParam, HlaCodec.encodeInt64(plan.ziarno()));
+		parameters.put(numerEksperymentuParam, HlaCodec.encodeInt32(experiment));
+		parameters.put(politykaZaladunkuParam, encoderFactory.createHLAunicodeString(point.politykaZaladunku).toByteArray());
+		parameters.put(politykaTrasyParam, encoderFactory.createHLAunicodeString(point.politykaTrasy).toByteArray());
+
+		HLAfloat64Time time = sendTime();
+		sendInteraction(rozpocznijSymulacjeHandle, parameters, time);
+		log("Scheduled 'RozpocznijSymulacje' interaction for time: " + time.getValue());
+	}
 
-		parameters.put(rtiamb.getParameterHandle(rozpocznijSymulacjeHandle, "LiczbaStacji"),
-				encoderFactory.createHLAinteger32BE(Config.LICZBA_STACJI).toByteArray());
-		parameters.put(rtiamb.getParameterHandle(rozpocznijSymulacjeHandle, "PojemnoscOsobPromu"),
-				encoderFactory.createHLAinteger32BE(Config.POJEMNOSC_OSOB_PROMU).toByteArray());
+	/**
+	 * Result of the running experiment, as reported by the Stacja in
+	 * WszystkieJednostkiPrzetransportowane at the given logical time. Goes into the
+	 * statistics and straight to the results files.
+	 */
+	protected void recordExperimentResult(int liczbaKursow, double czasZakonczenia) {
+		tripStats.add(liczbaKursow);
+		pointStats.add(liczbaKursow);
+		if (results == null) {
+			return;
+		}
+		try {
+			results.write(currentExperiment, currentPointIndex, currentPoint, plan.ziarno(),
+			              RandomStreams.experimentSeed(plan.ziarno(), currentExperiment), liczbaKursow,
+			              czasZakonczenia, System.nanoTime() - experimentStart);
+		} catch (IOException e) {
+			log("Could not write experiment result, results are no longer written: " + e.getMessage());
+			closeResults();
+		}
+	}
 
+	/** Waiting times and queue lengths of one Stacja partition in the running experiment */
+	protected void recordWaitReport(int partycja, QueueStatistics.Report report) {
+		LOG.debug(() -> "Statystyki oczekiwania partycji " + partycja + ": " + report);
+		experimentWaits.merge(report);
+	}
 
-		HLAfloat64Time time = timeFactory.makeTime(fedamb.federateTime + fedamb.federateLookahead);
-		rtiamb.sendInteraction(rozpocznijSymulacjeHandle, parameters, generateTag(), time);
-		log("Scheduled 'RozpocznijSymulacje' interaction for time: " + time.getValue());
+	/** A wait report that could not be decoded; the statistics of the experiment lack that partition */
+	protected void recordUnreadableWaitReport(String reason) {
+		unreadableWaitReports.increment();
+		LOG.error("Nie udało się odczytać statystyk oczekiwania w eksperymencie " + (currentExperiment + 1) +
+		          ", brakuje w nich jednej partycji: " + reason);
+	}
+
+	/** Opens the results files in Config.RESULTS_DIR, if one is configured */
+	private void openResults(String federateName) {
+		if (Config.RESULTS_DIR == null) {
+			return;
+		}
+		try {
+			ResultsWriter.Format format = ResultsWriter.Format.valueOf(Config.RESULTS_FORMAT);
+			Path directory = Paths.get(Config.RESULTS_DIR);
+			results = resumedPositions == null ? ResultsWriter.open(directory, federateName, format)
+			                                   : ResultsWriter.resume(directory, federateName, format, resumedPositions);
+			log("Writing results to " + Config.RESULTS_DIR + " (" + Config.RESULTS_FORMAT + ")");
+		} catch (IOException e) {
+			log("Could not open results in " + Config.RESULTS_DIR + ": " + e.getMessage());
+		}
+	}
+
+	private void writeSummary() {
+		if (results == null) {
+			return;
+		}
+		try {
+			results.writeSummary(currentPointIndex, currentPoint, pointStats);
+		} catch (IOException e) {
+			log("Could not write point summary, results are no longer written: " + e.getMessage());
+			closeResults();
+		}
+	}
+
+	private void closeResults() {
+		if (results == null) {
+			return;
+		}
+		try {
+			results.close();
+		} catch (IOException e) {
+			log("Could not close results: " + e.getMessage());
+		}
+		results = null;
+	}
+
+	///////////////////////////////////////////////////////////////////////////
+	////////////////////////////// Checkpoints ////////////////////////////////
+	///////////////////////////////////////////////////////////////////////////
+	/**
+	 * Saves the whole federation under the given label, between two experiments. Every
+	 * federate writes its snapshot when the RTI asks for it (see saveState); once the RTI
+	 * reports the federation saved the label becomes the "latest" one to resume from.
+	 */
+	private void saveFederation(String label) throws RTIexception {
+		log("Saving federation as " + label);
+		fedamb.saveAnswered = false;
+		rtiamb.requestFederationSave(label);
+		while (!fedamb.saveAnswered) {
+			tick();
+		}
+		if (!fedamb.saveSucceeded) {
+			log("Federation was not saved as " + label + ", the run continues without this checkpoint");
+			return;
+		}
+		try {
+			Snapshots.markLatest(label);
+		} catch (IOException e) {
+			log("Could not mark " + label + " as the latest checkpoint: " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Continues the run saved under Config.RESUME. If the federation still knows the save,
+	 * the whole federation is restored. After a crash the federation execution (and with
+	 * it the save) is gone; the other federates start over anyway at the next
+	 * RozpocznijSymulacje, so only the Manager's own snapshot is read from disk.
+	 */
+	private void resume() throws RTIexception, IOException {
+		String label = Snapshots.resolve(Config.RESUME);
+		log("Resuming from checkpoint " + label);
+		fedamb.restoreAnswered = false;
+		fedamb.restoreFinished = false;
+		rtiamb.requestFederationRestore(label);
+		while (!fedamb.restoreAnswered) {
+			tick();
+		}
+		if (fedamb.restoreGranted) {
+			while (!fedamb.restoreFinished) {
+				tick();
+			}
+		} else {
+			log("The federation has no save " + label + ", reading the snapshot of " + federateName + " only");
+			Snapshots.read(label, federateName, "Manager", in -> readState(in, false));
+		}
+		log("Resumed after " + firstExperiment + " of " + plan.totalExperiments() + " experiments");
+	}
+
+	/** Federation save: the progress through the plan, the statistics so far and the results positions */
+	protected void saveState(String label) {
+		try {
+			rtiamb.federateSaveBegun();
+			Snapshots.write(label, federateName, "Manager", this::writeState);
+			rtiamb.federateSaveComplete();
+			log("Saved state as " + label);
+		} catch (IOException | RTIexception e) {
+			log("Could not save state as " + label + ": " + e.getMessage());
+			try {
+				rtiamb.federateSaveNotComplete();
+			} catch (RTIexception notComplete) {
+				notComplete.printStackTrace();
+			}
+		}
+	}
+
+	/** Federation restore: reads back the snapshot this federate saved under the given name */
+	protected void loadState(String label, String savedName) {
+		try {
+			Snapshots.read(label, savedName, "Manager", in -> readState(in, true));
+			rtiamb.federateRestoreComplete();
+			log("Restored state of " + savedName + " from " + label);
+		} catch (IOException | RTIexception e) {
+			log("Could not restore state from " + label + ": " + e.getMessage());
+			try {
+				rtiamb.federateRestoreNotComplete();
+			} catch (RTIexception notComplete) {
+				notComplete.printStackTrace();
+			}
+		}
+	}
+
+	private void writeState(DataOutputStream out) throws IOException {
+		out.writeInt(plan.liczbaEksperymentow());
+		out.writeInt(plan.points().size());
+		for (ExperimentParameters point : plan.points()) {
+			out.writeUTF(point.toString());
+		}
+		out.writeLong(plan.ziarno());
+		out.writeDouble(fedamb.federateTime);
+		out.writeInt(currentExperiment);
+
+		tripStats.writeTo(out);
+		pointStats.writeTo(out);
+		out.writeInt(pointSummaries.size());
+		for (String summary : pointSummaries) {
+			out.writeUTF(summary);
+		}
+		runWaits.writeTo(out);
+		long[] positions = results == null ? new long[]{-1, -1, -1} : results.positions();
+		for (long position : positions) {
+			out.writeLong(position);
+		}
+	}
+
+	/**
+	 * Reads a snapshot written by {@link #writeState}. The logical time is only taken over
+	 * when the RTI restored the federation; a federation created anew starts at zero.
+	 */
+	private void readState(DataInputStream in, boolean federationRestored) throws IOException {
+		boolean samePlan = in.readInt() == plan.liczbaEksperymentow();
+		int points = in.readInt();
+		samePlan &= points == plan.points().size();
+		for (int i = 0; i < points; i++) {
+			String point = in.readUTF();
+			samePlan &= i < plan.points().size() && point.equals(plan.points().get(i).toString());
+		}
+		if (!samePlan) {
+			throw new IOException("the checkpoint belongs to another experiment plan than " + plan);
+		}
+		long ziarno = in.readLong();
+		if (ziarno != plan.ziarno()) {
+			log("Taking over ziarno " + ziarno + " of the resumed run");
+			plan = plan.withZiarno(ziarno);
+		}
+		double time = in.readDouble();
+		if (federationRestored) {
+			fedamb.federateTime = time;
+		}
+		firstExperiment = in.readInt();
+
+		tripStats = StreamingStats.readFrom(in);
+		pointStats = StreamingStats.readFrom(in);
+		pointSummaries.clear();
+		int summaries = in.readInt();
+		for (int i = 0; i < summaries; i++) {
+			pointSummaries.add(in.readUTF());
+		}
+		runWaits = QueueStatistics.Report.readFrom(in);
+		resumedPositions = new long[]{in.readLong(), in.readLong(), in.readLong()};
 	}
 
 	private void enableTimePolicy() throws Exception
@@ -267,7 +719,7 @@ public class ManagerFederate
 		// tick until we get the callback
 		while( fedamb.isRegulating == false )
 		{
-			rtiamb.evokeMultipleCallbacks( 0.1, 0.2 );
+			tick();
 		}
 
 		/////////////////////////////
@@ -278,7 +730,7 @@ public class ManagerFederate
 		// tick until we get the callback
 		while( fedamb.isConstrained == false )
 		{
-			rtiamb.evokeMultipleCallbacks( 0.1, 0.2 );
+			tick();
 		}
 	}
 
@@ -290,11 +742,51 @@ public class ManagerFederate
 	private void publishAndSubscribe() throws RTIexception {
 		// Manager publikuje interakcję rozpoczynającą symulację
 		this.rozpocznijSymulacjeHandle = rtiamb.getInteractionClassHandle("HLAinteractionRoot.ZarzadzanieSymulacja.RozpocznijSymulacje");
+		this.liczbaStacjiParam = rtiamb.getParameterHandle(this.rozpocznijSymulacjeHandle, "LiczbaStacji");
+		this.pojemnoscOsobParam = rtiamb.getParameterHandle(this.rozpocznijSymulacjeHandle, "PojemnoscOsobPromu");
+		this.maksPojemnoscStacjiParam = rtiamb.getParameterHandle(this.rozpocznijSymulacjeHandle, "MaksPojemnoscStacji");
+		this.prawdopodobienstwoSamochoduParam = rtiamb.getParameterHandle(this.rozpocznijSymulacjeHandle, "PrawdopodobienstwoSamochodu");
+		this.ziarnoParam = rtiamb.getParameterHandle(this.rozpocznijSymulacjeHandle, "Ziarno");
+		this.numerEksperymentuParam = rtiamb.getParameterHandle(this.rozpocznijSymulacjeHandle, "NumerEksperymentu");
+		this.politykaZaladunkuParam = rtiamb.getParameterHandle(this.rozpocznijSymulacjeHandle, "PolitykaZaladunku");
+		this.politykaTrasyParam = rtiamb.getParameterHandle(this.rozpocznijSymulacjeHandle, "PolitykaTrasy");
 		rtiamb.publishInteractionClass(this.rozpocznijSymulacjeHandle);
 
 		// Manager subskrybuje interakcję kończącą symulację
 		this.wszystkieJednostkiPrzetransportowaneHandle = rtiamb.getInteractionClassHandle("HLAinteractionRoot.ZarzadzanieSymulacja.WszystkieJednostkiPrzetransportowane");
+		this.liczbaWykonanychKursowParam = rtiamb.getParameterHandle(this.wszystkieJednostkiPrzetransportowaneHandle, "LiczbaWykonanychKursow");
 		rtiamb.subscribeInteractionClass(this.wszystkieJednostkiPrzetransportowaneHandle);
+
+		// oraz statystyki oczekiwania, które każda partycja stacji wysyła na koniec eksperymentu
+		this.statystykiOczekiwaniaHandle = rtiamb.getInteractionClassHandle("HLAinteractionRoot.ZarzadzanieSymulacja.StatystykiOczekiwania");
+		this.statystykiPartycjaParam = rtiamb.getParameterHandle(this.statystykiOczekiwaniaHandle, "Partycja");
+		this.statystykiParam = rtiamb.getParameterHandle(this.statystykiOczekiwaniaHandle, "Statystyki");
+		rtiamb.subscribeInteractionClass(this.statystykiOczekiwaniaHandle);
+	}
+
+	/**
+	 * Gives the RTI a chance to deliver callbacks. In HLA_EVOKED mode this evokes them
+	 * on this thread; in HLA_IMMEDIATE mode the RTI has already called the ambassador on
+	 * its own thread and we apply whatever it queued, waking up as soon as it arrives.
+	 * While a federation save or restore is in progress it does not return, so the
+	 * caller makes no other RTI calls until the federation is running again.
+	 */
+	private void tick() throws RTIexception
+	{
+		do
+		{
+			if( immediateCallbacks )
+			{
+				callbacksPerTick.record( callbacks.awaitAndDrain(200) );
+			}
+			else
+			{
+				long before = callbacksDelivered.get();
+				rtiamb.evokeMultipleCallbacks( 0.1, 0.2 );
+				callbacksPerTick.record( callbacksDelivered.get() - before );
+			}
+		}
+		while( fedamb.isSaving || fedamb.isRestoring );
 	}
 
 	/**
@@ -305,6 +797,7 @@ public class ManagerFederate
 	private void advanceTime( double timestep ) throws RTIexception
 	{
 		// request the advance
+		long requested = System.nanoTime();
 		fedamb.isAdvancing = true;
 		HLAfloat64Time time = timeFactory.makeTime( fedamb.federateTime + timestep );
 		rtiamb.timeAdvanceRequest( time );
@@ -313,8 +806,26 @@ public class ManagerFederate
 		// LRC to start delivering callbacks to the federate
 		while( fedamb.isAdvancing )
 		{
-			rtiamb.evokeMultipleCallbacks( 0.1, 0.2 );
+			tick();
+
+		}
+		timeAdvanceGrant.recordSince( requested );
+	}
 
+	/**
+	 * Leaves the federation after a failure: our objects are deleted and ownership divested,
+	 * and the execution is destroyed if nobody else is left in it.
+	 */
+	private void abandonFederation() {
+		try {
+			rtiamb.resignFederationExecution(ResignAction.DELETE_OBJECTS_THEN_DIVEST);
+			log("Resigned from Federation after a failure");
+			rtiamb.destroyFederationExecution(Config.FEDERATION_NAME);
+			log("Destroyed Federation");
+		} catch (FederationExecutionDoesNotExist | FederatesCurrentlyJoined e) {
+			log("Didn't destroy federation: " + e.getMessage());
+		} catch (RTIexception e) {
+			log("Could not leave the federation: " + e.getMessage());
 		}
 	}
 
@@ -334,9 +845,77 @@ public class ManagerFederate
 		return (short)fedamb.federateTime;
 	}
 
+	/**
+	 * Event-driven counterpart of advanceTime. Asks the RTI for the time of the next
+	 * message addressed to us, but no later than the given horizon, and waits for the
+	 * grant. The federate ends up at the time of that message (or the horizon), so an
+	 * idle federate costs one round-trip per received event rather than per step.
+	 */
+	private void advanceToNextEvent( double horizon ) throws RTIexception
+	{
+		long requested = System.nanoTime();
+		fedamb.isAdvancing = true;
+		HLAfloat64Time time = timeFactory.makeTime( fedamb.federateTime + horizon );
+		rtiamb.nextMessageRequest( time );
+
+		while( fedamb.isAdvancing )
+		{
+			tick();
+		}
+		nextMessageGrant.recordSince( requested );
+	}
+
+	/**
+	 * Moves time forward while we have nothing of our own scheduled and are only
+	 * waiting for messages: a fixed step, or straight to the next message in
+	 * next-event mode (see Config.NEXT_EVENT_ADVANCE).
+	 */
+	private void advanceIdle() throws RTIexception
+	{
+		if( Config.NEXT_EVENT_ADVANCE )
+			advanceToNextEvent( Config.NEXT_EVENT_HORIZON );
+		else
+			advanceTime( 1.0 );
+	}
+
+	/**
+	 * The earliest time stamp we may put on an outgoing message: our current time
+	 * plus the lookahead of this federate type (see Config.LOOKAHEAD_*).
+	 */
+	private HLAfloat64Time sendTime()
+	{
+		return timeFactory.makeTime( fedamb.federateTime + fedamb.federateLookahead );
+	}
+
+	private void sendInteraction( InteractionClassHandle interaction, ParameterHandleValueMap parameters,
+	                              HLAfloat64Time time ) throws RTIexception
+	{
+		long start = System.nanoTime();
+		rtiamb.sendInteraction( interaction, parameters, generateTag(), time );
+		interactionSend.recordSince( start );
+	}
+
+	/** Writes the metrics of this federate to Config.METRICS_DIR, if one is configured */
+	private void dumpMetrics( String federateName )
+	{
+		if( Config.METRICS_DIR == null )
+			return;
+
+		Path file = Paths.get( Config.METRICS_DIR, federateName + ".metrics.txt" );
+		try
+		{
+			metrics.dump( file );
+			log( "Metrics written to " + file );
+		}
+		catch( IOException e )
+		{
+			log( "Could not write metrics to " + file + ": " + e.getMessage() );
+		}
+	}
+
 	private byte[] generateTag()
 	{
-		return ("(timestamp) "+System.currentTimeMillis()).getBytes();
+		return tags.next();
 	}
 
 	//----------------------------------------------------------
@@ -344,9 +923,10 @@ public class ManagerFederate
 	//----------------------------------------------------------
 	public static void main( String[] args )
 	{
-		// get a federate name, use "exampleFederate" as default
+		// get a federate name, use "Manager" as default; key=value arguments
+		// (and config=plik) describe the experiment plan, see ExperimentPlan
 		String federateName = "Manager";
-		if( args.length != 0 )
+		if( args.length != 0 && !args[0].contains("=") )
 		{
 			federateName = args[0];
 		}
@@ -354,7 +934,7 @@ public class ManagerFederate
 		try
 		{
 			// run the example federate
-			new ManagerFederate().runFederate( federateName );
+			new ManagerFederate( Config.HEADLESS, ExperimentPlan.fromArgs(args) ).runFederate( federateName );
 		}
 		catch( Exception rtie )
 		{
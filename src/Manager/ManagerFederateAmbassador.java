@@ -14,13 +14,22 @@
  */
 package Manager;
 
+import Common.HlaCodec;
+import Common.Log;
+import Common.Metrics;
+import Config.Config;
+import Model.QueueStatistics;
 import hla.rti1516e.*;
 import hla.rti1516e.encoding.DecoderException;
-import hla.rti1516e.encoding.HLAinteger32BE;
+import hla.rti1516e.encoding.HLAunicodeString;
 import hla.rti1516e.exceptions.FederateInternalError;
-import hla.rti1516e.exceptions.RTIexception;
 import hla.rti1516e.time.HLAfloat64Time;
-import org.portico.impl.hla1516e.types.encoding.HLA1516eInteger32BE;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
 
 /**
  * This class handles all incoming callbacks from the RTI regarding a particular
@@ -32,25 +41,48 @@ public class ManagerFederateAmbassador extends NullFederateAmbassador
 	//----------------------------------------------------------
 	//                    STATIC VARIABLES
 	//----------------------------------------------------------
+	private static final Log LOG = Log.get( "FederateAmbassador" );
 
 	//----------------------------------------------------------
 	//                   INSTANCE VARIABLES
 	//----------------------------------------------------------
 	private ManagerFederate federate;
 
+	// callback counters, registered in the federate's metrics
+	private final Metrics.Counter grants;
+	private final Metrics.Counter discoveries;
+	private final Metrics.Counter reflects;
+	private final Metrics.Counter interactions;
+	private final Metrics.Counter removals;
+
 	// these variables are accessible in the package
-	protected double federateTime        = 0.0;
-	protected double federateLookahead   = 1.0;
+	protected volatile double federateTime = 0.0;
+	protected double federateLookahead   = Config.LOOKAHEAD_MANAGER;
 	
-	protected boolean isRegulating       = false;
-	protected boolean isConstrained      = false;
-	protected boolean isAdvancing        = false;
+	protected volatile boolean isRegulating       = false;
+	protected volatile boolean isConstrained      = false;
+	protected volatile boolean isAdvancing        = false;
 	
-	protected boolean isAnnounced        = false;
-	protected boolean isReadyToRun       = false;
+	protected volatile boolean isAnnounced        = false;
+	protected volatile boolean isReadyToRun       = false;
+
+	// federation save/restore in progress: tick() keeps delivering callbacks until it is over
+	protected volatile boolean isSaving           = false;
+	protected volatile boolean isRestoring        = false;
+	// answers to the saves and restores the Manager requests itself
+	protected volatile boolean saveAnswered       = false;
+	protected volatile boolean saveSucceeded      = false;
+	protected volatile boolean restoreAnswered    = false;
+	protected volatile boolean restoreGranted     = false;
+	protected volatile boolean restoreFinished    = false;
 
-	protected boolean isRunning       = true;
-	protected boolean isExperimentRunning = false;
+	protected volatile boolean isRunning = true;
+	protected volatile boolean isExperimentRunning = false;
+	// Stacja partitions that have not sent the waiting statistics of the running experiment yet
+	protected volatile int pendingWaitReports = 0;
+
+	// federate types reported by the MOM, used by the headless start-up
+	protected Map<ObjectInstanceHandle, String> joinedFederateTypes = new HashMap<>(); // MOM HLAfederate -> typ
 	//----------------------------------------------------------
 	//                      CONSTRUCTORS
 	//----------------------------------------------------------
@@ -58,6 +90,11 @@ public class ManagerFederateAmbassador extends NullFederateAmbassador
 	public ManagerFederateAmbassador(ManagerFederate federate )
 	{
 		this.federate = federate;
+		this.grants = federate.metrics.counter( "callback.timeAdvanceGrant" );
+		this.discoveries = federate.metrics.counter( "callback.discoverObjectInstance" );
+		this.reflects = federate.metrics.counter( "callback.reflectAttributeValues" );
+		this.interactions = federate.metrics.counter( "callback.receiveInteraction" );
+		this.removals = federate.metrics.counter( "callback.removeObjectInstance" );
 	}
 
 	//----------------------------------------------------------
@@ -65,7 +102,35 @@ public class ManagerFederateAmbassador extends NullFederateAmbassador
 	//----------------------------------------------------------
 	private void log( String message )
 	{
-		System.out.println( "FederateAmbassador: " + message );
+		LOG.info( message );
+	}
+
+	/**
+	 * Applies a state change coming from a callback. With HLA_EVOKED we are already on
+	 * the simulation thread and run it directly; with HLA_IMMEDIATE it is queued for
+	 * the simulation thread to pick up in its next tick.
+	 */
+	private void dispatch( Runnable event )
+	{
+		if( federate.immediateCallbacks )
+			federate.callbacks.post( event );
+		else
+			event.run();
+	}
+
+	/** Counts a delivered callback, both per type and in the federate's total */
+	private void count( Metrics.Counter callback )
+	{
+		callback.increment();
+		federate.callbacksDelivered.increment();
+	}
+
+	/** Records the delivery latency of a message whose tag carries a send timestamp */
+	private void observe( byte[] tag )
+	{
+		long latency = federate.tags.observe( tag );
+		if( latency >= 0 )
+			federate.messageLatency.record( latency );
 	}
 
 	//////////////////////////////////////////////////////////////////////////
@@ -89,7 +154,7 @@ public class ManagerFederateAmbassador extends NullFederateAmbassador
 	{
 		log( "Synchronization point announced: " + label );
 		if( label.equals(ManagerFederate.READY_TO_RUN) )
-			this.isAnnounced = true;
+			dispatch( () -> this.isAnnounced = true );
 	}
 
 	@Override
@@ -97,7 +162,7 @@ public class ManagerFederateAmbassador extends NullFederateAmbassador
 	{
 		log( "Federation Synchronized: " + label );
 		if( label.equals(ManagerFederate.READY_TO_RUN) )
-			this.isReadyToRun = true;
+			dispatch( () -> this.isReadyToRun = true );
 	}
 
 	/**
@@ -106,52 +171,115 @@ public class ManagerFederateAmbassador extends NullFederateAmbassador
 	@Override
 	public void timeRegulationEnabled( LogicalTime time )
 	{
-		this.federateTime = ((HLAfloat64Time)time).getValue();
-		this.isRegulating = true;
+		double granted = ((HLAfloat64Time)time).getValue();
+		dispatch( () -> {
+			this.federateTime = granted;
+			this.isRegulating = true;
+		} );
 	}
 
 	@Override
 	public void timeConstrainedEnabled( LogicalTime time )
 	{
-		this.federateTime = ((HLAfloat64Time)time).getValue();
-		this.isConstrained = true;
+		double granted = ((HLAfloat64Time)time).getValue();
+		dispatch( () -> {
+			this.federateTime = granted;
+			this.isConstrained = true;
+		} );
 	}
 
 	@Override
 	public void timeAdvanceGrant( LogicalTime time )
 	{
-		this.federateTime = ((HLAfloat64Time)time).getValue();
-		this.isAdvancing = false;
+		count( grants );
+		// queued like every other callback, so all messages delivered before the
+		// grant have been applied by the time the federate sees isAdvancing == false
+		double granted = ((HLAfloat64Time)time).getValue();
+		dispatch( () -> {
+			this.federateTime = granted;
+			this.isAdvancing = false;
+		} );
 	}
 
 	@Override
 	public void discoverObjectInstance(ObjectInstanceHandle theObject,
 									   ObjectClassHandle theObjectClass,
 									   String objectName) throws FederateInternalError {
-		log("Discovered Object: handle=" + theObject + ", classHandle=" +
+		count(discoveries);
+		LOG.debug(() -> "Discovered Object: handle=" + theObject + ", classHandle=" +
 				theObjectClass + ", name=" + objectName);
 	}
 
+	@Override
+	public void reflectAttributeValues(ObjectInstanceHandle theObject,
+									   AttributeHandleValueMap theAttributes,
+									   byte[] tag,
+									   OrderType sentOrdering,
+									   TransportationTypeHandle theTransport,
+									   SupplementalReflectInfo reflectInfo) throws FederateInternalError {
+		count(reflects);
+		// MOM updates are receive ordered, so they arrive through this variant
+		if (federate.momFederateTypeHandle != null && theAttributes.containsKey(federate.momFederateTypeHandle)) {
+			try {
+				HLAunicodeString typeDecoder = federate.encoderFactory.createHLAunicodeString();
+				typeDecoder.decode(theAttributes.get(federate.momFederateTypeHandle));
+				String federateType = typeDecoder.getValue();
+				dispatch(() -> {
+					if (joinedFederateTypes.put(theObject, federateType) == null) {
+						log("Federate type joined: " + federateType);
+					}
+				});
+			} catch (DecoderException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
 	@Override
 	public void receiveInteraction(InteractionClassHandle interactionClass, ParameterHandleValueMap theParameters, byte[] tag, OrderType sentOrdering, TransportationTypeHandle theTransport, LogicalTime time, OrderType receivedOrdering, SupplementalReceiveInfo receiveInfo) throws FederateInternalError {
+		count(interactions);
+		observe(tag);
 		if (interactionClass.equals(federate.wszystkieJednostkiPrzetransportowaneHandle)) {
 			try {
-				HLAinteger32BE tripsDecoder = new HLA1516eInteger32BE();
-				tripsDecoder.decode(theParameters.get(federate.rtiamb.getParameterHandle(interactionClass, "LiczbaWykonanychKursow")));
-				int finalTripCount = tripsDecoder.getValue();
+				int finalTripCount = HlaCodec.decodeInt32(theParameters.get(federate.liczbaWykonanychKursowParam));
+				double endTime = time == null ? this.federateTime : ((HLAfloat64Time)time).getValue();
 
-				log("================== KONIEC EKSPERYMENTU ==================");
-				log("Otrzymano sygnał 'WszystkieJednostkiPrzetransportowane'.");
-				log("Końcowa liczba kursów w tym eksperymencie: " + finalTripCount);
-				log("========================================================");
+				dispatch(() -> {
+					log("================== KONIEC EKSPERYMENTU ==================");
+					log("Otrzymano sygnał 'WszystkieJednostkiPrzetransportowane'.");
+					log("Końcowa liczba kursów w tym eksperymencie: " + finalTripCount);
+					log("========================================================");
 
-				federate.tripResults.add(finalTripCount);
-				this.isExperimentRunning = false;
+					federate.recordExperimentResult(finalTripCount, endTime);
+					this.isExperimentRunning = false;
+				});
 
-			} catch (RTIexception | DecoderException e) {
+			} catch (DecoderException e) {
 				e.printStackTrace();
 			}
 		}
+		else if (interactionClass.equals(federate.statystykiOczekiwaniaHandle)) {
+			try {
+				int partycja = HlaCodec.decodeInt32(theParameters.get(federate.statystykiPartycjaParam));
+				byte[] bytes = theParameters.get(federate.statystykiParam);
+				if (bytes == null)
+					throw new IOException("no StatystykiOczekiwania parameter");
+				QueueStatistics.Report report = QueueStatistics.Report.readFrom(new DataInputStream(new ByteArrayInputStream(bytes)));
+
+				dispatch(() -> {
+					federate.recordWaitReport(partycja, report);
+					this.pendingWaitReports--;
+				});
+
+			} catch (DecoderException | IOException e) {
+				// the report still counts as received, or the Manager would wait for it forever
+				String reason = e.toString();
+				dispatch(() -> {
+					federate.recordUnreadableWaitReport(reason);
+					this.pendingWaitReports--;
+				});
+			}
+		}
 	}
 
 	@Override
@@ -159,7 +287,103 @@ public class ManagerFederateAmbassador extends NullFederateAmbassador
 									 byte[] tag,
 									 OrderType sentOrdering,
 									 SupplementalRemoveInfo removeInfo) throws FederateInternalError {
-		log("Object Removed: handle=" + theObject);
+		count(removals);
+		LOG.debug(() -> "Object Removed: handle=" + theObject);
+	}
+
+	//////////////////////////////////////////////////////////////////////////
+	///////////////////////////// Save / Restore /////////////////////////////
+	//////////////////////////////////////////////////////////////////////////
+	@Override
+	public void initiateFederateSave( String label )
+	{
+		log( "Federation save initiated: " + label );
+		dispatch( () -> {
+			this.isSaving = true;
+			federate.saveState( label );
+		} );
+	}
+
+	@Override
+	public void initiateFederateSave( String label, LogicalTime time )
+	{
+		initiateFederateSave( label );
+	}
+
+	@Override
+	public void federationSaved()
+	{
+		log( "Federation saved" );
+		dispatch( () -> {
+			this.isSaving = false;
+			this.saveSucceeded = true;
+			this.saveAnswered = true;
+		} );
+	}
+
+	@Override
+	public void federationNotSaved( SaveFailureReason reason )
+	{
+		log( "Federation not saved: " + reason );
+		dispatch( () -> {
+			this.isSaving = false;
+			this.saveSucceeded = false;
+			this.saveAnswered = true;
+		} );
+	}
+
+	@Override
+	public void requestFederationRestoreSucceeded( String label )
+	{
+		log( "Federation restore of " + label + " accepted" );
+		dispatch( () -> {
+			this.restoreGranted = true;
+			this.restoreAnswered = true;
+		} );
+	}
+
+	@Override
+	public void requestFederationRestoreFailed( String label )
+	{
+		log( "Federation restore of " + label + " refused" );
+		dispatch( () -> {
+			this.restoreGranted = false;
+			this.restoreAnswered = true;
+		} );
+	}
+
+	@Override
+	public void federationRestoreBegun()
+	{
+		log( "Federation restore begun" );
+		dispatch( () -> this.isRestoring = true );
+	}
+
+	@Override
+	public void initiateFederateRestore( String label, String federateName, FederateHandle federateHandle )
+	{
+		log( "Restoring " + federateName + " from " + label );
+		dispatch( () -> federate.loadState( label, federateName ) );
+	}
+
+	@Override
+	public void federationRestored()
+	{
+		log( "Federation restored" );
+		dispatch( () -> {
+			this.isRestoring = false;
+			this.restoreFinished = true;
+		} );
+	}
+
+	@Override
+	public void federationNotRestored( RestoreFailureReason reason )
+	{
+		log( "Federation not restored: " + reason );
+		dispatch( () -> {
+			this.isRestoring = false;
+			this.restoreFinished = true;
+		} );
 	}
 
 	//----------------------------------------------------------
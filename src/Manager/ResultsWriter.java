@@ -0,0 +1,209 @@
+package Manager;
+
+import Common.StreamingStats;
+import Config.ExperimentParameters;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Locale;
+
+/**
+ * Writes the result of every experiment as soon as the Manager receives it, so a long
+ * sweep keeps nothing in memory and whatever finished before a crash is on disk.
+ * <p/>
+ * In CSV form every row is flushed on its own (the ferry policies are the last two columns), and the summary of each point of the plan
+ * goes to a second file when the point is complete. The binary form is a 16-byte header
+ * (magic "FERRYRES", version, record size) followed by fixed-size big-endian records:
+ * <pre>
+ *   int    numerEksperymentu, punkt, liczbaStacji, pojemnoscOsobPromu, maksPojemnoscStacji
+ *   double prawdopodobienstwoSamochodu
+ *   long   ziarno, ziarnoEksperymentu
+ *   int    liczbaKursow
+ *   double czasZakonczenia (logical time)
+ *   long   czasTrwaniaNanos (wall clock)
+ * </pre>
+ * so record n starts at byte 16 + n * 64 and a reader can skip straight to any of them.
+ * Binary records do not name the ferry policies; {@code punkt} tells the points apart.
+ * <p/>
+ * {@link #positions()} tells how far each file is written; a run resumed from a checkpoint
+ * reopens the files cut back to the positions saved with it, so rows written after the
+ * checkpoint are not duplicated.
+ */
+public final class ResultsWriter implements Closeable
+{
+	//----------------------------------------------------------
+	//                    STATIC VARIABLES
+	//----------------------------------------------------------
+	public enum Format
+	{
+		CSV, BINARY, BOTH
+	}
+
+	public static final long MAGIC = 0x4645525259524553L; // "FERRYRES"
+	public static final int VERSION = 1;
+	public static final int HEADER_BYTES = 16;
+	public static final int RECORD_BYTES = 64;
+
+	private static final String CSV_HEADER = "numerEksperymentu,punkt,liczbaStacji,pojemnoscOsobPromu,maksPojemnoscStacji," +
+	                                         "prawdopodobienstwoSamochodu,ziarno,ziarnoEksperymentu,liczbaKursow," +
+	                                         "czasZakonczenia,czasTrwaniaMs,politykaZaladunku,politykaTrasy";
+	private static final String SUMMARY_HEADER = "punkt,liczbaStacji,pojemnoscOsobPromu,maksPojemnoscStacji," +
+	                                             "prawdopodobienstwoSamochodu,n,srednia,odchylenie,ci95,min,p50,p90,p99,max," +
+	                                             "politykaZaladunku,politykaTrasy";
+
+	//----------------------------------------------------------
+	//                   INSTANCE VARIABLES
+	//----------------------------------------------------------
+	private final FileChannel csv;     // null when only binary is written
+	private final FileChannel summary; // written together with csv
+	private final FileChannel binary;  // null when only CSV is written
+	private final ByteBuffer record = ByteBuffer.allocate( RECORD_BYTES );
+
+	//----------------------------------------------------------
+	//                      CONSTRUCTORS
+	//----------------------------------------------------------
+	private ResultsWriter( Path directory, String baseName, Format format, long[] resumeAt ) throws IOException
+	{
+		Files.createDirectories( directory );
+		if( format != Format.BINARY )
+		{
+			csv = open( directory.resolve(baseName + ".results.csv"), resumeAt == null ? -1 : resumeAt[0] );
+			summary = open( directory.resolve(baseName + ".summary.csv"), resumeAt == null ? -1 : resumeAt[1] );
+			if( csv.size() == 0 )
+				writeFully( csv, StandardCharsets.UTF_8.encode(CSV_HEADER + "\n") );
+			if( summary.size() == 0 )
+				writeFully( summary, StandardCharsets.UTF_8.encode(SUMMARY_HEADER + "\n") );
+		}
+		else
+		{
+			csv = null;
+			summary = null;
+		}
+
+		if( format != Format.CSV )
+		{
+			binary = open( directory.resolve(baseName + ".results.bin"), resumeAt == null ? -1 : resumeAt[2] );
+			if( binary.size() == 0 )
+			{
+				ByteBuffer header = ByteBuffer.allocate( HEADER_BYTES );
+				header.putLong( MAGIC ).putInt( VERSION ).putInt( RECORD_BYTES ).flip();
+				writeFully( binary, header );
+			}
+		}
+		else
+		{
+			binary = null;
+		}
+	}
+
+	//----------------------------------------------------------
+	//                    INSTANCE METHODS
+	//----------------------------------------------------------
+	public void write( int experiment, int point, ExperimentParameters parameters, long ziarno, long ziarnoEksperymentu,
+	                   int liczbaKursow, double czasZakonczenia, long czasTrwaniaNanos ) throws IOException
+	{
+		if( csv != null )
+		{
+			writeFully( csv, line(String.format(Locale.ROOT, "%d,%d,%d,%d,%d,%s,%d,%d,%d,%s,%.3f,%s,%s", experiment, point,
+			                                    parameters.liczbaStacji, parameters.pojemnoscOsobPromu,
+			                                    parameters.maksPojemnoscStacji, parameters.prawdopodobienstwoSamochodu,
+			                                    ziarno, ziarnoEksperymentu, liczbaKursow, czasZakonczenia,
+			                                    czasTrwaniaNanos / 1e6, parameters.politykaZaladunku,
+			                                    parameters.politykaTrasy)) );
+		}
+
+		if( binary != null )
+		{
+			record.clear();
+			record.putInt( experiment ).putInt( point ).putInt( parameters.liczbaStacji )
+			      .putInt( parameters.pojemnoscOsobPromu ).putInt( parameters.maksPojemnoscStacji )
+			      .putDouble( parameters.prawdopodobienstwoSamochodu ).putLong( ziarno ).putLong( ziarnoEksperymentu )
+			      .putInt( liczbaKursow ).putDouble( czasZakonczenia ).putLong( czasTrwaniaNanos );
+			record.flip();
+			writeFully( binary, record );
+		}
+	}
+
+	/** Statistics of a completed point of the plan (CSV only; binary readers compute their own) */
+	public void writeSummary( int point, ExperimentParameters parameters, StreamingStats stats ) throws IOException
+	{
+		if( summary == null )
+			return;
+
+		writeFully( summary, line(String.format(Locale.ROOT, "%d,%d,%d,%d,%s,%d,%.4f,%.4f,%.4f,%d,%d,%d,%d,%d,%s,%s", point,
+		                                        parameters.liczbaStacji, parameters.pojemnoscOsobPromu,
+		                                        parameters.maksPojemnoscStacji, parameters.prawdopodobienstwoSamochodu,
+		                                        stats.count(), stats.mean(), stats.standardDeviation(),
+		                                        stats.confidenceHalfWidth(), stats.min(), stats.percentile(50),
+		                                        stats.percentile(90), stats.percentile(99), stats.max(),
+		                                        parameters.politykaZaladunku, parameters.politykaTrasy)) );
+	}
+
+	/** Bytes written so far to the CSV, summary and binary file; -1 for a file not written */
+	public long[] positions() throws IOException
+	{
+		return new long[]{ csv == null ? -1 : csv.size(), summary == null ? -1 : summary.size(),
+		                   binary == null ? -1 : binary.size() };
+	}
+
+	@Override
+	public void close() throws IOException
+	{
+		if( csv != null )
+		{
+			csv.close();
+			summary.close();
+		}
+		if( binary != null )
+			binary.close();
+	}
+
+	//----------------------------------------------------------
+	//                     STATIC METHODS
+	//----------------------------------------------------------
+	/**
+	 * Creates {@code <baseName>.results.csv} and {@code .summary.csv} and/or
+	 * {@code <baseName>.results.bin} in the directory, replacing earlier ones.
+	 */
+	public static ResultsWriter open( Path directory, String baseName, Format format ) throws IOException
+	{
+		return new ResultsWriter( directory, baseName, format, null );
+	}
+
+	/**
+	 * Reopens the files of a resumed run, cut back to the given {@link #positions()};
+	 * files with no saved position (-1) start over.
+	 */
+	public static ResultsWriter resume( Path directory, String baseName, Format format, long[] positions )
+		throws IOException
+	{
+		return new ResultsWriter( directory, baseName, format, positions );
+	}
+
+	/** Opens the file for appending, truncated to {@code keep} bytes, or emptied when keep < 0 */
+	private static FileChannel open( Path file, long keep ) throws IOException
+	{
+		FileChannel channel = FileChannel.open( file, StandardOpenOption.CREATE, StandardOpenOption.WRITE );
+		channel.truncate( Math.max(keep, 0) );
+		channel.position( channel.size() );
+		return channel;
+	}
+
+	private static ByteBuffer line( String text )
+	{
+		return StandardCharsets.UTF_8.encode( text + "\n" );
+	}
+
+	private static void writeFully( FileChannel channel, ByteBuffer buffer ) throws IOException
+	{
+		while( buffer.hasRemaining() )
+			channel.write( buffer );
+	}
+
+}
@@ -0,0 +1,267 @@
+package Model;
+
+import Config.Config;
+
+import java.util.random.RandomGenerator;
+
+/**
+ * People and cars arriving at the stations while an experiment runs. Arrivals of each
+ * type at each station form a Poisson process with its own rate (per unit of logical
+ * time), scaled over the experiment by a piecewise-constant schedule, e.g. a rush hour
+ * between 100 and 200. They are not generated one by one but in batches: every
+ * {@link #batch()} time units each station gets a Poisson-distributed number of new
+ * people and cars, the number the process would have produced in that interval.
+ * <p/>
+ * With arrivals the queues never drain for good, so an experiment lasts
+ * {@link #duration()} time units instead and measures how many trips the ferries make
+ * under that demand.
+ */
+public final class ArrivalProcess
+{
+	//----------------------------------------------------------
+	//                    STATIC VARIABLES
+	//----------------------------------------------------------
+	// below this mean the multiplication method is cheaper than rejection
+	private static final double PTRS_THRESHOLD = 10.0;
+	private static final double HALF_LOG_2PI = 0.5 * Math.log( 2 * Math.PI );
+	private static final double[] LOG_FACTORIAL = new double[10];
+
+	static
+	{
+		for( int k = 1; k < LOG_FACTORIAL.length; k++ )
+			LOG_FACTORIAL[k] = LOG_FACTORIAL[k - 1] + Math.log( k );
+	}
+
+	//----------------------------------------------------------
+	//                   INSTANCE VARIABLES
+	//----------------------------------------------------------
+	private final double[] peopleRate;
+	private final double[] carRate;
+	private final double[] scheduleTimes;    // ascending, the first one is 0
+	private final double[] scheduleFactors;  // factor from scheduleTimes[i] until the next one
+	private final double batch;
+	private final double duration;
+
+	//----------------------------------------------------------
+	//                      CONSTRUCTORS
+	//----------------------------------------------------------
+	public ArrivalProcess( double[] peopleRate, double[] carRate, double[] scheduleTimes, double[] scheduleFactors,
+	                       double batch, double duration )
+	{
+		if( peopleRate.length != carRate.length )
+			throw new IllegalArgumentException( "Need a people and a car rate for every station" );
+		if( scheduleTimes.length == 0 || scheduleTimes.length != scheduleFactors.length || scheduleTimes[0] != 0.0 )
+			throw new IllegalArgumentException( "The schedule has to start at time 0" );
+		if( batch <= 0 || duration <= 0 )
+			throw new IllegalArgumentException( "Batch interval and duration must be positive: " + batch + ", " + duration );
+
+		this.peopleRate = peopleRate.clone();
+		this.carRate = carRate.clone();
+		this.scheduleTimes = scheduleTimes.clone();
+		this.scheduleFactors = scheduleFactors.clone();
+		this.batch = batch;
+		this.duration = duration;
+	}
+
+	//----------------------------------------------------------
+	//                    INSTANCE METHODS
+	//----------------------------------------------------------
+	/** Interval (in logical time) between two batches of arrivals */
+	public double batch()
+	{
+		return batch;
+	}
+
+	/** Length of an experiment with arrivals, in logical time */
+	public double duration()
+	{
+		return duration;
+	}
+
+	/**
+	 * Adds to a station the people and cars that arrived in the interval (from, to] of
+	 * the experiment. {@code station} is the global id that picks the rates, {@code index}
+	 * the position of the station in {@code queues}.
+	 */
+	public void arrive( StationQueues queues, int index, int station, double from, double to, RandomGenerator random )
+	{
+		double scale = scheduled( from, to );
+		int people = poisson( peopleRate[station] * scale, random );
+		int cars = poisson( carRate[station] * scale, random );
+		if( people > 0 || cars > 0 )
+			queues.add( index, people, cars );
+	}
+
+	/** Integral of the schedule factor over (from, to] */
+	private double scheduled( double from, double to )
+	{
+		double total = 0.0;
+		for( int i = 0; i < scheduleTimes.length; i++ )
+		{
+			double start = Math.max( from, scheduleTimes[i] );
+			double end = i + 1 < scheduleTimes.length ? Math.min( to, scheduleTimes[i + 1] ) : to;
+			if( end > start )
+				total += (end - start) * scheduleFactors[i];
+		}
+		return total;
+	}
+
+	@Override
+	public String toString()
+	{
+		double people = 0.0, cars = 0.0;
+		for( int i = 0; i < peopleRate.length; i++ )
+		{
+			people += peopleRate[i];
+			cars += carRate[i];
+		}
+		return String.format( "napływ %.3f osób i %.3f samochodów na jednostkę czasu (%d stacji), paczki co %s, czas %s",
+		                      people, cars, peopleRate.length, batch, duration );
+	}
+
+	//----------------------------------------------------------
+	//                     STATIC METHODS
+	//----------------------------------------------------------
+	/**
+	 * The arrival process configured with -Dferry.arrivals.* for the given number of
+	 * stations, or null when no station has any arrivals (the queues are only filled at
+	 * the start, as before).
+	 */
+	public static ArrivalProcess fromConfig( int liczbaStacji )
+	{
+		double[] people = new double[liczbaStacji];
+		double[] cars = new double[liczbaStacji];
+		boolean any = false;
+		for( int station = 0; station < liczbaStacji; station++ )
+		{
+			people[station] = Config.arrivalRate( "people", station );
+			cars[station] = Config.arrivalRate( "cars", station );
+			any |= people[station] > 0 || cars[station] > 0;
+		}
+		if( !any )
+			return null;
+
+		String[] steps = Config.ARRIVALS_SCHEDULE.split( "," );
+		double[] times = new double[steps.length];
+		double[] factors = new double[steps.length];
+		for( int i = 0; i < steps.length; i++ )
+		{
+			String[] step = steps[i].trim().split( ":" );
+			if( step.length != 2 )
+				throw new IllegalArgumentException( "Schedule steps are czas:mnożnik, not " + steps[i] );
+			times[i] = Double.parseDouble( step[0].trim() );
+			factors[i] = Double.parseDouble( step[1].trim() );
+			if( i > 0 && times[i] <= times[i - 1] )
+				throw new IllegalArgumentException( "Schedule times must grow: " + Config.ARRIVALS_SCHEDULE );
+		}
+		return new ArrivalProcess( people, cars, times, factors, Config.ARRIVALS_BATCH, Config.ARRIVALS_DURATION );
+	}
+
+	/**
+	 * A Poisson-distributed number with the given mean: the multiplication method for small
+	 * means, the PTRS transformed rejection (Hörmann, 1993) above, so the cost stays flat
+	 * however busy a station is.
+	 */
+	public static int poisson( double mean, RandomGenerator random )
+	{
+		if( mean <= 0.0 )
+			return 0;
+
+		if( mean < PTRS_THRESHOLD )
+		{
+			double limit = Math.exp( -mean );
+			double product = random.nextDouble();
+			int k = 0;
+			while( product > limit )
+			{
+				k++;
+				product *= random.nextDouble();
+			}
+			return k;
+		}
+
+		double slam = Math.sqrt( mean );
+		double logMean = Math.log( mean );
+		double b = 0.931 + 2.53 * slam;
+		double a = -0.059 + 0.02483 * b;
+		double invAlpha = 1.1239 + 1.1328 / (b - 3.4);
+		double vr = 0.9277 - 3.6224 / (b - 2);
+		while( true )
+		{
+			double u = random.nextDouble() - 0.5;
+			double v = random.nextDouble();
+			double us = 0.5 - Math.abs( u );
+			long k = (long)Math.floor( (2 * a / us + b) * u + mean + 0.43 );
+			if( us >= 0.07 && v <= vr )
+				return (int)k;
+			if( k < 0 || (us < 0.013 && v > us) )
+				continue;
+			if( Math.log(v) + Math.log(invAlpha) - Math.log(a / (us * us) + b) <= -mean + k * logMean - logFactorial(k) )
+				return (int)k;
+		}
+	}
+
+	/**
+	 * A binomially distributed number of successes in {@code trials} trials with the given
+	 * probability: inversion while the mean is small, the BTRS transformed rejection
+	 * (Hörmann, 1993) above, so the cost does not grow with the number of trials.
+	 */
+	public static int binomial( int trials, double probability, RandomGenerator random )
+	{
+		if( trials <= 0 || probability <= 0.0 )
+			return 0;
+		if( probability >= 1.0 )
+			return trials;
+		if( probability > 0.5 )
+			return trials - binomial( trials, 1.0 - probability, random );
+
+		double q = 1.0 - probability;
+		if( trials * probability < PTRS_THRESHOLD )
+		{
+			double s = probability / q;
+			double a = (trials + 1) * s;
+			double r = Math.pow( q, trials );
+			double u = random.nextDouble();
+			int k = 0;
+			while( u > r && k < trials )
+			{
+				u -= r;
+				k++;
+				r *= a / k - s;
+			}
+			return k;
+		}
+
+		double spq = Math.sqrt( trials * probability * q );
+		double b = 1.15 + 2.53 * spq;
+		double a = -0.0873 + 0.0248 * b + 0.01 * probability;
+		double c = trials * probability + 0.5;
+		double alpha = (2.83 + 5.1 / b) * spq;
+		double vr = 0.92 - 4.2 / b;
+		double logOdds = Math.log( probability / q );
+		long m = (long)Math.floor( (trials + 1) * probability );
+		double h = logFactorial( m ) + logFactorial( trials - m );
+		while( true )
+		{
+			double u = random.nextDouble() - 0.5;
+			double v = random.nextDouble();
+			double us = 0.5 - Math.abs( u );
+			long k = (long)Math.floor( (2 * a / us + b) * u + c );
+			if( k < 0 || k > trials )
+				continue;
+			if( us >= 0.07 && v <= vr )
+				return (int)k;
+			if( Math.log(v * alpha / (a / (us * us) + b)) <= h - logFactorial(k) - logFactorial(trials - k) + (k - m) * logOdds )
+				return (int)k;
+		}
+	}
+
+	/** ln(k!), from a table for small k and the Stirling series above */
+	private static double logFactorial( long k )
+	{
+		if( k < LOG_FACTORIAL.length )
+			return LOG_FACTORIAL[(int)k];
+		double x = k;
+		return (x + 0.5) * Math.log( x ) - x + HALF_LOG_2PI + 1.0 / (12 * x) - 1.0 / (360 * x * x * x);
+	}
+}
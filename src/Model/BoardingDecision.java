@@ -0,0 +1,84 @@
+package Model;
+
+import java.util.random.RandomGenerator;
+
+/**
+ * Load a ferry takes on at a station: a number of people and of cars, possibly both.
+ * Chosen by a {@link BoardingPolicy}; shared by {@link Prom.PromFederate} and
+ * {@link FerrySimulation} so both run exactly the same model.
+ */
+public final class BoardingDecision
+{
+	// wartości EntityTypeEnum z FOM
+	public static final int PUSTY = 0;
+	public static final int SAMOCHOD = 1;
+	public static final int OSOBY = 2;
+
+	public static final BoardingDecision NONE = new BoardingDecision( 0, 0 );
+	private static final BoardingDecision ONE_CAR = new BoardingDecision( 0, 1 );
+
+	private final int people;
+	private final int cars;
+
+	private BoardingDecision( int people, int cars )
+	{
+		this.people = people;
+		this.cars = cars;
+	}
+
+	public boolean isEmpty()
+	{
+		return people == 0 && cars == 0;
+	}
+
+	public int people()
+	{
+		return people;
+	}
+
+	public int cars()
+	{
+		return cars;
+	}
+
+	/** TypZaladunku reported for the load: OSOBY when people board, SAMOCHOD for cars only */
+	public int typZaladunku()
+	{
+		return people > 0 ? OSOBY : cars > 0 ? SAMOCHOD : PUSTY;
+	}
+
+	@Override
+	public String toString()
+	{
+		return people + " osób, " + cars + " samochodów";
+	}
+
+	/** A load of the given numbers of people and cars */
+	public static BoardingDecision of( int people, int cars )
+	{
+		if( people < 0 || cars < 0 )
+			throw new IllegalArgumentException( "Negative load: " + people + " people, " + cars + " cars" );
+		if( people == 0 && cars == 0 )
+			return NONE;
+		if( people == 0 && cars == 1 )
+			return ONE_CAR;
+		return new BoardingDecision( people, cars );
+	}
+
+	/**
+	 * The original rule (BoardingPolicy "losowa"): when both cars and people wait, a coin
+	 * flip decides which goes first; a car always fills the whole ferry.
+	 */
+	public static BoardingDecision decide( int peopleInQueue, int carsInQueue, int pojemnoscOsob, RandomGenerator random )
+	{
+		boolean saSamochody = carsInQueue > 0;
+		boolean saLudzie = peopleInQueue > 0;
+
+		if (saSamochody && (!saLudzie || random.nextBoolean())) {
+			return ONE_CAR;
+		} else if (saLudzie) {
+			return new BoardingDecision( Math.min(peopleInQueue, pojemnoscOsob), 0 );
+		}
+		return NONE;
+	}
+}
@@ -0,0 +1,77 @@
+package Model;
+
+import Config.Config;
+
+import java.util.List;
+import java.util.random.RandomGenerator;
+
+/**
+ * What a ferry takes on board at a station, given the queues there. Chosen per experiment
+ * by name (politykaZaladunku in the experiment plan, see {@link #named}), so the Prom
+ * federate and {@link FerrySimulation} can be run with different rules without changing
+ * them:
+ * <ul>
+ *   <li>{@code losowa} - the original rule: a coin flip between one car and a load of people</li>
+ *   <li>{@code osobyNajpierw} - people while there are any, then one car at a time</li>
+ *   <li>{@code samochodyNajpierw} - one car while there are any, then people</li>
+ *   <li>{@code mieszana} - cars and people together: a car takes Config.BOARDING_CAR_SIZE places,
+ *       cars get at most Config.BOARDING_CAR_SHARE of the ferry and people the rest, and
+ *       whatever one type leaves free goes to the other</li>
+ * </ul>
+ * Any other name is taken as the class name of an implementation with a public no-argument
+ * constructor.
+ * <p/>
+ * A policy must not take more than waits at the station, and must not keep state between
+ * calls: several ferries may share one instance.
+ */
+public interface BoardingPolicy
+{
+	String LOSOWA = "losowa";
+	String OSOBY_NAJPIERW = "osobyNajpierw";
+	String SAMOCHODY_NAJPIERW = "samochodyNajpierw";
+	String MIESZANA = "mieszana";
+	List<String> BUILT_IN = List.of( LOSOWA, OSOBY_NAJPIERW, SAMOCHODY_NAJPIERW, MIESZANA );
+
+	BoardingDecision decide( int peopleInQueue, int carsInQueue, int pojemnoscOsob, RandomGenerator random );
+
+	/** The built-in policy of that name, or an instance of the named class */
+	static BoardingPolicy named( String name )
+	{
+		switch( name )
+		{
+			case LOSOWA:
+				return BoardingDecision::decide;
+			case OSOBY_NAJPIERW:
+				return (people, cars, pojemnosc, random) ->
+					people > 0 ? BoardingDecision.of( Math.min(people, pojemnosc), 0 )
+					           : BoardingDecision.of( 0, Math.min(cars, 1) );
+			case SAMOCHODY_NAJPIERW:
+				return (people, cars, pojemnosc, random) ->
+					cars > 0 ? BoardingDecision.of( 0, 1 )
+					         : BoardingDecision.of( Math.min(people, pojemnosc), 0 );
+			case MIESZANA:
+				return (people, cars, pojemnosc, random) -> mixed( people, cars, pojemnosc );
+			default:
+				return Policies.load( name, BoardingPolicy.class, BUILT_IN );
+		}
+	}
+
+	/**
+	 * The {@code mieszana} load. A car that does not fit even an empty ferry
+	 * (BOARDING_CAR_SIZE above its capacity) still goes alone, as under the original rule.
+	 */
+	private static BoardingDecision mixed( int peopleInQueue, int carsInQueue, int pojemnoscOsob )
+	{
+		int carSize = Math.max( 1, Config.BOARDING_CAR_SIZE );
+		if( carSize > pojemnoscOsob )
+			return carsInQueue > 0 ? BoardingDecision.of( 0, 1 )
+			                       : BoardingDecision.of( Math.min(peopleInQueue, pojemnoscOsob), 0 );
+
+		int carPlaces = (int)Math.round( pojemnoscOsob * Config.BOARDING_CAR_SHARE );
+		int cars = Math.min( carsInQueue, carPlaces / carSize );
+		int people = Math.min( peopleInQueue, pojemnoscOsob - cars * carSize );
+		// room the people did not need goes to more cars
+		cars += Math.min( carsInQueue - cars, (pojemnoscOsob - cars * carSize - people) / carSize );
+		return BoardingDecision.of( people, cars );
+	}
+}
@@ -0,0 +1,43 @@
+package Model;
+
+/**
+ * A timestamped event on the {@link FerrySimulation} event queue. Events with equal
+ * time are ordered by the sequence number they were scheduled with.
+ */
+final class FerryEvent implements Comparable<FerryEvent>
+{
+	enum Type
+	{
+		ARRIVAL,             // PrzybyciePromuNaStacje
+		BOARDING,            // ZaladunekRozpoczety
+		BOARDING_COMPLETED,  // ZaladunekZakonczony
+		DEPARTURE,           // OdplynieciePromuZeStacji
+		QUEUE_ARRIVALS       // napływ osób i samochodów na wszystkie stacje (ArrivalProcess)
+	}
+
+	final double time;
+	final long sequence;
+	final Type type;
+	final int ferry;
+	final int station;
+	final int people;
+	final int cars;
+
+	FerryEvent( double time, long sequence, Type type, int ferry, int station, int people, int cars )
+	{
+		this.time = time;
+		this.sequence = sequence;
+		this.type = type;
+		this.ferry = ferry;
+		this.station = station;
+		this.people = people;
+		this.cars = cars;
+	}
+
+	@Override
+	public int compareTo( FerryEvent other )
+	{
+		int byTime = Double.compare( this.time, other.time );
+		return byTime != 0 ? byTime : Long.compare( this.sequence, other.sequence );
+	}
+}
@@ -0,0 +1,337 @@
+package Model;
+
+import Common.Log;
+import Config.Config;
+
+import java.util.PriorityQueue;
+import java.util.SplittableRandom;
+
+/**
+ * Standalone discrete-event version of the ferry model, meant for large parameter
+ * sweeps; the HLA federation remains the integration setup. It has the same steps and
+ * step durations (Config.CZAS_*) - the ferry arrives, boards, finishes boarding and
+ * departs, the station queues are filled at the start and unloaded when boarding
+ * completes - run from a priority queue of timestamped events, without the RTI.
+ * <p/>
+ * It is an idealized version, not a replay of the federation: the trip counts for a
+ * seed are not those of a federation run. Here every ferry decides from the actual
+ * queues, where a Prom federate decides from the last Stacja attributes it reflected
+ * (cleared at the start of each experiment, so its first visits may board nothing).
+ * And here the result counts the departure that empties the queues, where the Stacja
+ * reports the trip count of the last Prom update it reflected.
+ * <p/>
+ * With several ferries, ferry {@code k} starts at station {@code k % liczbaStacji} and
+ * they all share the station queues; ferries docked at the same station decide from the
+ * same queue state.
+ * <p/>
+ * An experiment ends on the departure that leaves every queue empty, and its result
+ * is the number of departures (trips) all ferries made up to and including that one.
+ * With an {@link ArrivalProcess} the stations keep receiving people and cars, and the
+ * experiment instead ends after its duration, with the trips made until then.
+ * <p/>
+ * What a ferry boards and where it sails next are decided by a {@link BoardingPolicy}
+ * and a {@link RoutingPolicy}, by default those of Config (-Dferry.boarding,
+ * -Dferry.routing).
+ */
+public class FerrySimulation
+{
+	//----------------------------------------------------------
+	//                    STATIC VARIABLES
+	//----------------------------------------------------------
+	private static final Log LOG = Log.get( "FerrySimulation   " );
+
+	//----------------------------------------------------------
+	//                   INSTANCE VARIABLES
+	//----------------------------------------------------------
+	private final int liczbaStacji;
+	private final int liczbaPromow;
+	private final int pojemnoscOsob;
+	private final int maksPojemnoscStacji;
+	private final double carProbability;
+	private final ArrivalProcess arrivals;   // null: the queues are only filled at the start
+	private final BoardingPolicy boardingPolicy;
+	private final RoutingPolicy routingPolicy;
+
+	private final PriorityQueue<FerryEvent> events = new PriorityQueue<>();
+	private long nextSequence;
+	private double currentTime;
+
+	// stan stacji
+	private StationQueues queues;
+	private SplittableRandom[] stationRandom;
+
+	// stan promów
+	private int[] polozenie;
+	private int liczbaKursow;
+	private long przewiezioneJednostki;   // osoby i samochody zabrane w tym eksperymencie
+	private SplittableRandom[] ferryRandom;
+
+	//----------------------------------------------------------
+	//                      CONSTRUCTORS
+	//----------------------------------------------------------
+	public FerrySimulation()
+	{
+		this( Config.LICZBA_STACJI, Config.LICZBA_PROMOW, Config.POJEMNOSC_OSOB_PROMU,
+		      Config.MAKS_LACZNA_POJEMNOSC_STACJI, Config.CAR_PROBABILITY );
+	}
+
+	public FerrySimulation( int liczbaStacji, int pojemnoscOsob, int maksPojemnoscStacji, double carProbability )
+	{
+		this( liczbaStacji, 1, pojemnoscOsob, maksPojemnoscStacji, carProbability );
+	}
+
+	public FerrySimulation( int liczbaStacji, int liczbaPromow, int pojemnoscOsob, int maksPojemnoscStacji,
+	                        double carProbability )
+	{
+		this( liczbaStacji, liczbaPromow, pojemnoscOsob, maksPojemnoscStacji, carProbability,
+		      ArrivalProcess.fromConfig(liczbaStacji) );
+	}
+
+	public FerrySimulation( int liczbaStacji, int liczbaPromow, int pojemnoscOsob, int maksPojemnoscStacji,
+	                        double carProbability, ArrivalProcess arrivals )
+	{
+		this( liczbaStacji, liczbaPromow, pojemnoscOsob, maksPojemnoscStacji, carProbability, arrivals,
+		      BoardingPolicy.named(Config.POLITYKA_ZALADUNKU), RoutingPolicy.named(Config.POLITYKA_TRASY) );
+	}
+
+	public FerrySimulation( int liczbaStacji, int liczbaPromow, int pojemnoscOsob, int maksPojemnoscStacji,
+	                        double carProbability, ArrivalProcess arrivals, BoardingPolicy boardingPolicy,
+	                        RoutingPolicy routingPolicy )
+	{
+		if( liczbaStacji < 1 || liczbaPromow < 1 || pojemnoscOsob < 1 )
+			throw new IllegalArgumentException( "Need at least one station, one ferry and a ferry capacity of at least one" );
+
+		this.liczbaStacji = liczbaStacji;
+		this.liczbaPromow = liczbaPromow;
+		this.pojemnoscOsob = pojemnoscOsob;
+		this.maksPojemnoscStacji = maksPojemnoscStacji;
+		this.carProbability = carProbability;
+		this.arrivals = arrivals;
+		this.boardingPolicy = boardingPolicy;
+		this.routingPolicy = routingPolicy;
+	}
+
+	//----------------------------------------------------------
+	//                    INSTANCE METHODS
+	//----------------------------------------------------------
+	/**
+	 * Runs a single experiment and returns the number of trips the ferries needed to
+	 * transport every waiting person and car. The random streams of the stations and
+	 * ferries are derived from the seed by {@link RandomStreams}, like in the federation
+	 * (the trip counts still differ, see the class comment).
+	 */
+	public int runExperiment( long seed )
+	{
+		reset( seed );
+		fillQueues();
+		if( arrivals == null && queues.isEmpty() )
+			return 0;
+
+		for( int ferry = 0; ferry < liczbaPromow; ferry++ )
+		{
+			schedule( 0.0, FerryEvent.Type.ARRIVAL, ferry, polozenie[ferry], 0, 0 );
+		}
+		if( arrivals != null )
+			schedule( arrivals.batch(), FerryEvent.Type.QUEUE_ARRIVALS, -1, -1, 0, 0 );
+
+		while( !events.isEmpty() )
+		{
+			FerryEvent event = events.poll();
+			if( arrivals != null && event.time > arrivals.duration() )
+			{
+				events.clear();
+				currentTime = arrivals.duration();
+				return liczbaKursow;
+			}
+			currentTime = event.time;
+
+			switch( event.type )
+			{
+				case QUEUE_ARRIVALS:
+					for( int station = 0; station < liczbaStacji; station++ )
+					{
+						arrivals.arrive( queues, station, station, currentTime - arrivals.batch(), currentTime,
+						                 stationRandom[station] );
+					}
+					schedule( currentTime + arrivals.batch(), FerryEvent.Type.QUEUE_ARRIVALS, -1, -1, 0, 0 );
+					break;
+
+				case ARRIVAL:
+					schedule( currentTime + Config.CZAS_CUMOWANIA, FerryEvent.Type.BOARDING, event.ferry, event.station, 0, 0 );
+					break;
+
+				case BOARDING:
+					board( event.ferry, event.station );
+					break;
+
+				case BOARDING_COMPLETED:
+					przewiezioneJednostki += queues.removePeople( event.station, event.people );
+					przewiezioneJednostki += queues.removeCars( event.station, event.cars );
+					schedule( currentTime + Config.CZAS_ODCUMOWANIA, FerryEvent.Type.DEPARTURE, event.ferry, event.station, 0, 0 );
+					break;
+
+				case DEPARTURE:
+					polozenie[event.ferry] = routingPolicy.next( event.station, liczbaStacji, queues, ferryRandom[event.ferry] );
+					liczbaKursow++;
+					if( arrivals == null && queues.isEmpty() )
+					{
+						events.clear();
+						return liczbaKursow;
+					}
+					schedule( currentTime + Config.CZAS_REJSU, FerryEvent.Type.ARRIVAL, event.ferry,
+					          polozenie[event.ferry], 0, 0 );
+					break;
+			}
+		}
+		return liczbaKursow;
+	}
+
+	/**
+	 * Runs {@code count} independent experiments, each with its own seed derived from
+	 * the given one, and returns the trip count of each.
+	 */
+	public int[] runExperiments( int count, long seed )
+	{
+		long[] seeds = experimentSeeds( count, seed );
+		int[] trips = new int[count];
+		for( int i = 0; i < count; i++ )
+		{
+			trips[i] = runExperiment( seeds[i] );
+		}
+		return trips;
+	}
+
+	/** People and cars the ferries took on board in the last experiment */
+	public long getTransported()
+	{
+		return przewiezioneJednostki;
+	}
+
+	/** People and cars still waiting at the end of the last experiment (with arrivals) */
+	public long getWaiting()
+	{
+		long waiting = 0;
+		for( int station = 0; station < liczbaStacji; station++ )
+			waiting += queues.people( station ) + queues.cars( station );
+		return waiting;
+	}
+
+	/** Logical time at which the last experiment finished */
+	public double getCurrentTime()
+	{
+		return currentTime;
+	}
+
+	private void reset( long seed )
+	{
+		events.clear();
+		nextSequence = 0;
+		currentTime = 0.0;
+
+		stationRandom = new SplittableRandom[liczbaStacji];
+		for( int station = 0; station < liczbaStacji; station++ )
+		{
+			stationRandom[station] = RandomStreams.stationStream( seed, station );
+		}
+
+		queues = new StationQueues( liczbaStacji );
+		polozenie = new int[liczbaPromow];
+		ferryRandom = new SplittableRandom[liczbaPromow];
+		for( int ferry = 0; ferry < liczbaPromow; ferry++ )
+		{
+			polozenie[ferry] = ferry % liczbaStacji;
+			ferryRandom[ferry] = RandomStreams.ferryStream( seed, ferry );
+		}
+		liczbaKursow = 0;
+		przewiezioneJednostki = 0;
+	}
+
+	private void fillQueues()
+	{
+		for( int i = 0; i < liczbaStacji; i++ )
+		{
+			queues.fill( i, maksPojemnoscStacji, carProbability, stationRandom[i] );
+		}
+	}
+
+	private void board( int ferry, int station )
+	{
+		BoardingDecision decision = boardingPolicy.decide( queues.people(station), queues.cars(station),
+		                                                   pojemnoscOsob, ferryRandom[ferry] );
+		if( decision.isEmpty() )
+		{
+			// nothing to take, the ferry leaves straight away
+			schedule( currentTime, FerryEvent.Type.DEPARTURE, ferry, station, 0, 0 );
+			return;
+		}
+
+		schedule( currentTime + Config.CZAS_ZALADUNKU, FerryEvent.Type.BOARDING_COMPLETED, ferry, station,
+		          decision.people(), decision.cars() );
+	}
+
+	private void schedule( double time, FerryEvent.Type type, int ferry, int station, int people, int cars )
+	{
+		events.add( new FerryEvent(time, nextSequence++, type, ferry, station, people, cars) );
+	}
+
+	//----------------------------------------------------------
+	//                     STATIC METHODS
+	//----------------------------------------------------------
+	private static void log( String message )
+	{
+		LOG.info( message );
+	}
+
+	/**
+	 * Seeds of the individual experiments of a run, the same ones the federates derive
+	 * from the master seed and experiment number the Manager sends. Each depends only on
+	 * its experiment number, so the experiments can be executed in any order (or in
+	 * parallel) with the same results.
+	 */
+	public static long[] experimentSeeds( int count, long seed )
+	{
+		long[] result = new long[count];
+		for( int i = 0; i < count; i++ )
+		{
+			result[i] = RandomStreams.experimentSeed( seed, i );
+		}
+		return result;
+	}
+
+	public static void main( String[] args )
+	{
+		long seed = args.length != 0 ? Long.parseLong( args[0] ) : System.nanoTime();
+
+		long start = System.nanoTime();
+		FerrySimulation simulation = new FerrySimulation();
+		long[] seeds = experimentSeeds( Config.LICZBA_EKSPERYMENTOW, seed );
+		double averageTrips = 0.0, averageTransported = 0.0, averageWaiting = 0.0;
+		for( long experimentSeed : seeds )
+		{
+			averageTrips += simulation.runExperiment( experimentSeed );
+			averageTransported += simulation.getTransported();
+			averageWaiting += simulation.getWaiting();
+		}
+		int count = Math.max( 1, seeds.length );
+		averageTrips /= count;
+		averageTransported /= count;
+		averageWaiting /= count;
+		long elapsed = System.nanoTime() - start;
+
+		log( "Ziarno: " + seed );
+		log( "Liczba eksperymentów: " + Config.LICZBA_EKSPERYMENTOW + ", liczba promów: " + Config.LICZBA_PROMOW );
+		log( "Maks. poj. kolejki na stacji: " + Config.MAKS_LACZNA_POJEMNOSC_STACJI );
+		log( "Polityka załadunku: " + Config.POLITYKA_ZALADUNKU + ", polityka trasy: " + Config.POLITYKA_TRASY );
+		ArrivalProcess arrivals = ArrivalProcess.fromConfig( Config.LICZBA_STACJI );
+		if( arrivals != null )
+		{
+			log( "Napływ: " + arrivals );
+			log( "Średnia liczba kursów w czasie " + arrivals.duration() + ": " + String.format("%.2f", averageTrips) );
+			log( "Średnio przewiezionych jednostek: " + String.format("%.1f", averageTransported) +
+			     ", oczekujących na koniec: " + String.format("%.1f", averageWaiting) );
+		}
+		else
+			log( "Średnia liczba kursów potrzebna do obsłużenia kolejek: " + String.format("%.2f", averageTrips) );
+		log( "Czas obliczeń: " + (elapsed / 1_000_000.0) + " ms" );
+	}
+}
@@ -0,0 +1,154 @@
+package Model;
+
+import Common.Log;
+import Config.Config;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Runs independent experiments of the {@link FerrySimulation} concurrently on a
+ * ForkJoinPool. Each worker owns its own simulation instance and the experiment seeds
+ * are fixed up front, so the trip counts are identical to a sequential
+ * {@link FerrySimulation#runExperiments(int, long)} with the same seed.
+ */
+public class ParallelExperimentRunner
+{
+	//----------------------------------------------------------
+	//                    STATIC VARIABLES
+	//----------------------------------------------------------
+	private static final Log LOG = Log.get( "ExperimentRunner  " );
+
+	//----------------------------------------------------------
+	//                   INSTANCE VARIABLES
+	//----------------------------------------------------------
+	private final ForkJoinPool pool;
+
+	//----------------------------------------------------------
+	//                      CONSTRUCTORS
+	//----------------------------------------------------------
+	public ParallelExperimentRunner()
+	{
+		this( Runtime.getRuntime().availableProcessors() );
+	}
+
+	public ParallelExperimentRunner( int parallelism )
+	{
+		this.pool = new ForkJoinPool( parallelism );
+	}
+
+	//----------------------------------------------------------
+	//                    INSTANCE METHODS
+	//----------------------------------------------------------
+	/**
+	 * Runs {@code count} experiments for one set of model parameters and returns the
+	 * trip count of each, in experiment order.
+	 */
+	public int[] run( int liczbaStacji, int liczbaPromow, int pojemnoscOsob, int maksPojemnoscStacji,
+	                  double carProbability, int count, long seed )
+	{
+		long[] seeds = FerrySimulation.experimentSeeds( count, seed );
+		int[] trips = new int[count];
+		int batch = Math.max( 1, count / (pool.getParallelism() * 8) );
+
+		pool.invoke( new ExperimentBatch(liczbaStacji, liczbaPromow, pojemnoscOsob, maksPojemnoscStacji,
+		                                 carProbability, seeds, trips, 0, count, batch) );
+		return trips;
+	}
+
+	public void shutdown()
+	{
+		pool.shutdown();
+	}
+
+	//----------------------------------------------------------
+	//                     INNER CLASSES
+	//----------------------------------------------------------
+	/** Splits the experiment range in halves until it is small enough to run in one go */
+	private static class ExperimentBatch extends RecursiveAction
+	{
+		private static final long serialVersionUID = 1L;
+
+		private final int liczbaStacji;
+		private final int liczbaPromow;
+		private final int pojemnoscOsob;
+		private final int maksPojemnoscStacji;
+		private final double carProbability;
+		private final long[] seeds;
+		private final int[] trips;
+		private final int from;
+		private final int to;
+		private final int batch;
+
+		ExperimentBatch( int liczbaStacji, int liczbaPromow, int pojemnoscOsob, int maksPojemnoscStacji,
+		                 double carProbability, long[] seeds, int[] trips, int from, int to, int batch )
+		{
+			this.liczbaStacji = liczbaStacji;
+			this.liczbaPromow = liczbaPromow;
+			this.pojemnoscOsob = pojemnoscOsob;
+			this.maksPojemnoscStacji = maksPojemnoscStacji;
+			this.carProbability = carProbability;
+			this.seeds = seeds;
+			this.trips = trips;
+			this.from = from;
+			this.to = to;
+			this.batch = batch;
+		}
+
+		@Override
+		protected void compute()
+		{
+			if( to - from <= batch )
+			{
+				FerrySimulation simulation = new FerrySimulation( liczbaStacji, liczbaPromow, pojemnoscOsob,
+				                                                  maksPojemnoscStacji, carProbability );
+				for( int i = from; i < to; i++ )
+				{
+					trips[i] = simulation.runExperiment( seeds[i] );
+				}
+				return;
+			}
+
+			int middle = (from + to) >>> 1;
+			invokeAll( new ExperimentBatch(liczbaStacji, liczbaPromow, pojemnoscOsob, maksPojemnoscStacji,
+			                               carProbability, seeds, trips, from, middle, batch),
+			           new ExperimentBatch(liczbaStacji, liczbaPromow, pojemnoscOsob, maksPojemnoscStacji,
+			                               carProbability, seeds, trips, middle, to, batch) );
+		}
+	}
+
+	//----------------------------------------------------------
+	//                     STATIC METHODS
+	//----------------------------------------------------------
+	private static void log( String message )
+	{
+		LOG.info( message );
+	}
+
+	/**
+	 * Arguments: [number of experiments] [seed] [parallelism]
+	 */
+	public static void main( String[] args )
+	{
+		int count = args.length > 0 ? Integer.parseInt( args[0] ) : Config.LICZBA_EKSPERYMENTOW;
+		long seed = args.length > 1 ? Long.parseLong( args[1] ) : System.nanoTime();
+		int parallelism = args.length > 2 ? Integer.parseInt( args[2] ) : Runtime.getRuntime().availableProcessors();
+
+		ParallelExperimentRunner runner = new ParallelExperimentRunner( parallelism );
+		long start = System.nanoTime();
+		int[] trips = runner.run( Config.LICZBA_STACJI, Config.LICZBA_PROMOW, Config.POJEMNOSC_OSOB_PROMU,
+		                          Config.MAKS_LACZNA_POJEMNOSC_STACJI, Config.CAR_PROBABILITY, count, seed );
+		long elapsed = System.nanoTime() - start;
+		runner.shutdown();
+
+		double averageTrips = 0.0;
+		for( int t : trips )
+			averageTrips += t;
+		averageTrips /= Math.max( 1, trips.length );
+
+		log( "Ziarno: " + seed + ", wątki: " + parallelism );
+		log( "Liczba eksperymentów: " + count );
+		log( "Średnia liczba kursów potrzebna do obsłużenia kolejek: " + String.format("%.2f", averageTrips) );
+		log( String.format("Przepustowość: %.0f eksperymentów/s", count / (elapsed / 1e9)) );
+	}
+}
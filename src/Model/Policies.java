@@ -0,0 +1,31 @@
+package Model;
+
+import java.util.List;
+
+/** Loads the policies that are not built in (see {@link BoardingPolicy#named}, {@link RoutingPolicy#named}) */
+final class Policies
+{
+	private Policies()
+	{
+	}
+
+	static <T> T load( String name, Class<T> type, List<String> builtIn )
+	{
+		try
+		{
+			Class<?> implementation = Class.forName( name );
+			if( !type.isAssignableFrom(implementation) )
+				throw new IllegalArgumentException( name + " is not a " + type.getSimpleName() );
+			return type.cast( implementation.getDeclaredConstructor().newInstance() );
+		}
+		catch( ClassNotFoundException e )
+		{
+			throw new IllegalArgumentException( "Unknown " + type.getSimpleName() + " '" + name + "', expected one of " +
+			                                    builtIn + " or a class name", e );
+		}
+		catch( ReflectiveOperationException e )
+		{
+			throw new IllegalArgumentException( "Cannot create " + type.getSimpleName() + " " + name + ": " + e, e );
+		}
+	}
+}
@@ -0,0 +1,426 @@
+package Model;
+
+import Common.StreamingStats;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Locale;
+
+/**
+ * How long the people and cars of every station waited, and how long the queues were.
+ * The queues themselves are plain counters (see {@link StationQueues}); this keeps the
+ * arrival times next to them, in first-in-first-out order, so a boarding knows how long
+ * the units it takes have been waiting. Arrivals of a batch share their time, so every
+ * station keeps runs of (time, count) in a ring of primitive arrays rather than one
+ * entry per unit: memory grows with the number of batches waiting, not with the queue.
+ * <p/>
+ * Waiting times go into a {@link StreamingStats} per station and unit type, recorded in
+ * thousandths of a unit of logical time ({@link #TIME_SCALE}). Queue lengths are
+ * averaged over time: every change adds length * duration to the station's area.
+ * <p/>
+ * The calls have to mirror those on the StationQueues, with the same counts, and come in
+ * the order of their logical times.
+ */
+public final class QueueStatistics
+{
+	//----------------------------------------------------------
+	//                    STATIC VARIABLES
+	//----------------------------------------------------------
+	/** Waiting times are recorded in units of 1/TIME_SCALE of logical time */
+	public static final long TIME_SCALE = 1000;
+
+	//----------------------------------------------------------
+	//                   INSTANCE VARIABLES
+	//----------------------------------------------------------
+	private final ArrivalRing[] people;
+	private final ArrivalRing[] cars;
+	private final StreamingStats[] peopleWaits;
+	private final StreamingStats[] carWaits;
+	private final double[] peopleArea;
+	private final double[] carArea;
+	private final double[] lastChange;
+	private double start;
+
+	//----------------------------------------------------------
+	//                      CONSTRUCTORS
+	//----------------------------------------------------------
+	public QueueStatistics( int liczbaStacji )
+	{
+		this.people = new ArrivalRing[liczbaStacji];
+		this.cars = new ArrivalRing[liczbaStacji];
+		this.peopleWaits = new StreamingStats[liczbaStacji];
+		this.carWaits = new StreamingStats[liczbaStacji];
+		this.peopleArea = new double[liczbaStacji];
+		this.carArea = new double[liczbaStacji];
+		this.lastChange = new double[liczbaStacji];
+		for( int station = 0; station < liczbaStacji; station++ )
+		{
+			people[station] = new ArrivalRing();
+			cars[station] = new ArrivalRing();
+		}
+		start( 0.0 );
+	}
+
+	//----------------------------------------------------------
+	//                    INSTANCE METHODS
+	//----------------------------------------------------------
+	/** Forgets everything, for an experiment starting at the given time with empty queues */
+	public void start( double time )
+	{
+		for( int station = 0; station < people.length; station++ )
+		{
+			people[station].clear();
+			cars[station].clear();
+			peopleWaits[station] = new StreamingStats();
+			carWaits[station] = new StreamingStats();
+			peopleArea[station] = 0.0;
+			carArea[station] = 0.0;
+			lastChange[station] = time;
+		}
+		start = time;
+	}
+
+	/** People and cars that joined the queues of a station at the given time */
+	public void arrived( int station, int peopleCount, int carCount, double time )
+	{
+		accumulate( station, time );
+		if( peopleCount > 0 )
+			people[station].push( time, peopleCount );
+		if( carCount > 0 )
+			cars[station].push( time, carCount );
+	}
+
+	/**
+	 * People and cars that left a station on a ferry at the given time, the ones that
+	 * came first. Their waiting times go into the statistics of the station.
+	 */
+	public void boarded( int station, int peopleCount, int carCount, double time )
+	{
+		accumulate( station, time );
+		if( peopleCount > 0 )
+			people[station].pop( peopleCount, time, peopleWaits[station] );
+		if( carCount > 0 )
+			cars[station].pop( carCount, time, carWaits[station] );
+	}
+
+	private void accumulate( int station, double time )
+	{
+		double elapsed = time - lastChange[station];
+		if( elapsed <= 0.0 )
+			return;
+		peopleArea[station] += people[station].units * elapsed;
+		carArea[station] += cars[station].units * elapsed;
+		lastChange[station] = time;
+	}
+
+	/**
+	 * Everything measured at the stations until the given time, the end of the experiment.
+	 * {@code firstStation} is the global id of station 0, so the Manager can tell the
+	 * stations of different partitions apart.
+	 */
+	public Report report( int firstStation, double time )
+	{
+		Report report = new Report();
+		double duration = time - start;
+		for( int station = 0; station < people.length; station++ )
+		{
+			accumulate( station, time );
+			double meanPeople = duration > 0 ? peopleArea[station] / duration : people[station].units;
+			double meanCars = duration > 0 ? carArea[station] / duration : cars[station].units;
+			report.add( firstStation + station, peopleWaits[station], carWaits[station], meanPeople, meanCars,
+			            people[station].units + cars[station].units );
+		}
+		return report;
+	}
+
+	/** Writes the complete state, e.g. into a checkpoint */
+	public void writeTo( DataOutput out ) throws IOException
+	{
+		out.writeInt( people.length );
+		out.writeDouble( start );
+		for( int station = 0; station < people.length; station++ )
+		{
+			people[station].writeTo( out );
+			cars[station].writeTo( out );
+			peopleWaits[station].writeTo( out );
+			carWaits[station].writeTo( out );
+			out.writeDouble( peopleArea[station] );
+			out.writeDouble( carArea[station] );
+			out.writeDouble( lastChange[station] );
+		}
+	}
+
+	/** Statistics written by {@link #writeTo} */
+	public static QueueStatistics readFrom( DataInput in ) throws IOException
+	{
+		QueueStatistics statistics = new QueueStatistics( in.readInt() );
+		statistics.start = in.readDouble();
+		for( int station = 0; station < statistics.people.length; station++ )
+		{
+			statistics.people[station].readFrom( in );
+			statistics.cars[station].readFrom( in );
+			statistics.peopleWaits[station] = StreamingStats.readFrom( in );
+			statistics.carWaits[station] = StreamingStats.readFrom( in );
+			statistics.peopleArea[station] = in.readDouble();
+			statistics.carArea[station] = in.readDouble();
+			statistics.lastChange[station] = in.readDouble();
+		}
+		return statistics;
+	}
+
+	//----------------------------------------------------------
+	//                     INNER CLASSES
+	//----------------------------------------------------------
+	/**
+	 * Arrival times of the units waiting at one station, oldest first, as runs of units
+	 * that arrived at the same time. A ring buffer that doubles when it is full.
+	 */
+	private static final class ArrivalRing
+	{
+		private double[] times = new double[4];
+		private int[] counts = new int[4];
+		private int head;
+		private int size;
+		private long units;
+
+		void push( double time, int count )
+		{
+			if( size > 0 )
+			{
+				int last = (head + size - 1) & (times.length - 1);
+				if( times[last] == time )
+				{
+					counts[last] += count;
+					units += count;
+					return;
+				}
+			}
+			if( size == times.length )
+				grow();
+			int tail = (head + size) & (times.length - 1);
+			times[tail] = time;
+			counts[tail] = count;
+			size++;
+			units += count;
+		}
+
+		/** Takes up to {@code count} of the oldest units and records how long they waited */
+		void pop( int count, double now, StreamingStats waits )
+		{
+			while( count > 0 && size > 0 )
+			{
+				int taken = Math.min( count, counts[head] );
+				long waited = Math.max( 0L, Math.round((now - times[head]) * TIME_SCALE) );
+				waits.add( waited, taken );
+				count -= taken;
+				units -= taken;
+				counts[head] -= taken;
+				if( counts[head] == 0 )
+				{
+					head = (head + 1) & (times.length - 1);
+					size--;
+				}
+			}
+		}
+
+		private void grow()
+		{
+			double[] newTimes = new double[times.length * 2];
+			int[] newCounts = new int[counts.length * 2];
+			for( int i = 0; i < size; i++ )
+			{
+				newTimes[i] = times[(head + i) & (times.length - 1)];
+				newCounts[i] = counts[(head + i) & (counts.length - 1)];
+			}
+			times = newTimes;
+			counts = newCounts;
+			head = 0;
+		}
+
+		void clear()
+		{
+			head = 0;
+			size = 0;
+			units = 0;
+		}
+
+		void writeTo( DataOutput out ) throws IOException
+		{
+			out.writeInt( size );
+			for( int i = 0; i < size; i++ )
+			{
+				out.writeDouble( times[(head + i) & (times.length - 1)] );
+				out.writeInt( counts[(head + i) & (counts.length - 1)] );
+			}
+		}
+
+		void readFrom( DataInput in ) throws IOException
+		{
+			clear();
+			int runs = in.readInt();
+			for( int i = 0; i < runs; i++ )
+			{
+				double time = in.readDouble();
+				int count = in.readInt();
+				if( size == times.length )
+					grow();
+				times[size] = time;
+				counts[size] = count;
+				size++;
+				units += count;
+			}
+		}
+	}
+
+	/**
+	 * Waiting times and mean queue lengths of a group of stations: one partition at the end
+	 * of an experiment, or everything the Manager has been sent. Stations are merged into
+	 * one distribution per unit type; the station with the longest mean wait is kept. A
+	 * report over several experiments gives the station count and queue lengths per
+	 * experiment, averaged over them.
+	 */
+	public static final class Report
+	{
+		private final StreamingStats peopleWaits = new StreamingStats();
+		private final StreamingStats carWaits = new StreamingStats();
+		private int experiments;             // the sums below cover this many experiments
+		private int stations;
+		private double meanPeople;           // time-weighted, summed over the stations
+		private double meanCars;
+		private long waiting;                // still in the queues at the end
+		private int worstStation = -1;
+		private double worstWait;
+
+		private void add( int station, StreamingStats people, StreamingStats cars, double stationPeople,
+		                  double stationCars, long stationWaiting )
+		{
+			peopleWaits.merge( people );
+			carWaits.merge( cars );
+			experiments = 1;
+			stations++;
+			meanPeople += stationPeople;
+			meanCars += stationCars;
+			waiting += stationWaiting;
+			double wait = Math.max( people.mean(), cars.mean() );
+			if( worstStation < 0 || wait > worstWait )
+			{
+				worstStation = station;
+				worstWait = wait;
+			}
+		}
+
+		/** Adds the stations of another report of the same experiment, e.g. of another partition */
+		public void merge( Report other )
+		{
+			experiments = Math.max( experiments, other.experiments );
+			sum( other );
+		}
+
+		/** Adds the report of other experiments; queue lengths become averages over all of them */
+		public void addExperiment( Report other )
+		{
+			experiments += other.experiments;
+			sum( other );
+		}
+
+		private void sum( Report other )
+		{
+			peopleWaits.merge( other.peopleWaits );
+			carWaits.merge( other.carWaits );
+			stations += other.stations;
+			meanPeople += other.meanPeople;
+			meanCars += other.meanCars;
+			waiting += other.waiting;
+			if( other.worstStation >= 0 && (worstStation < 0 || other.worstWait > worstWait) )
+			{
+				worstStation = other.worstStation;
+				worstWait = other.worstWait;
+			}
+		}
+
+		/** Waiting times of the people that boarded, in 1/TIME_SCALE of logical time */
+		public StreamingStats peopleWaits()
+		{
+			return peopleWaits;
+		}
+
+		/** Waiting times of the cars that boarded, in 1/TIME_SCALE of logical time */
+		public StreamingStats carWaits()
+		{
+			return carWaits;
+		}
+
+		public int experiments()
+		{
+			return experiments;
+		}
+
+		/** Stations of the report, per experiment */
+		public int stations()
+		{
+			return (int)Math.round( perExperiment(stations) );
+		}
+
+		/** Time-weighted mean number of people waiting, over all stations of the report, per experiment */
+		public double meanPeopleQueue()
+		{
+			return perExperiment( meanPeople );
+		}
+
+		/** Time-weighted mean number of cars waiting, over all stations of the report, per experiment */
+		public double meanCarQueue()
+		{
+			return perExperiment( meanCars );
+		}
+
+		/** People and cars still waiting at the end, per experiment */
+		public double waitingAtEnd()
+		{
+			return perExperiment( waiting );
+		}
+
+		private double perExperiment( double sum )
+		{
+			return experiments > 1 ? sum / experiments : sum;
+		}
+
+		public void writeTo( DataOutput out ) throws IOException
+		{
+			peopleWaits.writeTo( out );
+			carWaits.writeTo( out );
+			out.writeInt( experiments );
+			out.writeInt( stations );
+			out.writeDouble( meanPeople );
+			out.writeDouble( meanCars );
+			out.writeLong( waiting );
+			out.writeInt( worstStation );
+			out.writeDouble( worstWait );
+		}
+
+		public static Report readFrom( DataInput in ) throws IOException
+		{
+			Report report = new Report();
+			report.peopleWaits.merge( StreamingStats.readFrom(in) );
+			report.carWaits.merge( StreamingStats.readFrom(in) );
+			report.experiments = in.readInt();
+			report.stations = in.readInt();
+			report.meanPeople = in.readDouble();
+			report.meanCars = in.readDouble();
+			report.waiting = in.readLong();
+			report.worstStation = in.readInt();
+			report.worstWait = in.readDouble();
+			return report;
+		}
+
+		@Override
+		public String toString()
+		{
+			String scope = experiments > 1 ? experiments + " eksperymentów, na eksperyment " : "";
+			return String.format( Locale.ROOT, "%s%d stacji, średnio w kolejkach %.1f osób i %.1f samochodów, na koniec czeka %.0f; " +
+			                      "oczekiwanie [1/%d czasu] osób: %s; samochodów: %s; najdłużej na stacji %d (%.0f)",
+			                      scope, stations(), meanPeopleQueue(), meanCarQueue(), waitingAtEnd(), TIME_SCALE,
+			                      peopleWaits, carWaits, worstStation, worstWait );
+		}
+	}
+}
@@ -0,0 +1,62 @@
+package Model;
+
+import java.util.SplittableRandom;
+
+/**
+ * Derivation of the random number streams of an experiment from a single master seed.
+ * The Manager broadcasts the master seed and the experiment number; every federate (and
+ * the standalone engine) derives the same streams from them, so a run can be repeated
+ * exactly and compared with another one experiment for experiment.
+ * <p/>
+ * Each station and each ferry gets its own SplittableRandom, keyed by the global station
+ * id or ferry number. The streams do not depend on how stations are split between Stacja
+ * federates, nothing is shared between threads, and the order in which streams are
+ * created or used does not matter.
+ */
+public final class RandomStreams
+{
+	//----------------------------------------------------------
+	//                    STATIC VARIABLES
+	//----------------------------------------------------------
+	private static final long GOLDEN_GAMMA = 0x9E3779B97F4A7C15L;
+
+	// separate the families of streams, so station 3 and ferry 3 do not draw the same numbers
+	private static final long STATION_STREAMS = 0x53746163_6A610000L;
+	private static final long FERRY_STREAMS = 0x50726F6D_00000000L;
+
+	//----------------------------------------------------------
+	//                      CONSTRUCTORS
+	//----------------------------------------------------------
+	private RandomStreams()
+	{
+	}
+
+	//----------------------------------------------------------
+	//                     STATIC METHODS
+	//----------------------------------------------------------
+	/** Seed of the given experiment (numbered from 0) of a run with the given master seed */
+	public static long experimentSeed( long masterSeed, int experiment )
+	{
+		return mix64( masterSeed + GOLDEN_GAMMA * (experiment + 1L) );
+	}
+
+	/** Stream of the station with the given (global) id in the experiment */
+	public static SplittableRandom stationStream( long experimentSeed, int station )
+	{
+		return new SplittableRandom( mix64(experimentSeed ^ mix64(STATION_STREAMS + GOLDEN_GAMMA * station)) );
+	}
+
+	/** Stream of the ferry with the given number in the experiment */
+	public static SplittableRandom ferryStream( long experimentSeed, int ferry )
+	{
+		return new SplittableRandom( mix64(experimentSeed ^ mix64(FERRY_STREAMS + GOLDEN_GAMMA * ferry)) );
+	}
+
+	/** The SplitMix64 finaliser: spreads nearby inputs over the whole 64-bit range */
+	private static long mix64( long z )
+	{
+		z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+		z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+		return z ^ (z >>> 31);
+	}
+}
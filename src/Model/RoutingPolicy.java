@@ -0,0 +1,87 @@
+package Model;
+
+import java.util.List;
+import java.util.random.RandomGenerator;
+
+/**
+ * Where a ferry sails after leaving a station. Chosen per experiment by name (politykaTrasy
+ * in the experiment plan, see {@link #named}):
+ * <ul>
+ *   <li>{@code kolejna} - the original route: always the next station, (station + 1) % liczbaStacji</li>
+ *   <li>{@code najdluzszaKolejka} - the station where most people and cars wait</li>
+ *   <li>{@code najblizszaNiepusta} - the first station along the route where anybody waits: no
+ *       trip is spent on an empty station, and the stations are still served in turn, so
+ *       nobody waits longer than one round</li>
+ * </ul>
+ * Both queue-driven policies look at the other stations first and only return to the one
+ * the ferry leaves when nobody waits anywhere else; with every queue empty they take the
+ * next station. Ties go to the station that comes first along the route. Any other name
+ * is taken as the class name of an implementation with a public no-argument constructor.
+ * <p/>
+ * Sailing to any station takes Config.CZAS_REJSU, and counts as one trip. The queues are
+ * those the ferry knows about: in the federation the last reflected Stacja attributes.
+ */
+public interface RoutingPolicy
+{
+	String KOLEJNA = "kolejna";
+	String NAJDLUZSZA_KOLEJKA = "najdluzszaKolejka";
+	String NAJBLIZSZA_NIEPUSTA = "najblizszaNiepusta";
+	List<String> BUILT_IN = List.of( KOLEJNA, NAJDLUZSZA_KOLEJKA, NAJBLIZSZA_NIEPUSTA );
+
+	/** Queue lengths by global station id, as far as the ferry knows them */
+	interface Queues
+	{
+		int people( int station );
+
+		int cars( int station );
+	}
+
+	int next( int station, int liczbaStacji, Queues queues, RandomGenerator random );
+
+	/** The built-in policy of that name, or an instance of the named class */
+	static RoutingPolicy named( String name )
+	{
+		switch( name )
+		{
+			case KOLEJNA:
+				return (station, liczbaStacji, queues, random) -> (station + 1) % liczbaStacji;
+			case NAJDLUZSZA_KOLEJKA:
+				return RoutingPolicy::longestQueue;
+			case NAJBLIZSZA_NIEPUSTA:
+				return RoutingPolicy::nearestWaiting;
+			default:
+				return Policies.load( name, RoutingPolicy.class, BUILT_IN );
+		}
+	}
+
+	private static int longestQueue( int station, int liczbaStacji, Queues queues, RandomGenerator random )
+	{
+		int best = (station + 1) % liczbaStacji;
+		int bestLoad = 0;
+		for( int k = 1; k < liczbaStacji; k++ )
+		{
+			int candidate = (station + k) % liczbaStacji;
+			int load = queues.people( candidate ) + queues.cars( candidate );
+			if( load > bestLoad )
+			{
+				best = candidate;
+				bestLoad = load;
+			}
+		}
+		if( bestLoad == 0 && queues.people(station) + queues.cars(station) > 0 )
+			return station;
+		return best;
+	}
+
+	private static int nearestWaiting( int station, int liczbaStacji, Queues queues, RandomGenerator random )
+	{
+		// k == liczbaStacji is the station itself, the last resort
+		for( int k = 1; k <= liczbaStacji; k++ )
+		{
+			int candidate = (station + k) % liczbaStacji;
+			if( queues.people(candidate) + queues.cars(candidate) > 0 )
+				return candidate;
+		}
+		return (station + 1) % liczbaStacji;
+	}
+}
@@ -0,0 +1,120 @@
+package Model;
+
+import java.util.Arrays;
+import java.util.random.RandomGenerator;
+
+/**
+ * Waiting people and cars of every station, kept as plain counters indexed by
+ * station id. Filling and unloading cost O(1) per call regardless of queue length (the
+ * cars among new arrivals are drawn from a binomial distribution, not one by one), and
+ * memory does not grow with station capacity. The number of non-empty stations is
+ * kept up to date as well, so {@link #isEmpty()} does not scan thousands of stations.
+ */
+public final class StationQueues implements RoutingPolicy.Queues
+{
+	private final int[] people;
+	private final int[] cars;
+	private int nonEmptyStations;
+
+	public StationQueues( int liczbaStacji )
+	{
+		this.people = new int[liczbaStacji];
+		this.cars = new int[liczbaStacji];
+	}
+
+	public int stationCount()
+	{
+		return people.length;
+	}
+
+	@Override
+	public int people( int station )
+	{
+		return people[station];
+	}
+
+	@Override
+	public int cars( int station )
+	{
+		return cars[station];
+	}
+
+	/**
+	 * Adds {@code count} arrivals to the station, each of them a car with the given
+	 * probability and a person otherwise. The number of cars is drawn at once from the
+	 * binomial distribution.
+	 */
+	public void fill( int station, int count, double carProbability, RandomGenerator random )
+	{
+		int newCars = ArrivalProcess.binomial( count, carProbability, random );
+		boolean wasEmpty = isEmpty( station );
+		cars[station] += newCars;
+		people[station] += count - newCars;
+		updateNonEmpty( station, wasEmpty );
+	}
+
+	/** Adds the given numbers of arriving people and cars to the station */
+	public void add( int station, int peopleCount, int carCount )
+	{
+		boolean wasEmpty = isEmpty( station );
+		people[station] += peopleCount;
+		cars[station] += carCount;
+		updateNonEmpty( station, wasEmpty );
+	}
+
+	/** Removes up to {@code count} people and returns how many were actually there */
+	public int removePeople( int station, int count )
+	{
+		boolean wasEmpty = isEmpty( station );
+		int removed = Math.min( count, people[station] );
+		people[station] -= removed;
+		updateNonEmpty( station, wasEmpty );
+		return removed;
+	}
+
+	/** Removes up to {@code count} cars and returns how many were actually there */
+	public int removeCars( int station, int count )
+	{
+		boolean wasEmpty = isEmpty( station );
+		int removed = Math.min( count, cars[station] );
+		cars[station] -= removed;
+		updateNonEmpty( station, wasEmpty );
+		return removed;
+	}
+
+	/** Sets the queue lengths of a station directly, e.g. when restoring a snapshot */
+	public void set( int station, int peopleCount, int carCount )
+	{
+		boolean wasEmpty = isEmpty( station );
+		people[station] = peopleCount;
+		cars[station] = carCount;
+		updateNonEmpty( station, wasEmpty );
+	}
+
+	public void clear()
+	{
+		Arrays.fill( people, 0 );
+		Arrays.fill( cars, 0 );
+		nonEmptyStations = 0;
+	}
+
+	/** True when nobody is waiting at any station */
+	public boolean isEmpty()
+	{
+		return nonEmptyStations == 0;
+	}
+
+	public boolean isEmpty( int station )
+	{
+		return people[station] == 0 && cars[station] == 0;
+	}
+
+	private void updateNonEmpty( int station, boolean wasEmpty )
+	{
+		boolean empty = isEmpty( station );
+		if( wasEmpty && !empty )
+			nonEmptyStations++;
+		else if( !wasEmpty && empty )
+			nonEmptyStations--;
+	}
+}
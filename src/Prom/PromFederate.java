@@ -14,7 +14,17 @@
  */
 package Prom;
 
+import Common.CallbackQueue;
+import Common.HlaCodec;
+import Common.Log;
+import Common.MessageTags;
+import Common.Metrics;
+import Common.Snapshots;
 import Config.Config;
+import Model.BoardingDecision;
+import Model.BoardingPolicy;
+import Model.RoutingPolicy;
+import Model.RandomStreams;
 import hla.rti1516e.*;
 import hla.rti1516e.encoding.EncoderFactory;
 import hla.rti1516e.encoding.HLAboolean;
@@ -26,20 +36,26 @@ import hla.rti1516e.time.HLAfloat64Time;
 import hla.rti1516e.time.HLAfloat64TimeFactory;
 
 import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
+import java.io.IOException;
 import java.io.InputStreamReader;
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.HashMap;
 import java.util.Map;
-import java.util.Random;
+import java.util.SplittableRandom;
 
 
 public class PromFederate
 {
 	/** The sync point all federates will sync up on before starting */
 	public static final String READY_TO_RUN = "ReadyToRun";
-	private final String identyfikatorPromu = "Prom";
+	private static final Log LOG = Log.get( "PromFederate   " );
+	private String identyfikatorPromu = "Prom"; // nazwa federatu, unikalna w federacji
 
 	//----------------------------------------------------------
 	//                   INSTANCE VARIABLES
@@ -49,34 +65,102 @@ public class PromFederate
 	private HLAfloat64TimeFactory timeFactory; // set when we join
 	protected EncoderFactory encoderFactory;     // set when we join
 
+	// HLA_IMMEDIATE: callbacks are handed over through this queue (see Config.IMMEDIATE_CALLBACKS)
+	protected boolean immediateCallbacks = Config.IMMEDIATE_CALLBACKS;
+	protected final CallbackQueue callbacks = new CallbackQueue();
+	protected MessageTags tags = new MessageTags(MessageTags.Policy.valueOf(Config.TAG_POLICY));
+
+	// instrumentation, written to Config.METRICS_DIR when the federate leaves
+	protected final Metrics metrics = new Metrics( "Prom" );
+	protected final Metrics.Counter callbacksDelivered = metrics.counter( "callbacks" );
+	protected final Metrics.Histogram messageLatency = metrics.timer( "message.latency" );
+	private final Metrics.Histogram callbacksPerTick = metrics.histogram( "callbacks.per.tick" );
+	private final Metrics.Histogram timeAdvanceGrant = metrics.timer( "rti.timeAdvanceRequest.grant" );
+	private final Metrics.Histogram nextMessageGrant = metrics.timer( "rti.nextMessageRequest.grant" );
+	private final Metrics.Histogram interactionSend = metrics.timer( "rti.sendInteraction" );
+	private final Metrics.Histogram attributeUpdate = metrics.timer( "rti.updateAttributeValues" );
+
 	// caches of handle types - set once we join a federation
 	// Uchwyty Atrybutów Obiektu Prom
 	protected ObjectClassHandle promHandle;
 	protected AttributeHandle idPolaHandle, polozenieHandle, typZaladunkuHandle, liczbaPasazerowHandle, czySamochodHandle, liczbaKursowHandle;
 	private ObjectInstanceHandle promInstanceHandle;
+	private byte[] encodedIdentyfikatorPromu; // HLAunicodeString, zakodowany raz po dołączeniu
 
 	// Uchwyty Atrybutów Obiektu Stacja
 	protected ObjectClassHandle stacjaHandle;
 	protected AttributeHandle stacjaIdHandle, liczbaOsobHandle, liczbaAutHandle;
+	protected AttributeHandleSet stacjaAttributes;
 
 	// Uchwyty Interakcji
 	protected InteractionClassHandle przybycieHandle, zaladunekStartHandle, zaladunekKoniecHandle, odplyniecieHandle, startSimulationHandle;
 	protected InteractionClassHandle wszystkieJednostkiPrzetransportowaneHandle;
 
+	// Uchwyty Parametrów Interakcji
+	protected ParameterHandle przybyciePromIdParam, przybycieStacjaIdParam;
+	protected ParameterHandle zaladunekStartPromIdParam, zaladunekStartStacjaIdParam, zaladunekStartTypParam, zaladunekStartLiczbaParam;
+	protected ParameterHandle zaladunekKoniecPromIdParam, zaladunekKoniecStacjaIdParam;
+	protected ParameterHandle odplynieciePromIdParam, odplyniecieStacjaDocelowaParam;
+	protected ParameterHandle liczbaStacjiParam, pojemnoscOsobParam, ziarnoParam, numerEksperymentuParam;
+	protected ParameterHandle politykaZaladunkuParam, politykaTrasyParam;
+
 
 	// Stan symulacji
 	private int liczbaKursow = 0;
 	private int polozenie = 0;
-	private Random random = new Random();
+	private SplittableRandom random = new SplittableRandom();
 	protected Map<Integer, int[]> stacjeStan = new HashMap<>();
 
 	private int liczbaStacji = 0;
 	private int pojemnoscOsob = 0;
 	private boolean simulationStarted = false;
 
+	// polityki załadunku i trasy bieżącego eksperymentu (przychodzą w RozpocznijSymulacje)
+	private String politykaZaladunku = Config.POLITYKA_ZALADUNKU;
+	private String politykaTrasy = Config.POLITYKA_TRASY;
+	private BoardingPolicy boardingPolicy = BoardingPolicy.named(politykaZaladunku);
+	private RoutingPolicy routingPolicy = RoutingPolicy.named(politykaTrasy);
+	// kolejki stacji widziane przez politykę trasy: ostatnio odebrane atrybuty Stacji
+	private final RoutingPolicy.Queues knownQueues = new RoutingPolicy.Queues() {
+		@Override
+		public int people(int station) {
+			int[] state = stacjeStan.get(station);
+			return state == null ? 0 : state[0];
+		}
+
+		@Override
+		public int cars(int station) {
+			int[] state = stacjeStan.get(station);
+			return state == null ? 0 : state[1];
+		}
+	};
+
+	// numer promu (0..LICZBA_PROMOW-1): wyznacza stację początkową każdego eksperymentu
+	// (numerPromu % liczbaStacji, przy kilku promach rozkłada je po trasie) i strumień liczb losowych
+	private int numerPromu = 0;
+
+	// when true the federate does not wait for the user (see Config.HEADLESS)
+	protected boolean headless;
+	private volatile boolean stopRequested = false;
+
 	//----------------------------------------------------------
 	//                      CONSTRUCTORS
 	//----------------------------------------------------------
+	public PromFederate()
+	{
+		this( Config.HEADLESS );
+	}
+
+	public PromFederate( boolean headless )
+	{
+		this( headless, 0 );
+	}
+
+	public PromFederate( boolean headless, int numerPromu )
+	{
+		this.headless = headless;
+		this.numerPromu = numerPromu;
+	}
 
 	//----------------------------------------------------------
 	//                    INSTANCE METHODS
@@ -86,7 +170,7 @@ public class PromFederate
 	 */
 	private void log( String message )
 	{
-		System.out.println( "PromFederate   : " + message );
+		LOG.info( message );
 	}
 
 	/**
@@ -126,7 +210,7 @@ public class PromFederate
 		// connect
 		log("Connecting...");
 		fedamb = new PromFederateAmbassador(this);
-		rtiamb.connect(fedamb, CallbackModel.HLA_EVOKED);
+		rtiamb.connect(fedamb, immediateCallbacks ? CallbackModel.HLA_IMMEDIATE : CallbackModel.HLA_EVOKED);
 
 		//////////////////////////////
 		// 3. create the federation //
@@ -162,6 +246,8 @@ public class PromFederate
 
 		// cache the time factory for easy access
 		this.timeFactory = (HLAfloat64TimeFactory) rtiamb.getTimeFactory();
+		this.identyfikatorPromu = federateName;
+		this.encodedIdentyfikatorPromu = encoderFactory.createHLAunicodeString(identyfikatorPromu).toByteArray();
 
 		////////////////////////////////
 		// 5. announce the sync point //
@@ -171,15 +257,17 @@ public class PromFederate
 		// but we don't care about that, as long as someone registered it
 		rtiamb.registerFederationSynchronizationPoint(READY_TO_RUN, null);
 		// wait until the point is announced
-		while (fedamb.isAnnounced == false) {
-			rtiamb.evokeMultipleCallbacks(0.1, 0.2);
+		while (fedamb.isAnnounced == false && !stopRequested) {
+			tick();
 		}
 
 		// WAIT FOR USER TO KICK US OFF
 		// So that there is time to add other federates, we will wait until the
 		// user hits enter before proceeding. That was, you have time to start
-		// other federates.
-		waitForUser();
+		// other federates. In headless mode the Manager holds the sync point
+		// until every federate has joined, so we can achieve it straight away.
+		if( !headless )
+			waitForUser();
 
 		///////////////////////////////////////////////////////
 		// 6. achieve the point and wait for synchronization //
@@ -188,8 +276,8 @@ public class PromFederate
 		// until the federation has synchronized on
 		rtiamb.synchronizationPointAchieved(READY_TO_RUN);
 		log("Achieved sync point: " + READY_TO_RUN + ", waiting for federation...");
-		while (fedamb.isReadyToRun == false) {
-			rtiamb.evokeMultipleCallbacks(0.1, 0.2);
+		while (fedamb.isReadyToRun == false && !stopRequested) {
+			tick();
 		}
 
 		/////////////////////////////
@@ -211,33 +299,36 @@ public class PromFederate
 		promInstanceHandle = rtiamb.registerObjectInstance(promHandle, identyfikatorPromu);
 		log("Registered Prom Object with handle " + promInstanceHandle);
 
-		while (!simulationStarted) {
-			advanceTime(1.0);
+		while (!simulationStarted && !stopRequested) {
+			advanceIdle();
 		}
 
-		while (fedamb.isRunning) {
-			HLAfloat64Time arrivalTime = timeFactory.makeTime(fedamb.federateTime + fedamb.federateLookahead);
-			rtiamb.sendInteraction(przybycieHandle, createStationParams(przybycieHandle, polozenie), generateTag(), arrivalTime);
-			advanceTime(0.5);
+		while (fedamb.isRunning && !stopRequested) {
+			HLAfloat64Time arrivalTime = sendTime();
+			sendInteraction(przybycieHandle, createStationParams(przybyciePromIdParam, przybycieStacjaIdParam, polozenie), arrivalTime);
+			advanceTime(Config.CZAS_CUMOWANIA);
 
 			boardPassengersOrCars();
 
-			if (!fedamb.isRunning) {
+			if (!fedamb.isRunning || stopRequested) {
 				break;
 			}
 
-			int nextStation = (polozenie + 1) % this.liczbaStacji;
-			HLAfloat64Time departureTime = timeFactory.makeTime(fedamb.federateTime + fedamb.federateLookahead);
-			rtiamb.sendInteraction(odplyniecieHandle, createDepartureParams(nextStation), generateTag(), departureTime);
+			int nextStation = routingPolicy.next(polozenie, this.liczbaStacji, knownQueues, random);
+			HLAfloat64Time departureTime = sendTime();
+			sendInteraction(odplyniecieHandle, createDepartureParams(nextStation), departureTime);
 
-			moveToNextStation();
+			moveToStation(nextStation);
 
 			updatePromAttributes(0, 0, 0);
 
-			advanceTime(1.0);
-			log("Time Advanced to " + fedamb.federateTime);
+			advanceTime(Config.CZAS_REJSU);
+			LOG.debug(() -> "Time Advanced to " + fedamb.federateTime);
 		}
 
+		if (!tags.latencySummary().isEmpty())
+			log("Message latency: " + tags.latencySummary());
+		dumpMetrics(federateName);
 		rtiamb.resignFederationExecution(ResignAction.DELETE_OBJECTS);
 		log("Resigned from Federation");
 		try {
@@ -251,94 +342,199 @@ public class PromFederate
 	////////////////////////////////////////////////////////////////////////////
 	////////////////////////////// Helper Methods //////////////////////////////
 	////////////////////////////////////////////////////////////////////////////
+	/**
+	 * Asks the federate to leave the federation: every wait (sync point, time grant, save
+	 * or restore) gives up and the main loop ends after the current step. Safe to call
+	 * from another thread, e.g. by the in-process launcher once the Manager is done or
+	 * has failed.
+	 */
+	public void stop()
+	{
+		this.stopRequested = true;
+	}
 
 
-	private void boardPassengersOrCars() throws RTIexception {
-		int[] queueState = stacjeStan.getOrDefault(polozenie, new int[]{0, 0});
-		int peopleInQueue = queueState[0];
-		int carsInQueue = queueState[1];
-		int typZaladunku = 0;
-		int liczbaZabranych = 0;
-		int czySamochodInt = 0;
-
-		boolean saSamochody = carsInQueue > 0;
-		boolean saLudzie = peopleInQueue > 0;
-
-		if (saSamochody && (!saLudzie || random.nextBoolean())) {
-			typZaladunku = 1;
-			liczbaZabranych = 1;
-			czySamochodInt = 1;
-		} else if (saLudzie) {
-			typZaladunku = 2;
-			liczbaZabranych = Math.min(peopleInQueue, this.pojemnoscOsob);
+
+	/**
+	 * Federation save: writes the ferry's state to its snapshot (see Common.Snapshots).
+	 * The random stream is not part of it, it is derived again at the next start.
+	 */
+	protected void saveState(String label) {
+		try {
+			rtiamb.federateSaveBegun();
+			Snapshots.write(label, identyfikatorPromu, "Prom", this::writeState);
+			rtiamb.federateSaveComplete();
+			log("Saved state as " + label);
+		} catch (IOException | RTIexception e) {
+			log("Could not save state as " + label + ": " + e.getMessage());
+			try {
+				rtiamb.federateSaveNotComplete();
+			} catch (RTIexception notComplete) {
+				notComplete.printStackTrace();
+			}
 		}
+	}
 
-		if (typZaladunku > 0) {
-			log("Rozpoczynam załadunek na stacji " + polozenie + ": typ=" + typZaladunku + ", liczba=" + liczbaZabranych);
-			HLAfloat64Time time = timeFactory.makeTime(fedamb.federateTime + fedamb.federateLookahead);
-			rtiamb.sendInteraction(zaladunekStartHandle, createBoardingParams(polozenie, typZaladunku, liczbaZabranych), generateTag(), time);
+	/** Federation restore: reads back the snapshot this federate saved under the given name */
+	protected void loadState(String label, String savedName) {
+		try {
+			Snapshots.read(label, savedName, "Prom", this::readState);
+			rtiamb.federateRestoreComplete();
+			log("Restored state of " + savedName + " from " + label);
+		} catch (IOException | RTIexception e) {
+			log("Could not restore state from " + label + ": " + e.getMessage());
+			try {
+				rtiamb.federateRestoreNotComplete();
+			} catch (RTIexception notComplete) {
+				notComplete.printStackTrace();
+			}
+		}
+	}
 
-			advanceTime(1.0);
+	private void writeState(DataOutputStream out) throws IOException {
+		out.writeInt(numerPromu);
+		out.writeDouble(fedamb.federateTime);
+		out.writeBoolean(simulationStarted);
+		out.writeInt(liczbaStacji);
+		out.writeInt(pojemnoscOsob);
+		out.writeInt(liczbaKursow);
+		out.writeInt(polozenie);
+		out.writeUTF(politykaZaladunku);
+		out.writeUTF(politykaTrasy);
+		Snapshots.writeHandle(out, promInstanceHandle);
+		out.writeInt(stacjeStan.size());
+		for (Map.Entry<Integer, int[]> entry : stacjeStan.entrySet()) {
+			out.writeInt(entry.getKey());
+			out.writeInt(entry.getValue()[0]);
+			out.writeInt(entry.getValue()[1]);
+		}
+		fedamb.writeState(out);
+	}
+
+	private void readState(DataInputStream in) throws IOException {
+		ObjectInstanceHandleFactory handles;
+		try {
+			handles = rtiamb.getObjectInstanceHandleFactory();
+		} catch (RTIexception e) {
+			throw new IOException(e);
+		}
+		int savedNumer = in.readInt();
+		if (savedNumer != numerPromu) {
+			throw new IOException("snapshot of ferry " + savedNumer + ", this is ferry " + numerPromu);
+		}
+		fedamb.federateTime = in.readDouble();
+		simulationStarted = in.readBoolean();
+		liczbaStacji = in.readInt();
+		pojemnoscOsob = in.readInt();
+		liczbaKursow = in.readInt();
+		polozenie = in.readInt();
+		usePolicies(in.readUTF(), in.readUTF());
+		promInstanceHandle = Snapshots.readHandle(in, handles);
+		stacjeStan.clear();
+		int stations = in.readInt();
+		for (int i = 0; i < stations; i++) {
+			int id = in.readInt();
+			stacjeStan.put(id, new int[]{in.readInt(), in.readInt()});
+		}
+		fedamb.readState(in, handles);
+	}
+
+	/**
+	 * Boards what the boarding policy decides. A mixed load goes out as one
+	 * ZaladunekRozpoczety per type; the Stacja takes both off its queues at
+	 * ZaladunekZakonczony.
+	 */
+	private void boardPassengersOrCars() throws RTIexception {
+		BoardingDecision decyzja = boardingPolicy.decide(knownQueues.people(polozenie), knownQueues.cars(polozenie),
+				this.pojemnoscOsob, random);
+		int typZaladunku = decyzja.typZaladunku();
+		int liczbaZabranych = decyzja.people() > 0 ? decyzja.people() : decyzja.cars();
+		int czySamochodInt = decyzja.cars() > 0 ? 1 : 0;
+
+		if (!decyzja.isEmpty()) {
+			LOG.debug(() -> "Rozpoczynam załadunek na stacji " + polozenie + ": " + decyzja);
+			HLAfloat64Time time = sendTime();
+			if (decyzja.people() > 0) {
+				sendInteraction(zaladunekStartHandle, createBoardingParams(polozenie, BoardingDecision.OSOBY, decyzja.people()), time);
+			}
+			if (decyzja.cars() > 0) {
+				sendInteraction(zaladunekStartHandle, createBoardingParams(polozenie, BoardingDecision.SAMOCHOD, decyzja.cars()), time);
+			}
+
+			advanceTime(Config.CZAS_ZALADUNKU);
 			updatePromAttributes(typZaladunku, liczbaZabranych, czySamochodInt);
 
-			HLAfloat64Time endTime = timeFactory.makeTime(fedamb.federateTime + fedamb.federateLookahead);
-			rtiamb.sendInteraction(zaladunekKoniecHandle, createStationParams(zaladunekKoniecHandle, polozenie), generateTag(), endTime);
+			HLAfloat64Time endTime = sendTime();
+			sendInteraction(zaladunekKoniecHandle, createStationParams(zaladunekKoniecPromIdParam, zaladunekKoniecStacjaIdParam, polozenie), endTime);
 
-			advanceTime(0.5);
+			advanceTime(Config.CZAS_ODCUMOWANIA);
 		}
 	}
 
-	protected void startSimulation(int liczbaStacji, int pojemnoscOsob) {
+	protected void startSimulation(int liczbaStacji, int pojemnoscOsob, long ziarno, int numerEksperymentu,
+								   String politykaZaladunku, String politykaTrasy) {
 		log("Otrzymano sygnał StartSimulation. Resetowanie stanu promu.");
+		usePolicies(politykaZaladunku, politykaTrasy);
 		this.liczbaStacji = liczbaStacji;
 		this.pojemnoscOsob = pojemnoscOsob;
 		this.simulationStarted = true;
 
 		this.liczbaKursow = 0;
-		this.polozenie = 0;
+		this.polozenie = numerPromu % liczbaStacji;
 		this.stacjeStan.clear();
+		this.random = RandomStreams.ferryStream(RandomStreams.experimentSeed(ziarno, numerEksperymentu), numerPromu);
+	}
+
+	private void usePolicies(String politykaZaladunku, String politykaTrasy) {
+		if (!politykaZaladunku.equals(this.politykaZaladunku) || !politykaTrasy.equals(this.politykaTrasy)) {
+			log("Polityka załadunku: " + politykaZaladunku + ", polityka trasy: " + politykaTrasy);
+		}
+		this.boardingPolicy = BoardingPolicy.named(politykaZaladunku);
+		this.routingPolicy = RoutingPolicy.named(politykaTrasy);
+		this.politykaZaladunku = politykaZaladunku;
+		this.politykaTrasy = politykaTrasy;
 	}
 
-	private void moveToNextStation() {
-		this.polozenie = (this.polozenie + 1) % this.liczbaStacji;
+	private void moveToStation(int nextStation) {
+		this.polozenie = nextStation;
 		liczbaKursow++;
-		log("Odpłynięto. Następna stacja: " + this.polozenie);
+		LOG.debug(() -> "Odpłynięto. Następna stacja: " + this.polozenie);
 	}
 
 
-	private ParameterHandleValueMap createStationParams(InteractionClassHandle interactionHandle, int stationId) throws RTIexception {
+	private ParameterHandleValueMap createStationParams(ParameterHandle promIdParam, ParameterHandle stationIdParam, int stationId) throws RTIexception {
 		ParameterHandleValueMap params = rtiamb.getParameterHandleValueMapFactory().create(2);
-		params.put(rtiamb.getParameterHandle(interactionHandle, "IdentyfikatorPromu"), encoderFactory.createHLAunicodeString(identyfikatorPromu).toByteArray());
-		params.put(rtiamb.getParameterHandle(interactionHandle, "IdentyfikatorStacji"), encoderFactory.createHLAinteger32BE(stationId).toByteArray());
+		params.put(promIdParam, encodedIdentyfikatorPromu);
+		params.put(stationIdParam, HlaCodec.encodeInt32(stationId));
 		return params;
 	}
 
 	private ParameterHandleValueMap createDepartureParams(int destinationStationId) throws RTIexception {
 		ParameterHandleValueMap params = rtiamb.getParameterHandleValueMapFactory().create(2);
-		params.put(rtiamb.getParameterHandle(odplyniecieHandle, "IdentyfikatorPromu"), encoderFactory.createHLAunicodeString(identyfikatorPromu).toByteArray());
-		params.put(rtiamb.getParameterHandle(odplyniecieHandle, "IdentyfikatorStacjiDocelowej"), encoderFactory.createHLAinteger32BE(destinationStationId).toByteArray());
+		params.put(odplynieciePromIdParam, encodedIdentyfikatorPromu);
+		params.put(odplyniecieStacjaDocelowaParam, HlaCodec.encodeInt32(destinationStationId));
 		return params;
 	}
 
 	private ParameterHandleValueMap createBoardingParams(int stationId, int type, int count) throws RTIexception {
 		ParameterHandleValueMap params = rtiamb.getParameterHandleValueMapFactory().create(4);
-		params.put(rtiamb.getParameterHandle(zaladunekStartHandle, "IdentyfikatorPromu"), encoderFactory.createHLAunicodeString(identyfikatorPromu).toByteArray());
-		params.put(rtiamb.getParameterHandle(zaladunekStartHandle, "IdentyfikatorStacji"), encoderFactory.createHLAinteger32BE(stationId).toByteArray());
-		params.put(rtiamb.getParameterHandle(zaladunekStartHandle, "TypZaladunku"), encoderFactory.createHLAinteger32BE(type).toByteArray());
-		params.put(rtiamb.getParameterHandle(zaladunekStartHandle, "LiczbaZabieranychJednostek"), encoderFactory.createHLAinteger32BE(count).toByteArray());
+		params.put(zaladunekStartPromIdParam, encodedIdentyfikatorPromu);
+		params.put(zaladunekStartStacjaIdParam, HlaCodec.encodeInt32(stationId));
+		params.put(zaladunekStartTypParam, HlaCodec.encodeInt32(type));
+		params.put(zaladunekStartLiczbaParam, HlaCodec.encodeInt32(count));
 		return params;
 	}
 
 	private void updatePromAttributes(int typZaladunku, int liczba, int czySamochodInt) throws RTIexception {
 		AttributeHandleValueMap attributes = rtiamb.getAttributeHandleValueMapFactory().create(6);
-		attributes.put(idPolaHandle, encoderFactory.createHLAunicodeString(this.identyfikatorPromu).toByteArray());
-		attributes.put(polozenieHandle, encoderFactory.createHLAinteger32BE(this.polozenie).toByteArray());
-		attributes.put(typZaladunkuHandle, encoderFactory.createHLAinteger32BE(typZaladunku).toByteArray());
-		attributes.put(liczbaPasazerowHandle, encoderFactory.createHLAinteger32BE(liczba).toByteArray());
-		attributes.put(czySamochodHandle, encoderFactory.createHLAinteger32BE(czySamochodInt).toByteArray());
-		attributes.put(liczbaKursowHandle, encoderFactory.createHLAinteger32BE(this.liczbaKursow).toByteArray());
-		HLAfloat64Time time = timeFactory.makeTime(fedamb.federateTime + fedamb.federateLookahead);
-		rtiamb.updateAttributeValues(promInstanceHandle, attributes, generateTag(), time);
+		attributes.put(idPolaHandle, encodedIdentyfikatorPromu);
+		attributes.put(polozenieHandle, HlaCodec.encodeInt32(this.polozenie));
+		attributes.put(typZaladunkuHandle, HlaCodec.encodeInt32(typZaladunku));
+		attributes.put(liczbaPasazerowHandle, HlaCodec.encodeInt32(liczba));
+		attributes.put(czySamochodHandle, HlaCodec.encodeInt32(czySamochodInt));
+		attributes.put(liczbaKursowHandle, HlaCodec.encodeInt32(this.liczbaKursow));
+		HLAfloat64Time time = sendTime();
+		updateAttributeValues(promInstanceHandle, attributes, time);
 	}
 
 
@@ -360,9 +556,9 @@ public class PromFederate
 		this.rtiamb.enableTimeRegulation( lookahead );
 
 		// tick until we get the callback
-		while( fedamb.isRegulating == false )
+		while( fedamb.isRegulating == false && !stopRequested )
 		{
-			rtiamb.evokeMultipleCallbacks( 0.1, 0.2 );
+			tick();
 		}
 
 		/////////////////////////////
@@ -371,9 +567,9 @@ public class PromFederate
 		this.rtiamb.enableTimeConstrained();
 
 		// tick until we get the callback
-		while( fedamb.isConstrained == false )
+		while( fedamb.isConstrained == false && !stopRequested )
 		{
-			rtiamb.evokeMultipleCallbacks( 0.1, 0.2 );
+			tick();
 		}
 	}
 
@@ -404,6 +600,16 @@ public class PromFederate
 		zaladunekStartHandle = rtiamb.getInteractionClassHandle("HLAinteractionRoot.OperacjePromu.ZaladunekRozpoczety");
 		zaladunekKoniecHandle = rtiamb.getInteractionClassHandle("HLAinteractionRoot.OperacjePromu.ZaladunekZakonczony");
 		odplyniecieHandle = rtiamb.getInteractionClassHandle("HLAinteractionRoot.OperacjePromu.OdplynieciePromuZeStacji");
+		przybyciePromIdParam = rtiamb.getParameterHandle(przybycieHandle, "IdentyfikatorPromu");
+		przybycieStacjaIdParam = rtiamb.getParameterHandle(przybycieHandle, "IdentyfikatorStacji");
+		zaladunekStartPromIdParam = rtiamb.getParameterHandle(zaladunekStartHandle, "IdentyfikatorPromu");
+		zaladunekStartStacjaIdParam = rtiamb.getParameterHandle(zaladunekStartHandle, "IdentyfikatorStacji");
+		zaladunekStartTypParam = rtiamb.getParameterHandle(zaladunekStartHandle, "TypZaladunku");
+		zaladunekStartLiczbaParam = rtiamb.getParameterHandle(zaladunekStartHandle, "LiczbaZabieranychJednostek");
+		zaladunekKoniecPromIdParam = rtiamb.getParameterHandle(zaladunekKoniecHandle, "IdentyfikatorPromu");
+		zaladunekKoniecStacjaIdParam = rtiamb.getParameterHandle(zaladunekKoniecHandle, "IdentyfikatorStacji");
+		odplynieciePromIdParam = rtiamb.getParameterHandle(odplyniecieHandle, "IdentyfikatorPromu");
+		odplyniecieStacjaDocelowaParam = rtiamb.getParameterHandle(odplyniecieHandle, "IdentyfikatorStacjiDocelowej");
 		rtiamb.publishInteractionClass(przybycieHandle);
 		rtiamb.publishInteractionClass(zaladunekStartHandle);
 		rtiamb.publishInteractionClass(zaladunekKoniecHandle);
@@ -414,19 +620,50 @@ public class PromFederate
 		liczbaOsobHandle = rtiamb.getAttributeHandle(stacjaHandle, "LiczbaOczekujacychOsob");
 		liczbaAutHandle = rtiamb.getAttributeHandle(stacjaHandle, "LiczbaOczekujacychSamochodow");
 
-		AttributeHandleSet stacjaAttributes = rtiamb.getAttributeHandleSetFactory().create();
+		stacjaAttributes = rtiamb.getAttributeHandleSetFactory().create();
 		stacjaAttributes.add(stacjaIdHandle);
 		stacjaAttributes.add(liczbaOsobHandle);
 		stacjaAttributes.add(liczbaAutHandle);
 		rtiamb.subscribeObjectClassAttributes(stacjaHandle, stacjaAttributes);
 
 		startSimulationHandle = rtiamb.getInteractionClassHandle("HLAinteractionRoot.ZarzadzanieSymulacja.RozpocznijSymulacje");
+		liczbaStacjiParam = rtiamb.getParameterHandle(startSimulationHandle, "LiczbaStacji");
+		pojemnoscOsobParam = rtiamb.getParameterHandle(startSimulationHandle, "PojemnoscOsobPromu");
+		ziarnoParam = rtiamb.getParameterHandle(startSimulationHandle, "Ziarno");
+		numerEksperymentuParam = rtiamb.getParameterHandle(startSimulationHandle, "NumerEksperymentu");
+		politykaZaladunkuParam = rtiamb.getParameterHandle(startSimulationHandle, "PolitykaZaladunku");
+		politykaTrasyParam = rtiamb.getParameterHandle(startSimulationHandle, "PolitykaTrasy");
 		rtiamb.subscribeInteractionClass(startSimulationHandle);
 
 		wszystkieJednostkiPrzetransportowaneHandle = rtiamb.getInteractionClassHandle("HLAinteractionRoot.ZarzadzanieSymulacja.WszystkieJednostkiPrzetransportowane");
 		rtiamb.subscribeInteractionClass(wszystkieJednostkiPrzetransportowaneHandle);
 	}
 
+	/**
+	 * Gives the RTI a chance to deliver callbacks. In HLA_EVOKED mode this evokes them
+	 * on this thread; in HLA_IMMEDIATE mode the RTI has already called the ambassador on
+	 * its own thread and we apply whatever it queued, waking up as soon as it arrives.
+	 * While a federation save or restore is in progress it does not return, so the
+	 * caller makes no other RTI calls until the federation is running again.
+	 */
+	private void tick() throws RTIexception
+	{
+		do
+		{
+			if( immediateCallbacks )
+			{
+				callbacksPerTick.record( callbacks.awaitAndDrain(200) );
+			}
+			else
+			{
+				long before = callbacksDelivered.get();
+				rtiamb.evokeMultipleCallbacks( 0.1, 0.2 );
+				callbacksPerTick.record( callbacksDelivered.get() - before );
+			}
+		}
+		while( (fedamb.isSaving || fedamb.isRestoring) && !stopRequested );
+	}
+
 	/**
 	 * This method will request a time advance to the current time, plus the given
 	 * timestep. It will then wait until a notification of the time advance grant
@@ -434,22 +671,108 @@ public class PromFederate
 	 */
 	private void advanceTime( double timestep ) throws RTIexception
 	{
+		// a grant we stopped waiting for may still be pending, so no new request
+		if( stopRequested )
+			return;
+
 		// request the advance
+		long requested = System.nanoTime();
 		fedamb.isAdvancing = true;
 		HLAfloat64Time time = timeFactory.makeTime( fedamb.federateTime + timestep );
 		rtiamb.timeAdvanceRequest( time );
 
 		// wait for the time advance to be granted. ticking will tell the
 		// LRC to start delivering callbacks to the federate
-		while( fedamb.isAdvancing )
+		while( fedamb.isAdvancing && !stopRequested )
 		{
-			rtiamb.evokeMultipleCallbacks( 0.1, 0.2 );
+			tick();
+		}
+		timeAdvanceGrant.recordSince( requested );
+	}
+
+	/**
+	 * Event-driven counterpart of advanceTime. Asks the RTI for the time of the next
+	 * message addressed to us, but no later than the given horizon, and waits for the
+	 * grant. The federate ends up at the time of that message (or the horizon), so an
+	 * idle federate costs one round-trip per received event rather than per step.
+	 */
+	private void advanceToNextEvent( double horizon ) throws RTIexception
+	{
+		// a grant we stopped waiting for may still be pending, so no new request
+		if( stopRequested )
+			return;
+
+		long requested = System.nanoTime();
+		fedamb.isAdvancing = true;
+		HLAfloat64Time time = timeFactory.makeTime( fedamb.federateTime + horizon );
+		rtiamb.nextMessageRequest( time );
+
+		while( fedamb.isAdvancing && !stopRequested )
+		{
+			tick();
+		}
+		nextMessageGrant.recordSince( requested );
+	}
+
+	/**
+	 * Moves time forward while we have nothing of our own scheduled and are only
+	 * waiting for messages: a fixed step, or straight to the next message in
+	 * next-event mode (see Config.NEXT_EVENT_ADVANCE).
+	 */
+	private void advanceIdle() throws RTIexception
+	{
+		if( Config.NEXT_EVENT_ADVANCE )
+			advanceToNextEvent( Config.NEXT_EVENT_HORIZON );
+		else
+			advanceTime( 1.0 );
+	}
+
+	/**
+	 * The earliest time stamp we may put on an outgoing message: our current time
+	 * plus the lookahead of this federate type (see Config.LOOKAHEAD_*).
+	 */
+	private HLAfloat64Time sendTime()
+	{
+		return timeFactory.makeTime( fedamb.federateTime + fedamb.federateLookahead );
+	}
+
+	private void sendInteraction( InteractionClassHandle interaction, ParameterHandleValueMap parameters,
+	                              HLAfloat64Time time ) throws RTIexception
+	{
+		long start = System.nanoTime();
+		rtiamb.sendInteraction( interaction, parameters, generateTag(), time );
+		interactionSend.recordSince( start );
+	}
+
+	private void updateAttributeValues( ObjectInstanceHandle object, AttributeHandleValueMap attributes,
+	                                    HLAfloat64Time time ) throws RTIexception
+	{
+		long start = System.nanoTime();
+		rtiamb.updateAttributeValues( object, attributes, generateTag(), time );
+		attributeUpdate.recordSince( start );
+	}
+
+	/** Writes the metrics of this federate to Config.METRICS_DIR, if one is configured */
+	private void dumpMetrics( String federateName )
+	{
+		if( Config.METRICS_DIR == null )
+			return;
+
+		Path file = Paths.get( Config.METRICS_DIR, federateName + ".metrics.txt" );
+		try
+		{
+			metrics.dump( file );
+			log( "Metrics written to " + file );
+		}
+		catch( IOException e )
+		{
+			log( "Could not write metrics to " + file + ": " + e.getMessage() );
 		}
 	}
 
 	private byte[] generateTag()
 	{
-		return ("(timestamp) "+System.currentTimeMillis()).getBytes();
+		return tags.next();
 	}
 
 	//----------------------------------------------------------
@@ -457,17 +780,23 @@ public class PromFederate
 	//----------------------------------------------------------
 	public static void main( String[] args )
 	{
-		// get a federate name, use "exampleFederate" as default
+		// get a federate name, use "Prom" as default; with several ferries every one
+		// needs its own name and its number (0, 1, ...), which picks the start station
 		String federateName = "Prom";
+		int numerPromu = 0;
 		if( args.length != 0 )
 		{
 			federateName = args[0];
 		}
+		if( args.length > 1 )
+		{
+			numerPromu = Integer.parseInt( args[1] );
+		}
 
 		try
 		{
 			// run the example federate
-			new PromFederate().runFederate( federateName );
+			new PromFederate( Config.HEADLESS, numerPromu ).runFederate( federateName );
 		}
 		catch( Exception rtie )
 		{
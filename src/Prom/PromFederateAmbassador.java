@@ -14,14 +14,21 @@
  */
 package Prom;
 
+import Common.HlaCodec;
+import Common.Log;
+import Common.Metrics;
+import Common.Snapshots;
+import Config.Config;
 import hla.rti1516e.*;
 import hla.rti1516e.encoding.DecoderException;
-import hla.rti1516e.encoding.HLAinteger32BE;
+import hla.rti1516e.encoding.HLAunicodeString;
 import hla.rti1516e.exceptions.FederateInternalError;
 import hla.rti1516e.exceptions.RTIexception;
 import hla.rti1516e.time.HLAfloat64Time;
-import org.portico.impl.hla1516e.types.encoding.HLA1516eInteger32BE;
 
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Map;
@@ -37,29 +44,43 @@ public class PromFederateAmbassador extends NullFederateAmbassador
 	//----------------------------------------------------------
 	//                    STATIC VARIABLES
 	//----------------------------------------------------------
+	private static final Log LOG = Log.get( "FederateAmbassador" );
 
 	//----------------------------------------------------------
 	//                   INSTANCE VARIABLES
 	//----------------------------------------------------------
 	private PromFederate federate;
 
+	// callback counters, registered in the federate's metrics
+	private final Metrics.Counter grants;
+	private final Metrics.Counter discoveries;
+	private final Metrics.Counter reflects;
+	private final Metrics.Counter interactions;
+	private final Metrics.Counter removals;
+
 	// these variables are accessible in the package
-	protected double federateTime        = 0.0;
-	protected double federateLookahead   = 1.0;
+	protected volatile double federateTime = 0.0;
+	protected double federateLookahead   = Config.LOOKAHEAD_PROM;
+
+	protected volatile boolean isRegulating       = false;
+	protected volatile boolean isConstrained      = false;
+	protected volatile boolean isAdvancing        = false;
 
-	protected boolean isRegulating       = false;
-	protected boolean isConstrained      = false;
-	protected boolean isAdvancing        = false;
+	protected volatile boolean isAnnounced        = false;
+	protected volatile boolean isReadyToRun       = false;
 
-	protected boolean isAnnounced        = false;
-	protected boolean isReadyToRun       = false;
+	// federation save/restore in progress: tick() keeps delivering callbacks until it is over
+	protected volatile boolean isSaving           = false;
+	protected volatile boolean isRestoring        = false;
 
 
-	protected boolean isRunning       = true;
+	protected volatile boolean isRunning = true;
 
 	private Set<ObjectInstanceHandle> stacjaObjectHandles = new HashSet<>();
 	private Map<ObjectInstanceHandle, Integer> stacjaHandleToIdMap = new HashMap<>();
 
+	private HLAunicodeString policyDecoder; // only used on the callback thread
+
 	//----------------------------------------------------------
 	//                      CONSTRUCTORS
 	//----------------------------------------------------------
@@ -67,6 +88,11 @@ public class PromFederateAmbassador extends NullFederateAmbassador
 	public PromFederateAmbassador(PromFederate federate )
 	{
 		this.federate = federate;
+		this.grants = federate.metrics.counter( "callback.timeAdvanceGrant" );
+		this.discoveries = federate.metrics.counter( "callback.discoverObjectInstance" );
+		this.reflects = federate.metrics.counter( "callback.reflectAttributeValues" );
+		this.interactions = federate.metrics.counter( "callback.receiveInteraction" );
+		this.removals = federate.metrics.counter( "callback.removeObjectInstance" );
 	}
 
 	//----------------------------------------------------------
@@ -74,7 +100,46 @@ public class PromFederateAmbassador extends NullFederateAmbassador
 	//----------------------------------------------------------
 	private void log( String message )
 	{
-		System.out.println( "FederateAmbassador: " + message );
+		LOG.info( message );
+	}
+
+	/** Name of a ferry policy, or {@code absent} when the Manager did not send one */
+	private String decodePolicy( byte[] bytes, String absent ) throws DecoderException
+	{
+		if( bytes == null )
+			return absent;
+		if( policyDecoder == null )
+			policyDecoder = federate.encoderFactory.createHLAunicodeString();
+		policyDecoder.decode( bytes );
+		return policyDecoder.getValue();
+	}
+
+	/**
+	 * Applies a state change coming from a callback. With HLA_EVOKED we are already on
+	 * the simulation thread and run it directly; with HLA_IMMEDIATE it is queued for
+	 * the simulation thread to pick up in its next tick.
+	 */
+	private void dispatch( Runnable event )
+	{
+		if( federate.immediateCallbacks )
+			federate.callbacks.post( event );
+		else
+			event.run();
+	}
+
+	/** Counts a delivered callback, both per type and in the federate's total */
+	private void count( Metrics.Counter callback )
+	{
+		callback.increment();
+		federate.callbacksDelivered.increment();
+	}
+
+	/** Records the delivery latency of a message whose tag carries a send timestamp */
+	private void observe( byte[] tag )
+	{
+		long latency = federate.tags.observe( tag );
+		if( latency >= 0 )
+			federate.messageLatency.record( latency );
 	}
 
 	//////////////////////////////////////////////////////////////////////////
@@ -98,7 +163,7 @@ public class PromFederateAmbassador extends NullFederateAmbassador
 	{
 		log( "Synchronization point announced: " + label );
 		if( label.equals(PromFederate.READY_TO_RUN) )
-			this.isAnnounced = true;
+			dispatch( () -> this.isAnnounced = true );
 	}
 
 	@Override
@@ -106,7 +171,7 @@ public class PromFederateAmbassador extends NullFederateAmbassador
 	{
 		log( "Federation Synchronized: " + label );
 		if( label.equals(PromFederate.READY_TO_RUN) )
-			this.isReadyToRun = true;
+			dispatch( () -> this.isReadyToRun = true );
 	}
 
 	/**
@@ -115,83 +180,106 @@ public class PromFederateAmbassador extends NullFederateAmbassador
 	@Override
 	public void timeRegulationEnabled( LogicalTime time )
 	{
-		this.federateTime = ((HLAfloat64Time)time).getValue();
-		this.isRegulating = true;
+		double granted = ((HLAfloat64Time)time).getValue();
+		dispatch( () -> {
+			this.federateTime = granted;
+			this.isRegulating = true;
+		} );
 	}
 
 	@Override
 	public void timeConstrainedEnabled( LogicalTime time )
 	{
-		this.federateTime = ((HLAfloat64Time)time).getValue();
-		this.isConstrained = true;
+		double granted = ((HLAfloat64Time)time).getValue();
+		dispatch( () -> {
+			this.federateTime = granted;
+			this.isConstrained = true;
+		} );
 	}
 
 	@Override
 	public void timeAdvanceGrant( LogicalTime time )
 	{
-		this.federateTime = ((HLAfloat64Time)time).getValue();
-		this.isAdvancing = false;
+		count( grants );
+		// queued like every other callback, so all messages delivered before the
+		// grant have been applied by the time the federate sees isAdvancing == false
+		double granted = ((HLAfloat64Time)time).getValue();
+		dispatch( () -> {
+			this.federateTime = granted;
+			this.isAdvancing = false;
+		} );
 	}
 
 	@Override
 	public void discoverObjectInstance(ObjectInstanceHandle theObject, ObjectClassHandle theObjectClass, String objectName) {
-		log("Discovered Object: handle=" + theObject + ", classHandle=" + theObjectClass + ", name=" + objectName);
+		count(discoveries);
+		LOG.debug(() -> "Discovered Object: handle=" + theObject + ", classHandle=" + theObjectClass + ", name=" + objectName);
 		if (theObjectClass.equals(federate.stacjaHandle)) {
-			stacjaObjectHandles.add(theObject);
+			dispatch(() -> {
+				stacjaObjectHandles.add(theObject);
+				// stations only send their static id once, so ask for it explicitly
+				try {
+					federate.rtiamb.requestAttributeValueUpdate(theObject, federate.stacjaAttributes, null);
+				} catch (RTIexception e) {
+					e.printStackTrace();
+				}
+			});
 		}
 	}
 
 	@Override
 	public void reflectAttributeValues(ObjectInstanceHandle theObject, AttributeHandleValueMap theAttributes, byte[] tag, OrderType sentOrdering, TransportationTypeHandle theTransport, LogicalTime time, OrderType receivedOrdering, SupplementalReflectInfo reflectInfo) {
-		if (stacjaObjectHandles.contains(theObject)) {
-			try {
-				if (!stacjaHandleToIdMap.containsKey(theObject)) {
-					if (theAttributes.containsKey(federate.stacjaIdHandle)) {
-						HLAinteger32BE stationIdDecoder = new HLA1516eInteger32BE();
-						stationIdDecoder.decode(theAttributes.get(federate.stacjaIdHandle));
-						int stationId = stationIdDecoder.getValue();
-						stacjaHandleToIdMap.put(theObject, stationId);
-					} else {
-						return;
-					}
-				}
-
-				Integer stationId = stacjaHandleToIdMap.get(theObject);
-				if (stationId == null) return;
-
-				int[] currentQueueState = federate.stacjeStan.getOrDefault(stationId, new int[]{0, 0});
-
-				if (theAttributes.containsKey(federate.liczbaOsobHandle)) {
-					HLAinteger32BE peopleDecoder = new HLA1516eInteger32BE();
-					peopleDecoder.decode(theAttributes.get(federate.liczbaOsobHandle));
-					currentQueueState[0] = peopleDecoder.getValue();
-				}
-
-				if (theAttributes.containsKey(federate.liczbaAutHandle)) {
-					HLAinteger32BE carsDecoder = new HLA1516eInteger32BE();
-					carsDecoder.decode(theAttributes.get(federate.liczbaAutHandle));
-					currentQueueState[1] = carsDecoder.getValue();
-				}
-
-				federate.stacjeStan.put(stationId, currentQueueState);
+		count(reflects);
+		observe(tag);
+		try {
+			// -1 marks an attribute that was not part of this update
+			int stationId = HlaCodec.decodeInt32(theAttributes.get(federate.stacjaIdHandle), -1);
+			int people = HlaCodec.decodeInt32(theAttributes.get(federate.liczbaOsobHandle), -1);
+			int cars = HlaCodec.decodeInt32(theAttributes.get(federate.liczbaAutHandle), -1);
+			dispatch(() -> reflectStation(theObject, stationId, people, cars));
+		} catch (DecoderException e) {
+			e.printStackTrace();
+		}
+	}
 
-			} catch (DecoderException e) {
-				e.printStackTrace();
+	private void reflectStation(ObjectInstanceHandle theObject, int reflectedId, int people, int cars) {
+		if (!stacjaObjectHandles.contains(theObject)) {
+			return;
+		}
+		if (!stacjaHandleToIdMap.containsKey(theObject)) {
+			if (reflectedId < 0) {
+				return;
 			}
+			stacjaHandleToIdMap.put(theObject, reflectedId);
+		}
+
+		Integer stationId = stacjaHandleToIdMap.get(theObject);
+		int[] currentQueueState = federate.stacjeStan.getOrDefault(stationId, new int[]{0, 0});
+		if (people >= 0) {
+			currentQueueState[0] = people;
 		}
+		if (cars >= 0) {
+			currentQueueState[1] = cars;
+		}
+		federate.stacjeStan.put(stationId, currentQueueState);
 	}
 
 	@Override
 	public void receiveInteraction(InteractionClassHandle interactionClass, ParameterHandleValueMap theParameters, byte[] tag, OrderType sentOrdering, TransportationTypeHandle theTransport, LogicalTime time, OrderType receivedOrdering, SupplementalReceiveInfo receiveInfo) {
+		count(interactions);
+		observe(tag);
 		if (interactionClass.equals(federate.startSimulationHandle)) {
 			log("Received 'RozpocznijSymulacje' interaction!");
 			try {
-				HLAinteger32BE stacjeDecoder = new HLA1516eInteger32BE();
-				stacjeDecoder.decode(theParameters.get(federate.rtiamb.getParameterHandle(interactionClass, "LiczbaStacji")));
-				HLAinteger32BE pojemnoscDecoder = new HLA1516eInteger32BE();
-				pojemnoscDecoder.decode(theParameters.get(federate.rtiamb.getParameterHandle(interactionClass, "PojemnoscOsobPromu")));
-				federate.startSimulation(stacjeDecoder.getValue(), pojemnoscDecoder.getValue());
-			} catch (RTIexception | DecoderException e) {
+				int liczbaStacji = HlaCodec.decodeInt32(theParameters.get(federate.liczbaStacjiParam));
+				int pojemnoscOsob = HlaCodec.decodeInt32(theParameters.get(federate.pojemnoscOsobParam));
+				long ziarno = HlaCodec.decodeInt64(theParameters.get(federate.ziarnoParam));
+				int numerEksperymentu = HlaCodec.decodeInt32(theParameters.get(federate.numerEksperymentuParam));
+				String politykaZaladunku = decodePolicy(theParameters.get(federate.politykaZaladunkuParam), Config.POLITYKA_ZALADUNKU);
+				String politykaTrasy = decodePolicy(theParameters.get(federate.politykaTrasyParam), Config.POLITYKA_TRASY);
+				dispatch(() -> federate.startSimulation(liczbaStacji, pojemnoscOsob, ziarno, numerEksperymentu,
+						politykaZaladunku, politykaTrasy));
+			} catch (DecoderException e) {
 				e.printStackTrace();
 			}
 		} else if (interactionClass.equals(federate.wszystkieJednostkiPrzetransportowaneHandle)) {
@@ -201,11 +289,116 @@ public class PromFederateAmbassador extends NullFederateAmbassador
 
 	@Override
 	public void removeObjectInstance(ObjectInstanceHandle theObject, byte[] tag, OrderType sentOrdering, SupplementalRemoveInfo removeInfo) {
-		log("Object Removed: handle=" + theObject);
-		stacjaObjectHandles.remove(theObject);
-		stacjaHandleToIdMap.remove(theObject);
+		count(removals);
+		LOG.debug(() -> "Object Removed: handle=" + theObject);
+		dispatch(() -> {
+			stacjaObjectHandles.remove(theObject);
+			stacjaHandleToIdMap.remove(theObject);
+		});
 	}
 
+	// removeStations kasuje stacje ze znacznikiem czasu, więc przychodzą tutaj
+	@Override
+	public void removeObjectInstance(ObjectInstanceHandle theObject, byte[] tag, OrderType sentOrdering, LogicalTime time, OrderType receivedOrdering, SupplementalRemoveInfo removeInfo) {
+		removeObjectInstance(theObject, tag, sentOrdering, removeInfo);
+	}
+
+
+	//////////////////////////////////////////////////////////////////////////
+	///////////////////////////// Save / Restore /////////////////////////////
+	//////////////////////////////////////////////////////////////////////////
+	@Override
+	public void initiateFederateSave( String label )
+	{
+		log( "Federation save initiated: " + label );
+		dispatch( () -> {
+			this.isSaving = true;
+			federate.saveState( label );
+		} );
+	}
+
+	@Override
+	public void initiateFederateSave( String label, LogicalTime time )
+	{
+		initiateFederateSave( label );
+	}
+
+	@Override
+	public void federationSaved()
+	{
+		log( "Federation saved" );
+		dispatch( () -> {
+			this.isSaving = false;
+		} );
+	}
+
+	@Override
+	public void federationNotSaved( SaveFailureReason reason )
+	{
+		log( "Federation not saved: " + reason );
+		dispatch( () -> {
+			this.isSaving = false;
+		} );
+	}
+
+	@Override
+	public void federationRestoreBegun()
+	{
+		log( "Federation restore begun" );
+		dispatch( () -> this.isRestoring = true );
+	}
+
+	@Override
+	public void initiateFederateRestore( String label, String federateName, FederateHandle federateHandle )
+	{
+		log( "Restoring " + federateName + " from " + label );
+		dispatch( () -> federate.loadState( label, federateName ) );
+	}
+
+	@Override
+	public void federationRestored()
+	{
+		log( "Federation restored" );
+		dispatch( () -> {
+			this.isRestoring = false;
+		} );
+	}
+
+	@Override
+	public void federationNotRestored( RestoreFailureReason reason )
+	{
+		log( "Federation not restored: " + reason );
+		dispatch( () -> {
+			this.isRestoring = false;
+		} );
+	}
+
+	/** The stations we know of, for the federate's snapshot */
+	void writeState( DataOutputStream out ) throws IOException
+	{
+		out.writeInt( stacjaObjectHandles.size() );
+		for( ObjectInstanceHandle handle : stacjaObjectHandles )
+		{
+			Snapshots.writeHandle( out, handle );
+			Integer id = stacjaHandleToIdMap.get( handle );
+			out.writeInt( id == null ? -1 : id );
+		}
+	}
+
+	void readState( DataInputStream in, ObjectInstanceHandleFactory handles ) throws IOException
+	{
+		stacjaObjectHandles.clear();
+		stacjaHandleToIdMap.clear();
+		int count = in.readInt();
+		for( int i = 0; i < count; i++ )
+		{
+			ObjectInstanceHandle handle = Snapshots.readHandle( in, handles );
+			int id = in.readInt();
+			stacjaObjectHandles.add( handle );
+			if( id >= 0 )
+				stacjaHandleToIdMap.put( handle, id );
+		}
+	}
 
 	//----------------------------------------------------------
 	//                     STATIC METHODS
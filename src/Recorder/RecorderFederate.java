@@ -0,0 +1,485 @@
+/*
+ *   Copyright 2012 The Portico Project
+ *
+ *   This file is part of portico.
+ *
+ *   portico is free software; you can redistribute it and/or modify
+ *   it under the terms of the Common Developer and Distribution License (CDDL)
+ *   as published by Sun Microsystems. For more information see the LICENSE file.
+ *
+ *   Use of this software is strictly AT YOUR OWN RISK!!!
+ *   If something bad happens you do not have permission to come crying to me.
+ *   (that goes for your lawyer as well)
+ *
+ */
+package Recorder;
+
+import Common.Journal;
+import Common.Log;
+import Common.Metrics;
+import Common.Snapshots;
+import Config.Config;
+import hla.rti1516e.*;
+import hla.rti1516e.exceptions.*;
+import hla.rti1516e.time.HLAfloat64Time;
+import hla.rti1516e.time.HLAfloat64TimeFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Passive federate that writes every interaction and every Prom and Stacja update of a run
+ * to a journal (see Common.Journal), to be fed back later by {@link ReplayFederate}.
+ * <p/>
+ * It is time-constrained but not regulating, so it receives the time-stamped messages in
+ * the order the other federates do without ever holding them back, and it achieves every
+ * synchronization point as soon as it is announced. Callbacks are always evoked, so the
+ * journal is only written from the thread that ticks.
+ */
+public class RecorderFederate
+{
+	//----------------------------------------------------------
+	//                    STATIC VARIABLES
+	//----------------------------------------------------------
+	private static final Log LOG = Log.get( "RecorderFederate  " );
+
+	/** Everything the other federates publish, by FOM name */
+	static final String[] INTERACTIONS = {
+		"HLAinteractionRoot.ZarzadzanieSymulacja.RozpocznijSymulacje",
+		"HLAinteractionRoot.ZarzadzanieSymulacja.WszystkieJednostkiPrzetransportowane",
+		"HLAinteractionRoot.ZarzadzanieSymulacja.StatystykiOczekiwania",
+		"HLAinteractionRoot.OperacjePromu.PrzybyciePromuNaStacje",
+		"HLAinteractionRoot.OperacjePromu.ZaladunekRozpoczety",
+		"HLAinteractionRoot.OperacjePromu.ZaladunekZakonczony",
+		"HLAinteractionRoot.OperacjePromu.OdplynieciePromuZeStacji",
+	};
+	static final Map<String, String[]> OBJECT_CLASSES = Map.of(
+		"HLAobjectRoot.Prom", new String[]{ "IdentyfikatorPromu", "Polozenie", "TypZaladunku",
+		                                    "LiczbaPasazerowNaPokladzie", "CzySamochodNaPokladzie", "LiczbaKursowPromu" },
+		"HLAobjectRoot.Stacja", new String[]{ "IdentyfikatorStacji", "LiczbaOczekujacychSamochodow",
+		                                      "LiczbaOczekujacychOsob" } );
+
+	//----------------------------------------------------------
+	//                   INSTANCE VARIABLES
+	//----------------------------------------------------------
+	RTIambassador rtiamb;
+	private RecorderFederateAmbassador fedamb;  // created when we connect
+	private HLAfloat64TimeFactory timeFactory;  // set when we join
+
+	// instrumentation, written to Config.METRICS_DIR when the federate leaves
+	protected final Metrics metrics = new Metrics( "Recorder" );
+	protected final Metrics.Counter callbacksDelivered = metrics.counter( "callbacks" );
+	private final Metrics.Counter recorded = metrics.counter( "journal.records" );
+	private final Metrics.Histogram recordTime = metrics.timer( "journal.record" );
+
+	private final Path journalFile;
+	private String federateName;                // set when we join
+	private long restoredRecords;               // journal size at the restored save, for the log
+	private Journal.Writer journal;             // null once recording has failed
+
+	// journal numbers of the classes, parameters, attributes and instances seen so far
+	private final Map<InteractionClassHandle, Integer> interactionIds = new HashMap<>();
+	private final Map<InteractionClassHandle, Map<ParameterHandle, Integer>> parameterIds = new HashMap<>();
+	private final Map<ObjectClassHandle, Map<AttributeHandle, Integer>> attributeIds = new HashMap<>();
+	private final Map<ObjectInstanceHandle, Integer> instanceIds = new HashMap<>();
+	private final Map<ObjectInstanceHandle, ObjectClassHandle> instanceClasses = new HashMap<>();
+
+	private final CountDownLatch joined = new CountDownLatch( 1 );
+	private final CountDownLatch finished = new CountDownLatch( 1 );
+	private volatile boolean stopRequested = false;
+
+	//----------------------------------------------------------
+	//                      CONSTRUCTORS
+	//----------------------------------------------------------
+	public RecorderFederate( Path journalFile )
+	{
+		this.journalFile = journalFile;
+	}
+
+	//----------------------------------------------------------
+	//                    INSTANCE METHODS
+	//----------------------------------------------------------
+	private void log( String message )
+	{
+		LOG.info( message );
+	}
+
+	/** Waits until the recorder has joined and subscribed, so nothing sent afterwards is missed */
+	public boolean awaitJoined( long timeout, TimeUnit unit ) throws InterruptedException
+	{
+		return joined.await( timeout, unit );
+	}
+
+	/** Asks the recorder to close the journal and leave the federation; safe from any thread */
+	public void stop()
+	{
+		this.stopRequested = true;
+	}
+
+	public void runFederate( String federateName ) throws Exception
+	{
+		log( "Creating RTIambassador" );
+		rtiamb = RtiFactoryFactory.getRtiFactory().getRtiAmbassador();
+		fedamb = new RecorderFederateAmbassador( this );
+		rtiamb.connect( fedamb, CallbackModel.HLA_EVOKED );
+
+		try
+		{
+			URL[] modules = new URL[]{
+			    (new File(Config.FOM_PATH)).toURI().toURL(),
+			};
+			rtiamb.createFederationExecution( Config.FEDERATION_NAME, modules );
+			log( "Created Federation" );
+		}
+		catch( FederationExecutionAlreadyExists exists )
+		{
+			log( "Didn't create federation, it already existed" );
+		}
+		catch( MalformedURLException urle )
+		{
+			log( "Exception loading one of the FOM modules from disk: " + urle.getMessage() );
+			urle.printStackTrace();
+			return;
+		}
+
+		rtiamb.joinFederationExecution( federateName, "Recorder", Config.FEDERATION_NAME );
+		this.federateName = federateName;
+		log( "Joined Federation as " + federateName );
+		this.timeFactory = (HLAfloat64TimeFactory)rtiamb.getTimeFactory();
+
+		journal = Journal.create( journalFile );
+		rtiamb.enableTimeConstrained();
+		while( fedamb.isConstrained == false && !stopRequested )
+		{
+			tick();
+		}
+		subscribe();
+		log( "Recording to " + journalFile );
+		joined.countDown();
+
+		try
+		{
+			// follow the federation time, one received message (or horizon) at a time
+			while( !stopRequested )
+			{
+				fedamb.isAdvancing = true;
+				rtiamb.nextMessageRequest( timeFactory.makeTime(fedamb.federateTime + Config.NEXT_EVENT_HORIZON) );
+				while( fedamb.isAdvancing && !stopRequested )
+				{
+					tick();
+				}
+			}
+		}
+		finally
+		{
+			closeJournal();
+			dumpMetrics( federateName );
+			rtiamb.resignFederationExecution( ResignAction.NO_ACTION );
+			log( "Resigned from Federation" );
+			try
+			{
+				rtiamb.destroyFederationExecution( Config.FEDERATION_NAME );
+				log( "Destroyed Federation" );
+			}
+			catch( FederationExecutionDoesNotExist | FederatesCurrentlyJoined | RTIinternalError e )
+			{
+				log( "Didn't destroy federation: " + e.getMessage() );
+			}
+			finished.countDown();
+		}
+	}
+
+	/**
+	 * Evokes the pending callbacks. While a federation save or restore is in progress it
+	 * does not return, so the caller makes no other RTI calls until the federation is
+	 * running again.
+	 */
+	private void tick() throws RTIexception
+	{
+		do
+		{
+			rtiamb.evokeMultipleCallbacks( 0.1, 0.2 );
+		}
+		while( (fedamb.isSaving || fedamb.isRestoring) && !stopRequested );
+	}
+
+	/**
+	 * Federation save: the snapshot holds the logical time the recorder follows and the
+	 * size of the journal, for the log. The journal itself is not part of it: after a restore recording simply goes on, so the journal shows the
+	 * run as it happened, the messages after the restored time included a second time.
+	 */
+	void saveState( String label )
+	{
+		try
+		{
+			rtiamb.federateSaveBegun();
+			Snapshots.write( label, federateName, "Recorder", out -> {
+				out.writeDouble( fedamb.federateTime );
+				out.writeLong( recorded.get() );
+			} );
+			rtiamb.federateSaveComplete();
+			log( "Saved state as " + label );
+		}
+		catch( IOException | RTIexception e )
+		{
+			log( "Could not save state as " + label + ": " + e.getMessage() );
+			try
+			{
+				rtiamb.federateSaveNotComplete();
+			}
+			catch( RTIexception notComplete )
+			{
+				notComplete.printStackTrace();
+			}
+		}
+	}
+
+	/** Federation restore: reads back the snapshot this federate saved under the given name */
+	void loadState( String label, String savedName )
+	{
+		try
+		{
+			Snapshots.read( label, savedName, "Recorder", in -> {
+				fedamb.federateTime = in.readDouble();
+				restoredRecords = in.readLong();
+			} );
+			rtiamb.federateRestoreComplete();
+			log( "Restored state of " + savedName + " from " + label + ", journal at " + restoredRecords +
+			     " messages then and " + recorded.get() + " now" );
+		}
+		catch( IOException | RTIexception e )
+		{
+			log( "Could not restore state from " + label + ": " + e.getMessage() );
+			try
+			{
+				rtiamb.federateRestoreNotComplete();
+			}
+			catch( RTIexception notComplete )
+			{
+				notComplete.printStackTrace();
+			}
+		}
+	}
+
+	private void subscribe() throws RTIexception
+	{
+		for( String name : INTERACTIONS )
+		{
+			InteractionClassHandle interaction = rtiamb.getInteractionClassHandle( name );
+			rtiamb.subscribeInteractionClass( interaction );
+		}
+		for( Map.Entry<String, String[]> entry : OBJECT_CLASSES.entrySet() )
+		{
+			ObjectClassHandle objectClass = rtiamb.getObjectClassHandle( entry.getKey() );
+			AttributeHandleSet attributes = rtiamb.getAttributeHandleSetFactory().create();
+			for( String attribute : entry.getValue() )
+				attributes.add( rtiamb.getAttributeHandle(objectClass, attribute) );
+			rtiamb.subscribeObjectClassAttributes( objectClass, attributes );
+		}
+	}
+
+	////////////////////////////////////////////////////////////////////////////
+	/////////////////////////////// Recording //////////////////////////////////
+	////////////////////////////////////////////////////////////////////////////
+	void recordInteraction( InteractionClassHandle interaction, ParameterHandleValueMap parameters, LogicalTime time )
+	{
+		if( journal == null )
+			return;
+
+		long start = System.nanoTime();
+		try
+		{
+			// names first: a NAME record cannot go in the middle of a message
+			int id = interactionId( interaction );
+			Map<ParameterHandle, Integer> ids = parameterIds.get( interaction );
+			for( ParameterHandle parameter : parameters.keySet() )
+			{
+				if( !ids.containsKey(parameter) )
+					ids.put( parameter, journal.name(rtiamb.getParameterName(interaction, parameter)) );
+			}
+			journal.beginInteraction( id, timeOf(time) );
+			for( Map.Entry<ParameterHandle, byte[]> parameter : parameters.entrySet() )
+				journal.value( ids.get(parameter.getKey()), parameter.getValue() );
+			journal.commit();
+			recorded.increment();
+		}
+		catch( IOException | RTIexception e )
+		{
+			failed( e );
+		}
+		recordTime.recordSince( start );
+	}
+
+	void recordDiscover( ObjectInstanceHandle instance, ObjectClassHandle objectClass, String name )
+	{
+		if( journal == null )
+			return;
+
+		try
+		{
+			if( !attributeIds.containsKey(objectClass) )
+				attributeIds.put( objectClass, new HashMap<>() );
+			int classId = journal.name( rtiamb.getObjectClassName(objectClass) );
+			int id = instanceIds.size();
+			instanceIds.put( instance, id );
+			instanceClasses.put( instance, objectClass );
+			journal.discover( id, classId, name );
+			recorded.increment();
+		}
+		catch( IOException | RTIexception e )
+		{
+			failed( e );
+		}
+	}
+
+	void recordUpdate( ObjectInstanceHandle instance, AttributeHandleValueMap attributes, LogicalTime time )
+	{
+		Integer id = instanceIds.get( instance );
+		if( journal == null || id == null )
+			return;
+
+		long start = System.nanoTime();
+		try
+		{
+			ObjectClassHandle objectClass = instanceClasses.get( instance );
+			Map<AttributeHandle, Integer> ids = attributeIds.get( objectClass );
+			for( AttributeHandle attribute : attributes.keySet() )
+			{
+				if( !ids.containsKey(attribute) )
+					ids.put( attribute, journal.name(rtiamb.getAttributeName(objectClass, attribute)) );
+			}
+			journal.beginUpdate( id, timeOf(time) );
+			for( Map.Entry<AttributeHandle, byte[]> attribute : attributes.entrySet() )
+				journal.value( ids.get(attribute.getKey()), attribute.getValue() );
+			journal.commit();
+			recorded.increment();
+		}
+		catch( IOException | RTIexception e )
+		{
+			failed( e );
+		}
+		recordTime.recordSince( start );
+	}
+
+	void recordRemove( ObjectInstanceHandle instance, LogicalTime time )
+	{
+		Integer id = instanceIds.remove( instance );
+		instanceClasses.remove( instance );
+		if( journal == null || id == null )
+			return;
+
+		try
+		{
+			journal.remove( id, timeOf(time) );
+			recorded.increment();
+		}
+		catch( IOException e )
+		{
+			failed( e );
+		}
+	}
+
+	private int interactionId( InteractionClassHandle interaction ) throws IOException, RTIexception
+	{
+		Integer id = interactionIds.get( interaction );
+		if( id == null )
+		{
+			id = journal.name( rtiamb.getInteractionClassName(interaction) );
+			interactionIds.put( interaction, id );
+			parameterIds.put( interaction, new HashMap<>() );
+		}
+		return id;
+	}
+
+	private static double timeOf( LogicalTime time )
+	{
+		return time == null ? Double.NaN : ((HLAfloat64Time)time).getValue();
+	}
+
+	private void failed( Exception e )
+	{
+		log( "Could not write to the journal, recording stopped: " + e.getMessage() );
+		closeJournal();
+	}
+
+	private void closeJournal()
+	{
+		if( journal == null )
+			return;
+		try
+		{
+			log( "Journal " + journalFile + ": " + recorded.get() + " messages, " + journal.size() + " bytes" );
+			journal.close();
+		}
+		catch( IOException e )
+		{
+			log( "Could not close the journal: " + e.getMessage() );
+		}
+		journal = null;
+	}
+
+	/** Writes the metrics of this federate to Config.METRICS_DIR, if one is configured */
+	private void dumpMetrics( String federateName )
+	{
+		if( Config.METRICS_DIR == null )
+			return;
+
+		Path file = Paths.get( Config.METRICS_DIR, federateName + ".metrics.txt" );
+		try
+		{
+			metrics.dump( file );
+			log( "Metrics written to " + file );
+		}
+		catch( IOException e )
+		{
+			log( "Could not write metrics to " + file + ": " + e.getMessage() );
+		}
+	}
+
+	//----------------------------------------------------------
+	//                     STATIC METHODS
+	//----------------------------------------------------------
+	/**
+	 * Records a run into the journal named by the first argument (or Config.JOURNAL) until
+	 * the process is stopped; the journal is closed properly on Ctrl+C.
+	 */
+	public static void main( String[] args )
+	{
+		String file = args.length != 0 ? args[0] : Config.JOURNAL;
+		if( file == null )
+		{
+			System.err.println( "usage: RecorderFederate <journal> (or -Dferry.journal=<journal>)" );
+			return;
+		}
+
+		RecorderFederate recorder = new RecorderFederate( Paths.get(file) );
+		Runtime.getRuntime().addShutdownHook( new Thread(() -> {
+			recorder.stop();
+			try
+			{
+				recorder.finished.await( 2, TimeUnit.SECONDS );
+			}
+			catch( InterruptedException e )
+			{
+				Thread.currentThread().interrupt();
+			}
+		}, "recorder-stop") );
+
+		try
+		{
+			recorder.runFederate( "Recorder" );
+		}
+		catch( Exception rtie )
+		{
+			rtie.printStackTrace();
+		}
+	}
+}
@@ -0,0 +1,196 @@
+/*
+ *   Copyright 2012 The Portico Project
+ *
+ *   This file is part of portico.
+ *
+ *   portico is free software; you can redistribute it and/or modify
+ *   it under the terms of the Common Developer and Distribution License (CDDL)
+ *   as published by Sun Microsystems. For more information see the LICENSE file.
+ *
+ *   Use of this software is strictly AT YOUR OWN RISK!!!
+ *   If something bad happens you do not have permission to come crying to me.
+ *   (that goes for your lawyer as well)
+ *
+ */
+package Recorder;
+
+import Common.Log;
+import hla.rti1516e.*;
+import hla.rti1516e.exceptions.RTIexception;
+import hla.rti1516e.time.HLAfloat64Time;
+
+/**
+ * Callbacks of the {@link RecorderFederate}. Every message goes straight into the journal;
+ * synchronization points are achieved as soon as they are announced, and federation saves
+ * and restores are answered with the recorder's logical time.
+ */
+public class RecorderFederateAmbassador extends NullFederateAmbassador
+{
+	//----------------------------------------------------------
+	//                    STATIC VARIABLES
+	//----------------------------------------------------------
+	private static final Log LOG = Log.get( "FederateAmbassador" );
+
+	//----------------------------------------------------------
+	//                   INSTANCE VARIABLES
+	//----------------------------------------------------------
+	private RecorderFederate federate;
+
+	protected volatile double federateTime = 0.0;
+	protected volatile boolean isConstrained = false;
+	protected volatile boolean isAdvancing   = false;
+	protected volatile boolean isSaving      = false;
+	protected volatile boolean isRestoring   = false;
+
+	//----------------------------------------------------------
+	//                      CONSTRUCTORS
+	//----------------------------------------------------------
+	public RecorderFederateAmbassador( RecorderFederate federate )
+	{
+		this.federate = federate;
+	}
+
+	//----------------------------------------------------------
+	//                    INSTANCE METHODS
+	//----------------------------------------------------------
+	private void log( String message )
+	{
+		LOG.info( message );
+	}
+
+	//////////////////////////////////////////////////////////////////////////
+	////////////////////////// RTI Callback Methods //////////////////////////
+	//////////////////////////////////////////////////////////////////////////
+	@Override
+	public void announceSynchronizationPoint( String label, byte[] tag )
+	{
+		log( "Synchronization point announced: " + label + ", achieving it" );
+		try
+		{
+			federate.rtiamb.synchronizationPointAchieved( label );
+		}
+		catch( RTIexception e )
+		{
+			e.printStackTrace();
+		}
+	}
+
+	@Override
+	public void timeConstrainedEnabled( LogicalTime time )
+	{
+		this.federateTime = ((HLAfloat64Time)time).getValue();
+		this.isConstrained = true;
+	}
+
+	@Override
+	public void timeAdvanceGrant( LogicalTime time )
+	{
+		federate.callbacksDelivered.increment();
+		this.federateTime = ((HLAfloat64Time)time).getValue();
+		this.isAdvancing = false;
+	}
+
+	@Override
+	public void discoverObjectInstance( ObjectInstanceHandle theObject, ObjectClassHandle theObjectClass, String objectName )
+	{
+		federate.callbacksDelivered.increment();
+		federate.recordDiscover( theObject, theObjectClass, objectName );
+	}
+
+	@Override
+	public void reflectAttributeValues( ObjectInstanceHandle theObject, AttributeHandleValueMap theAttributes, byte[] tag,
+	                                    OrderType sentOrdering, TransportationTypeHandle theTransport, LogicalTime time,
+	                                    OrderType receivedOrdering, SupplementalReflectInfo reflectInfo )
+	{
+		federate.callbacksDelivered.increment();
+		federate.recordUpdate( theObject, theAttributes, time );
+	}
+
+	@Override
+	public void receiveInteraction( InteractionClassHandle interactionClass, ParameterHandleValueMap theParameters,
+	                                byte[] tag, OrderType sentOrdering, TransportationTypeHandle theTransport,
+	                                LogicalTime time, OrderType receivedOrdering, SupplementalReceiveInfo receiveInfo )
+	{
+		federate.callbacksDelivered.increment();
+		federate.recordInteraction( interactionClass, theParameters, time );
+	}
+
+	@Override
+	public void removeObjectInstance( ObjectInstanceHandle theObject, byte[] tag, OrderType sentOrdering,
+	                                  SupplementalRemoveInfo removeInfo )
+	{
+		federate.callbacksDelivered.increment();
+		federate.recordRemove( theObject, null );
+	}
+
+	@Override
+	public void removeObjectInstance( ObjectInstanceHandle theObject, byte[] tag, OrderType sentOrdering,
+	                                  LogicalTime time, OrderType receivedOrdering, SupplementalRemoveInfo removeInfo )
+	{
+		federate.callbacksDelivered.increment();
+		federate.recordRemove( theObject, time );
+	}
+
+	//////////////////////////////////////////////////////////////////////////
+	///////////////////////////// Save / Restore /////////////////////////////
+	//////////////////////////////////////////////////////////////////////////
+	@Override
+	public void initiateFederateSave( String label )
+	{
+		log( "Federation save initiated: " + label );
+		this.isSaving = true;
+		federate.saveState( label );
+	}
+
+	@Override
+	public void initiateFederateSave( String label, LogicalTime time )
+	{
+		initiateFederateSave( label );
+	}
+
+	@Override
+	public void federationSaved()
+	{
+		log( "Federation saved" );
+		this.isSaving = false;
+	}
+
+	@Override
+	public void federationNotSaved( SaveFailureReason reason )
+	{
+		log( "Federation not saved: " + reason );
+		this.isSaving = false;
+	}
+
+	@Override
+	public void federationRestoreBegun()
+	{
+		log( "Federation restore begun" );
+		this.isRestoring = true;
+	}
+
+	@Override
+	public void initiateFederateRestore( String label, String federateName, FederateHandle federateHandle )
+	{
+		log( "Restoring " + federateName + " from " + label );
+		federate.loadState( label, federateName );
+	}
+
+	@Override
+	public void federationRestored()
+	{
+		log( "Federation restored" );
+		this.isRestoring = false;
+	}
+
+	@Override
+	public void federationNotRestored( RestoreFailureReason reason )
+	{
+		log( "Federation not restored: " + reason );
+		this.isRestoring = false;
+	}
+
+	//----------------------------------------------------------
+	//                     STATIC METHODS
+	//----------------------------------------------------------
+}
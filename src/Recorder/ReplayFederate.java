@@ -0,0 +1,619 @@
+/*
+ *   Copyright 2012 The Portico Project
+ *
+ *   This file is part of portico.
+ *
+ *   portico is free software; you can redistribute it and/or modify
+ *   it under the terms of the Common Developer and Distribution License (CDDL)
+ *   as published by Sun Microsystems. For more information see the LICENSE file.
+ *
+ *   Use of this software is strictly AT YOUR OWN RISK!!!
+ *   If something bad happens you do not have permission to come crying to me.
+ *   (that goes for your lawyer as well)
+ *
+ */
+package Recorder;
+
+import Common.Journal;
+import Common.Log;
+import Common.Metrics;
+import Common.Snapshots;
+import Config.Config;
+import hla.rti1516e.*;
+import hla.rti1516e.exceptions.*;
+import hla.rti1516e.time.HLAfloat64Interval;
+import hla.rti1516e.time.HLAfloat64Time;
+import hla.rti1516e.time.HLAfloat64TimeFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Plays a journal written by {@link RecorderFederate} back to a single federate under test,
+ * e.g. one Prom, without the Manager and the Stacja federates. Everything in the journal is
+ * sent again with its recorded time stamp, except what the federate under test publishes
+ * itself; that is counted instead, in the journal and as it arrives from the federate, and
+ * the two counts are printed side by side when the replay ends.
+ * <p/>
+ * The replay is time-regulating but not constrained, so it runs ahead as fast as the RTI
+ * takes its messages and the federate under test consumes them at its own pace. Start it
+ * before the federate under test: it waits for the ReadyToRun point that federate registers.
+ * <pre>
+ *   java Recorder.ReplayFederate run.journal Prom
+ *   java -Dferry.headless=true Prom.PromFederate
+ * </pre>
+ */
+public class ReplayFederate
+{
+	//----------------------------------------------------------
+	//                    STATIC VARIABLES
+	//----------------------------------------------------------
+	private static final Log LOG = Log.get( "ReplayFederate    " );
+
+	public static final String READY_TO_RUN = "ReadyToRun";
+
+	/** What each federate type publishes, i.e. what is not replayed when it is under test */
+	private static final Map<String, Set<String>> PUBLISHED_BY = Map.of(
+		"Manager", Set.of( "HLAinteractionRoot.ZarzadzanieSymulacja.RozpocznijSymulacje" ),
+		"Prom", Set.of( "HLAobjectRoot.Prom",
+		                "HLAinteractionRoot.OperacjePromu.PrzybyciePromuNaStacje",
+		                "HLAinteractionRoot.OperacjePromu.ZaladunekRozpoczety",
+		                "HLAinteractionRoot.OperacjePromu.ZaladunekZakonczony",
+		                "HLAinteractionRoot.OperacjePromu.OdplynieciePromuZeStacji" ),
+		"Stacja", Set.of( "HLAobjectRoot.Stacja",
+		                  "HLAinteractionRoot.ZarzadzanieSymulacja.WszystkieJednostkiPrzetransportowane",
+		                  "HLAinteractionRoot.ZarzadzanieSymulacja.StatystykiOczekiwania" ) );
+
+	//----------------------------------------------------------
+	//                   INSTANCE VARIABLES
+	//----------------------------------------------------------
+	RTIambassador rtiamb;
+	private ReplayFederateAmbassador fedamb;   // created when we connect
+	private HLAfloat64TimeFactory timeFactory; // set when we join
+
+	// instrumentation, written to Config.METRICS_DIR when the federate leaves
+	protected final Metrics metrics = new Metrics( "Replay" );
+	protected final Metrics.Counter callbacksDelivered = metrics.counter( "callbacks" );
+	private final Metrics.Counter sent = metrics.counter( "replay.sent" );
+	private final Metrics.Counter late = metrics.counter( "replay.late" );
+	private final Metrics.Counter failures = metrics.counter( "replay.failed" );
+	private final Metrics.Histogram timeAdvanceGrant = metrics.timer( "rti.timeAdvanceRequest.grant" );
+
+	private final Path journalFile;
+	private final String federateUnderTest;
+	private final Set<String> notReplayed;
+	private String federateName;                // set when we join
+	private long restoredSent;                  // messages sent at the restored save, for the log
+
+	// contents of the journal, found by a first pass over it
+	private final Map<String, Set<String>> interactionParameters = new TreeMap<>();
+	private final Map<String, Set<String>> objectAttributes = new TreeMap<>();
+	private final Map<String, Long> journalCounts = new TreeMap<>();
+
+	// handles of everything we send
+	private final Map<String, InteractionClassHandle> interactionHandles = new HashMap<>();
+	private final Map<String, Map<String, ParameterHandle>> parameterHandles = new HashMap<>();
+	private final Map<String, ObjectClassHandle> objectClassHandles = new HashMap<>();
+	private final Map<String, Map<String, AttributeHandle>> attributeHandles = new HashMap<>();
+	private final Map<Integer, ObjectInstanceHandle> instances = new HashMap<>();
+	private final Map<Integer, String> instanceClasses = new HashMap<>();
+	// last values of every instance, sent again when the federate under test asks for them
+	private final Map<ObjectInstanceHandle, AttributeHandleValueMap> lastValues = new HashMap<>();
+
+	// what the federate under test sent, by class name
+	protected final Map<InteractionClassHandle, String> subscribedInteractions = new HashMap<>();
+	protected final Map<ObjectClassHandle, String> subscribedObjectClasses = new HashMap<>();
+	private final Map<String, Long> receivedCounts = new TreeMap<>();
+	private long lastReceived;
+
+	//----------------------------------------------------------
+	//                      CONSTRUCTORS
+	//----------------------------------------------------------
+	public ReplayFederate( Path journalFile, String federateUnderTest )
+	{
+		if( !PUBLISHED_BY.containsKey(federateUnderTest) )
+			throw new IllegalArgumentException( "Unknown federate type " + federateUnderTest + ", expected one of " +
+			                                    PUBLISHED_BY.keySet() );
+		this.journalFile = journalFile;
+		this.federateUnderTest = federateUnderTest;
+		this.notReplayed = PUBLISHED_BY.get( federateUnderTest );
+	}
+
+	//----------------------------------------------------------
+	//                    INSTANCE METHODS
+	//----------------------------------------------------------
+	private void log( String message )
+	{
+		LOG.info( message );
+	}
+
+	public void runFederate( String federateName ) throws Exception
+	{
+		Journal.read( journalFile, new Scan() );
+		long messages = journalCounts.values().stream().mapToLong( Long::longValue ).sum();
+		log( "Journal " + journalFile + ": " + messages + " messages, replaying all but " + notReplayed );
+
+		log( "Creating RTIambassador" );
+		rtiamb = RtiFactoryFactory.getRtiFactory().getRtiAmbassador();
+		fedamb = new ReplayFederateAmbassador( this );
+		rtiamb.connect( fedamb, CallbackModel.HLA_EVOKED );
+
+		try
+		{
+			URL[] modules = new URL[]{
+			    (new File(Config.FOM_PATH)).toURI().toURL(),
+			};
+			rtiamb.createFederationExecution( Config.FEDERATION_NAME, modules );
+			log( "Created Federation" );
+		}
+		catch( FederationExecutionAlreadyExists exists )
+		{
+			log( "Didn't create federation, it already existed" );
+		}
+		catch( MalformedURLException urle )
+		{
+			log( "Exception loading one of the FOM modules from disk: " + urle.getMessage() );
+			urle.printStackTrace();
+			return;
+		}
+
+		rtiamb.joinFederationExecution( federateName, "Replay", Config.FEDERATION_NAME );
+		this.federateName = federateName;
+		log( "Joined Federation as " + federateName );
+		this.timeFactory = (HLAfloat64TimeFactory)rtiamb.getTimeFactory();
+
+		// the federate under test registers ReadyToRun, we achieve it on announcement
+		log( "Waiting for the " + federateUnderTest + " federate under test to reach " + READY_TO_RUN );
+		while( fedamb.isReadyToRun == false )
+		{
+			tick();
+		}
+
+		HLAfloat64Interval lookahead = timeFactory.makeInterval( fedamb.federateLookahead );
+		rtiamb.enableTimeRegulation( lookahead );
+		while( fedamb.isRegulating == false )
+		{
+			tick();
+		}
+		publishAndSubscribe();
+
+		// give the federate under test time to subscribe before its first message goes out
+		long startAt = System.currentTimeMillis() + Config.REPLAY_START_DELAY_MS;
+		while( System.currentTimeMillis() < startAt )
+		{
+			tick();
+		}
+
+		long start = System.nanoTime();
+		Journal.read( journalFile, new Sender() );
+		long elapsed = System.nanoTime() - start;
+		log( String.format("Replayed %d messages in %.1f ms (%.0f/s), %d late, %d failed", sent.get(), elapsed / 1e6,
+		                   sent.get() / (elapsed / 1e9), late.get(), failures.get()) );
+
+		// let the federate under test run to the end: stop holding its time back and wait
+		// until it has been quiet for a while
+		lastReceived = System.currentTimeMillis();
+		while( System.currentTimeMillis() - lastReceived < Config.REPLAY_IDLE_MS )
+		{
+			advanceTo( fedamb.federateTime + Config.NEXT_EVENT_HORIZON );
+		}
+
+		log( "Messages of the federate under test (" + federateUnderTest + "):" );
+		Set<String> classes = new TreeSet<>( journalCounts.keySet() );
+		classes.addAll( receivedCounts.keySet() );
+		classes.retainAll( notReplayed );
+		for( String name : classes )
+		{
+			long expected = journalCounts.getOrDefault( name, 0L );
+			long received = receivedCounts.getOrDefault( name, 0L );
+			log( String.format("  %-80s journal %8d  federate %8d%s", name, expected, received,
+			                   expected == received ? "" : "  <-- differs") );
+		}
+
+		dumpMetrics( federateName );
+		rtiamb.resignFederationExecution( ResignAction.DELETE_OBJECTS );
+		log( "Resigned from Federation" );
+		try
+		{
+			rtiamb.destroyFederationExecution( Config.FEDERATION_NAME );
+			log( "Destroyed Federation" );
+		}
+		catch( FederationExecutionDoesNotExist | FederatesCurrentlyJoined | RTIinternalError e )
+		{
+			log( "Didn't destroy federation: " + e.getMessage() );
+		}
+	}
+
+	/**
+	 * Evokes the pending callbacks. While a federation save or restore is in progress it
+	 * does not return, so the caller makes no other RTI calls until the federation is
+	 * running again.
+	 */
+	private void tick() throws RTIexception
+	{
+		do
+		{
+			rtiamb.evokeMultipleCallbacks( 0.1, 0.2 );
+		}
+		while( fedamb.isSaving || fedamb.isRestoring );
+	}
+
+	/**
+	 * Federation save: the snapshot holds the logical time of the replay and how many
+	 * messages it has sent. The position in the journal is not part of it: after a restore the replay goes
+	 * on with the next journal message, late if its time stamp now lies behind ours.
+	 */
+	void saveState( String label )
+	{
+		try
+		{
+			rtiamb.federateSaveBegun();
+			Snapshots.write( label, federateName, "Replay", out -> {
+				out.writeDouble( fedamb.federateTime );
+				out.writeLong( sent.get() );
+			} );
+			rtiamb.federateSaveComplete();
+			log( "Saved state as " + label );
+		}
+		catch( IOException | RTIexception e )
+		{
+			log( "Could not save state as " + label + ": " + e.getMessage() );
+			try
+			{
+				rtiamb.federateSaveNotComplete();
+			}
+			catch( RTIexception notComplete )
+			{
+				notComplete.printStackTrace();
+			}
+		}
+	}
+
+	/** Federation restore: reads back the snapshot this federate saved under the given name */
+	void loadState( String label, String savedName )
+	{
+		try
+		{
+			Snapshots.read( label, savedName, "Replay", in -> {
+				fedamb.federateTime = in.readDouble();
+				restoredSent = in.readLong();
+			} );
+			rtiamb.federateRestoreComplete();
+			log( "Restored state of " + savedName + " from " + label + ", " + restoredSent +
+			     " messages had been replayed then, " + sent.get() + " now" );
+		}
+		catch( IOException | RTIexception e )
+		{
+			log( "Could not restore state from " + label + ": " + e.getMessage() );
+			try
+			{
+				rtiamb.federateRestoreNotComplete();
+			}
+			catch( RTIexception notComplete )
+			{
+				notComplete.printStackTrace();
+			}
+		}
+	}
+
+	/** Not time-constrained, so the grant only waits for the RTI itself */
+	private void advanceTo( double time ) throws RTIexception
+	{
+		long requested = System.nanoTime();
+		fedamb.isAdvancing = true;
+		rtiamb.timeAdvanceRequest( timeFactory.makeTime(time) );
+		while( fedamb.isAdvancing )
+		{
+			tick();
+		}
+		timeAdvanceGrant.recordSince( requested );
+	}
+
+	/**
+	 * Time stamp for a message recorded at the given time, advancing so that it can be
+	 * sent. A message that can no longer go out at its time (the journal is in receive
+	 * order between federates) goes out as early as allowed and is counted as late.
+	 */
+	private HLAfloat64Time timestamp( double time ) throws RTIexception
+	{
+		if( time - fedamb.federateLookahead > fedamb.federateTime )
+			advanceTo( time - fedamb.federateLookahead );
+
+		double earliest = fedamb.federateTime + fedamb.federateLookahead;
+		if( time < earliest - 1e-9 )
+			late.increment();
+		return timeFactory.makeTime( Math.max(time, earliest) );
+	}
+
+	private void publishAndSubscribe() throws RTIexception
+	{
+		for( Map.Entry<String, Set<String>> entry : interactionParameters.entrySet() )
+		{
+			if( notReplayed.contains(entry.getKey()) )
+				continue;
+			InteractionClassHandle interaction = rtiamb.getInteractionClassHandle( entry.getKey() );
+			Map<String, ParameterHandle> parameters = new HashMap<>();
+			for( String parameter : entry.getValue() )
+				parameters.put( parameter, rtiamb.getParameterHandle(interaction, parameter) );
+			interactionHandles.put( entry.getKey(), interaction );
+			parameterHandles.put( entry.getKey(), parameters );
+			rtiamb.publishInteractionClass( interaction );
+		}
+		for( Map.Entry<String, Set<String>> entry : objectAttributes.entrySet() )
+		{
+			if( notReplayed.contains(entry.getKey()) )
+				continue;
+			ObjectClassHandle objectClass = rtiamb.getObjectClassHandle( entry.getKey() );
+			AttributeHandleSet published = rtiamb.getAttributeHandleSetFactory().create();
+			Map<String, AttributeHandle> attributes = new HashMap<>();
+			for( String attribute : entry.getValue() )
+			{
+				AttributeHandle handle = rtiamb.getAttributeHandle( objectClass, attribute );
+				attributes.put( attribute, handle );
+				published.add( handle );
+			}
+			objectClassHandles.put( entry.getKey(), objectClass );
+			attributeHandles.put( entry.getKey(), attributes );
+			rtiamb.publishObjectClassAttributes( objectClass, published );
+		}
+
+		// and listen to what the federate under test publishes itself
+		for( String name : RecorderFederate.INTERACTIONS )
+		{
+			if( !notReplayed.contains(name) )
+				continue;
+			InteractionClassHandle interaction = rtiamb.getInteractionClassHandle( name );
+			subscribedInteractions.put( interaction, name );
+			rtiamb.subscribeInteractionClass( interaction );
+		}
+		for( Map.Entry<String, String[]> entry : RecorderFederate.OBJECT_CLASSES.entrySet() )
+		{
+			if( !notReplayed.contains(entry.getKey()) )
+				continue;
+			ObjectClassHandle objectClass = rtiamb.getObjectClassHandle( entry.getKey() );
+			AttributeHandleSet attributes = rtiamb.getAttributeHandleSetFactory().create();
+			for( String attribute : entry.getValue() )
+				attributes.add( rtiamb.getAttributeHandle(objectClass, attribute) );
+			subscribedObjectClasses.put( objectClass, entry.getKey() );
+			rtiamb.subscribeObjectClassAttributes( objectClass, attributes );
+		}
+	}
+
+	/** A message of the given class arrived from the federate under test */
+	void received( String className )
+	{
+		receivedCounts.merge( className, 1L, Long::sum );
+		lastReceived = System.currentTimeMillis();
+	}
+
+	/** The federate under test asks for the current values of one of our instances */
+	void provideAttributes( ObjectInstanceHandle instance )
+	{
+		AttributeHandleValueMap values = lastValues.get( instance );
+		if( values == null )
+			return;
+		try
+		{
+			rtiamb.updateAttributeValues( instance, values, null );
+		}
+		catch( RTIexception e )
+		{
+			failed( e );
+		}
+	}
+
+	private void failed( RTIexception e )
+	{
+		failures.increment();
+		if( failures.get() == 1 )
+			log( "Could not replay a message (further failures are only counted): " + e );
+	}
+
+	/** Writes the metrics of this federate to Config.METRICS_DIR, if one is configured */
+	private void dumpMetrics( String federateName )
+	{
+		if( Config.METRICS_DIR == null )
+			return;
+
+		Path file = Paths.get( Config.METRICS_DIR, federateName + ".metrics.txt" );
+		try
+		{
+			metrics.dump( file );
+			log( "Metrics written to " + file );
+		}
+		catch( IOException e )
+		{
+			log( "Could not write metrics to " + file + ": " + e.getMessage() );
+		}
+	}
+
+	//----------------------------------------------------------
+	//                     STATIC METHODS
+	//----------------------------------------------------------
+	public static void main( String[] args )
+	{
+		if( args.length < 2 )
+		{
+			System.err.println( "usage: ReplayFederate <journal> <Manager|Prom|Stacja> [federate name]" );
+			return;
+		}
+
+		try
+		{
+			ReplayFederate replay = new ReplayFederate( Paths.get(args[0]), args[1] );
+			replay.runFederate( args.length > 2 ? args[2] : "Replay" );
+		}
+		catch( Exception rtie )
+		{
+			rtie.printStackTrace();
+		}
+		Log.flush();
+	}
+
+	//----------------------------------------------------------
+	//                     INNER CLASSES
+	//----------------------------------------------------------
+	/** First pass: which classes, parameters and attributes the journal uses, and how often */
+	private class Scan implements Journal.Listener
+	{
+		private final Map<Integer, String> classes = new HashMap<>();
+
+		@Override
+		public void interaction( String interactionClass, double time, Journal.Values parameters )
+		{
+			Set<String> names = interactionParameters.computeIfAbsent( interactionClass, n -> new LinkedHashSet<>() );
+			for( int i = 0; i < parameters.size(); i++ )
+				names.add( parameters.name(i) );
+			journalCounts.merge( interactionClass, 1L, Long::sum );
+		}
+
+		@Override
+		public void discover( int instance, String objectClass, String instanceName )
+		{
+			classes.put( instance, objectClass );
+			objectAttributes.computeIfAbsent( objectClass, n -> new LinkedHashSet<>() );
+		}
+
+		@Override
+		public void update( int instance, double time, Journal.Values attributes )
+		{
+			String objectClass = classes.get( instance );
+			Set<String> names = objectAttributes.get( objectClass );
+			for( int i = 0; i < attributes.size(); i++ )
+				names.add( attributes.name(i) );
+			journalCounts.merge( objectClass, 1L, Long::sum );
+		}
+
+		@Override
+		public void remove( int instance, double time )
+		{
+			classes.remove( instance );
+		}
+	}
+
+	/** Second pass: sends everything the federate under test does not publish itself */
+	private class Sender implements Journal.Listener
+	{
+		@Override
+		public void interaction( String interactionClass, double time, Journal.Values parameters )
+		{
+			InteractionClassHandle interaction = interactionHandles.get( interactionClass );
+			if( interaction == null )
+				return;
+			try
+			{
+				Map<String, ParameterHandle> handles = parameterHandles.get( interactionClass );
+				ParameterHandleValueMap values = rtiamb.getParameterHandleValueMapFactory().create( parameters.size() );
+				for( int i = 0; i < parameters.size(); i++ )
+					values.put( handles.get(parameters.name(i)), parameters.value(i) );
+
+				if( Double.isNaN(time) )
+					rtiamb.sendInteraction( interaction, values, null );
+				else
+					rtiamb.sendInteraction( interaction, values, null, timestamp(time) );
+				sent.increment();
+			}
+			catch( RTIexception e )
+			{
+				failed( e );
+			}
+		}
+
+		@Override
+		public void discover( int instance, String objectClass, String instanceName )
+		{
+			ObjectClassHandle handle = objectClassHandles.get( objectClass );
+			if( handle == null )
+				return;
+			try
+			{
+				ObjectInstanceHandle registered;
+				try
+				{
+					registered = rtiamb.registerObjectInstance( handle, instanceName );
+				}
+				catch( ObjectInstanceNameInUse | ObjectInstanceNameNotReserved e )
+				{
+					registered = rtiamb.registerObjectInstance( handle );
+				}
+				instances.put( instance, registered );
+				instanceClasses.put( instance, objectClass );
+				sent.increment();
+			}
+			catch( RTIexception e )
+			{
+				failed( e );
+			}
+		}
+
+		@Override
+		public void update( int instance, double time, Journal.Values attributes )
+		{
+			ObjectInstanceHandle handle = instances.get( instance );
+			if( handle == null )
+				return;
+			try
+			{
+				Map<String, AttributeHandle> handles = attributeHandles.get( instanceClasses.get(instance) );
+				AttributeHandleValueMap values = rtiamb.getAttributeHandleValueMapFactory().create( attributes.size() );
+				for( int i = 0; i < attributes.size(); i++ )
+					values.put( handles.get(attributes.name(i)), attributes.value(i) );
+				rememberValues( handle, values );
+
+				if( Double.isNaN(time) )
+					rtiamb.updateAttributeValues( handle, values, null );
+				else
+					rtiamb.updateAttributeValues( handle, values, null, timestamp(time) );
+				sent.increment();
+			}
+			catch( RTIexception e )
+			{
+				failed( e );
+			}
+		}
+
+		@Override
+		public void remove( int instance, double time )
+		{
+			ObjectInstanceHandle handle = instances.remove( instance );
+			instanceClasses.remove( instance );
+			if( handle == null )
+				return;
+			lastValues.remove( handle );
+			try
+			{
+				if( Double.isNaN(time) )
+					rtiamb.deleteObjectInstance( handle, null );
+				else
+					rtiamb.deleteObjectInstance( handle, null, timestamp(time) );
+				sent.increment();
+			}
+			catch( RTIexception e )
+			{
+				failed( e );
+			}
+		}
+
+		private void rememberValues( ObjectInstanceHandle handle, AttributeHandleValueMap values ) throws RTIexception
+		{
+			AttributeHandleValueMap last = lastValues.get( handle );
+			if( last == null )
+			{
+				last = rtiamb.getAttributeHandleValueMapFactory().create( values.size() );
+				lastValues.put( handle, last );
+			}
+			last.putAll( values );
+		}
+	}
+}
@@ -0,0 +1,218 @@
+/*
+ *   Copyright 2012 The Portico Project
+ *
+ *   This file is part of portico.
+ *
+ *   portico is free software; you can redistribute it and/or modify
+ *   it under the terms of the Common Developer and Distribution License (CDDL)
+ *   as published by Sun Microsystems. For more information see the LICENSE file.
+ *
+ *   Use of this software is strictly AT YOUR OWN RISK!!!
+ *   If something bad happens you do not have permission to come crying to me.
+ *   (that goes for your lawyer as well)
+ *
+ */
+package Recorder;
+
+import Common.Log;
+import Config.Config;
+import hla.rti1516e.*;
+import hla.rti1516e.exceptions.RTIexception;
+import hla.rti1516e.time.HLAfloat64Time;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Callbacks of the {@link ReplayFederate}: synchronization and time, the messages of the
+ * federate under test (only counted), its requests for the values of replayed instances and
+ * federation saves and restores.
+ */
+public class ReplayFederateAmbassador extends NullFederateAmbassador
+{
+	//----------------------------------------------------------
+	//                    STATIC VARIABLES
+	//----------------------------------------------------------
+	private static final Log LOG = Log.get( "FederateAmbassador" );
+
+	//----------------------------------------------------------
+	//                   INSTANCE VARIABLES
+	//----------------------------------------------------------
+	private ReplayFederate federate;
+
+	protected volatile double federateTime = 0.0;
+	protected double federateLookahead     = Config.LOOKAHEAD_REPLAY;
+
+	protected volatile boolean isRegulating = false;
+	protected volatile boolean isAdvancing  = false;
+	protected volatile boolean isReadyToRun = false;
+	protected volatile boolean isSaving     = false;
+	protected volatile boolean isRestoring  = false;
+
+	// instances of the federate under test, by the class they were discovered as
+	private Map<ObjectInstanceHandle, String> discovered = new HashMap<>();
+
+	//----------------------------------------------------------
+	//                      CONSTRUCTORS
+	//----------------------------------------------------------
+	public ReplayFederateAmbassador( ReplayFederate federate )
+	{
+		this.federate = federate;
+	}
+
+	//----------------------------------------------------------
+	//                    INSTANCE METHODS
+	//----------------------------------------------------------
+	private void log( String message )
+	{
+		LOG.info( message );
+	}
+
+	//////////////////////////////////////////////////////////////////////////
+	////////////////////////// RTI Callback Methods //////////////////////////
+	//////////////////////////////////////////////////////////////////////////
+	@Override
+	public void announceSynchronizationPoint( String label, byte[] tag )
+	{
+		log( "Synchronization point announced: " + label + ", achieving it" );
+		try
+		{
+			federate.rtiamb.synchronizationPointAchieved( label );
+		}
+		catch( RTIexception e )
+		{
+			e.printStackTrace();
+		}
+	}
+
+	@Override
+	public void federationSynchronized( String label, FederateHandleSet failed )
+	{
+		log( "Federation Synchronized: " + label );
+		if( label.equals(ReplayFederate.READY_TO_RUN) )
+			this.isReadyToRun = true;
+	}
+
+	@Override
+	public void timeRegulationEnabled( LogicalTime time )
+	{
+		this.federateTime = ((HLAfloat64Time)time).getValue();
+		this.isRegulating = true;
+	}
+
+	@Override
+	public void timeAdvanceGrant( LogicalTime time )
+	{
+		federate.callbacksDelivered.increment();
+		this.federateTime = ((HLAfloat64Time)time).getValue();
+		this.isAdvancing = false;
+	}
+
+	@Override
+	public void discoverObjectInstance( ObjectInstanceHandle theObject, ObjectClassHandle theObjectClass, String objectName )
+	{
+		federate.callbacksDelivered.increment();
+		String className = federate.subscribedObjectClasses.get( theObjectClass );
+		if( className != null )
+			discovered.put( theObject, className );
+	}
+
+	@Override
+	public void reflectAttributeValues( ObjectInstanceHandle theObject, AttributeHandleValueMap theAttributes, byte[] tag,
+	                                    OrderType sentOrdering, TransportationTypeHandle theTransport, LogicalTime time,
+	                                    OrderType receivedOrdering, SupplementalReflectInfo reflectInfo )
+	{
+		federate.callbacksDelivered.increment();
+		String className = discovered.get( theObject );
+		if( className != null )
+			federate.received( className );
+	}
+
+	@Override
+	public void receiveInteraction( InteractionClassHandle interactionClass, ParameterHandleValueMap theParameters,
+	                                byte[] tag, OrderType sentOrdering, TransportationTypeHandle theTransport,
+	                                LogicalTime time, OrderType receivedOrdering, SupplementalReceiveInfo receiveInfo )
+	{
+		federate.callbacksDelivered.increment();
+		String className = federate.subscribedInteractions.get( interactionClass );
+		if( className != null )
+			federate.received( className );
+	}
+
+	@Override
+	public void removeObjectInstance( ObjectInstanceHandle theObject, byte[] tag, OrderType sentOrdering,
+	                                  SupplementalRemoveInfo removeInfo )
+	{
+		federate.callbacksDelivered.increment();
+		discovered.remove( theObject );
+	}
+
+	@Override
+	public void provideAttributeValueUpdate( ObjectInstanceHandle theObject, AttributeHandleSet theAttributes, byte[] tag )
+	{
+		federate.provideAttributes( theObject );
+	}
+
+	//////////////////////////////////////////////////////////////////////////
+	///////////////////////////// Save / Restore /////////////////////////////
+	//////////////////////////////////////////////////////////////////////////
+	@Override
+	public void initiateFederateSave( String label )
+	{
+		log( "Federation save initiated: " + label );
+		this.isSaving = true;
+		federate.saveState( label );
+	}
+
+	@Override
+	public void initiateFederateSave( String label, LogicalTime time )
+	{
+		initiateFederateSave( label );
+	}
+
+	@Override
+	public void federationSaved()
+	{
+		log( "Federation saved" );
+		this.isSaving = false;
+	}
+
+	@Override
+	public void federationNotSaved( SaveFailureReason reason )
+	{
+		log( "Federation not saved: " + reason );
+		this.isSaving = false;
+	}
+
+	@Override
+	public void federationRestoreBegun()
+	{
+		log( "Federation restore begun" );
+		this.isRestoring = true;
+	}
+
+	@Override
+	public void initiateFederateRestore( String label, String federateName, FederateHandle federateHandle )
+	{
+		log( "Restoring " + federateName + " from " + label );
+		federate.loadState( label, federateName );
+	}
+
+	@Override
+	public void federationRestored()
+	{
+		log( "Federation restored" );
+		this.isRestoring = false;
+	}
+
+	@Override
+	public void federationNotRestored( RestoreFailureReason reason )
+	{
+		log( "Federation not restored: " + reason );
+		this.isRestoring = false;
+	}
+
+	//----------------------------------------------------------
+	//                     STATIC METHODS
+	//----------------------------------------------------------
+}
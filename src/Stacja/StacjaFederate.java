@@ -16,25 +16,42 @@ package Stacja;
 
 import hla.rti1516e.*;
 import hla.rti1516e.encoding.EncoderFactory;
-import hla.rti1516e.encoding.HLAinteger32BE;
 import hla.rti1516e.exceptions.*;
 import hla.rti1516e.time.HLAfloat64Interval;
 import hla.rti1516e.time.HLAfloat64Time;
 import hla.rti1516e.time.HLAfloat64TimeFactory;
 
 import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
+import java.io.IOException;
 import java.io.InputStreamReader;
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.*;
 
+import Common.CallbackQueue;
+import Common.HlaCodec;
+import Common.Log;
+import Common.MessageTags;
+import Common.Metrics;
+import Common.Snapshots;
 import Config.Config;
+import Config.ExperimentParameters;
+import Model.ArrivalProcess;
+import Model.QueueStatistics;
+import Model.RandomStreams;
+import Model.StationQueues;
 
 public class StacjaFederate
 {
 	/** The sync point all federates will sync up on before starting */
 	public static final String READY_TO_RUN = "ReadyToRun";
+	private static final Log LOG = Log.get( "StationFederate   " );
 
 	//----------------------------------------------------------
 	//                   INSTANCE VARIABLES
@@ -44,36 +61,133 @@ public class StacjaFederate
 	private HLAfloat64TimeFactory timeFactory; // set when we join
 	protected EncoderFactory encoderFactory;     // set when we join
 
+	// HLA_IMMEDIATE: callbacks are handed over through this queue (see Config.IMMEDIATE_CALLBACKS)
+	protected boolean immediateCallbacks = Config.IMMEDIATE_CALLBACKS;
+	protected final CallbackQueue callbacks = new CallbackQueue();
+	protected MessageTags tags = new MessageTags(MessageTags.Policy.valueOf(Config.TAG_POLICY));
+
+	// instrumentation, written to Config.METRICS_DIR when the federate leaves
+	protected final Metrics metrics = new Metrics( "Stacja" );
+	protected final Metrics.Counter callbacksDelivered = metrics.counter( "callbacks" );
+	protected final Metrics.Histogram messageLatency = metrics.timer( "message.latency" );
+	private final Metrics.Histogram callbacksPerTick = metrics.histogram( "callbacks.per.tick" );
+	private final Metrics.Histogram timeAdvanceGrant = metrics.timer( "rti.timeAdvanceRequest.grant" );
+	private final Metrics.Histogram nextMessageGrant = metrics.timer( "rti.nextMessageRequest.grant" );
+	private final Metrics.Histogram interactionSend = metrics.timer( "rti.sendInteraction" );
+	private final Metrics.Histogram attributeUpdate = metrics.timer( "rti.updateAttributeValues" );
+
 	// caches of handle types - set once we join a federation
 	protected ObjectClassHandle stationHandle;
 	protected AttributeHandle stationIdHandle, peopleInQueueHandle, carsInQueueHandle;
 	protected InteractionClassHandle zaladunekHandle,zaladunekZakonczonyHandle,odplyniecieHandle, startSimulationHandle, endSimulationHandle;
+	protected InteractionClassHandle waitReportHandle;
+	protected ParameterHandle waitReportPartycjaParam, waitReportStatystykiParam;
+	protected ObjectClassHandle promHandle;
 	protected AttributeHandle promTripCountHandle;
-	private List<ObjectInstanceHandle> stationInstanceHandles = new ArrayList<>();
-
-	private List<Queue<Object>> peopleQueues = new ArrayList<>();
-	private List<Queue<Object>> carQueues = new ArrayList<>();
-	private Map<Integer, List<QueuedBoarding>> pendingBoardings = new HashMap<>();
+	protected ParameterHandle liczbaStacjiParam, pojemnoscOsobParam, maksPojemnoscStacjiParam, prawdopodobienstwoSamochoduParam;
+	protected ParameterHandle ziarnoParam, numerEksperymentuParam;
+	protected ParameterHandle zaladunekPromIdParam, zaladunekStacjaIdParam, zaladunekTypParam, zaladunekLiczbaParam;
+	protected ParameterHandle zaladunekZakonczonyPromIdParam, zaladunekZakonczonyStacjaIdParam;
+	protected ParameterHandle liczbaWykonanychKursowParam;
+	protected AttributeHandleSet stationAttributes;
+
+	// Podział stacji między kilka federatów Stacja: ten federat obsługuje stacje o
+	// identyfikatorach [pierwszaStacja, pierwszaStacja + liczbaLokalnych). Wszystkie tablice
+	// poniżej są indeksowane lokalnym numerem stacji (identyfikator - pierwszaStacja).
+	private final int partycja;
+	private final int liczbaPartycji;
+	private int pierwszaStacja = 0;
+	private int liczbaLokalnych = 0;
+	// rośnie przy każdej zmianie liczby stacji, żeby nowe instancje nie dostały nazw usuniętych
+	private int generacja = 0;
+	private ObjectInstanceHandle[] stationInstanceHandles = new ObjectInstanceHandle[0];
+	private Map<ObjectInstanceHandle, Integer> stationIndexByHandle = new HashMap<>();
+
+	// ostatnio opublikowany stan stacji; -1 oznacza "jeszcze nie wysłano"
+	private int[] publishedPeople = new int[0];
+	private int[] publishedCars = new int[0];
+	private boolean[] fullUpdateRequested = new boolean[0];
+
+	// stacje do sprawdzenia w najbliższej turze aktualizacji, bez przeglądania wszystkich
+	private int[] dirtyStations = new int[0];
+	private boolean[] dirty = new boolean[0];
+	private int dirtyCount = 0;
+
+	// Partycja 0 kończy eksperyment, więc śledzi też stacje pozostałych partycji (według
+	// identyfikatora stacji). -1 oznacza stację, która w tym eksperymencie jeszcze się nie zgłosiła.
+	private Map<ObjectInstanceHandle, Integer> remoteStationIds = new HashMap<>();
+	private int[] remoteLoad = new int[0];
+	private int[] remotePeople = new int[0];
+	private int[] remoteCars = new int[0];
+	private int remoteUnreported = 0;
+	private int remoteNonEmpty = 0;
+
+	private StationQueues queues = new StationQueues(0);
+	// czasy przybycia oczekujących, czasy oczekiwania i średnie długości kolejek lokalnych stacji
+	private QueueStatistics queueStats = new QueueStatistics(0);
+	// partycje > 0 wysyłają statystyki po sygnale końca eksperymentu od partycji 0
+	private boolean waitReportRequested = false;
+	// rozpoczęte załadunki według IdentyfikatorPromu, zdejmowane z kolejek przy ZaladunekZakonczony
+	private Map<String, List<QueuedBoarding>> pendingBoardings = new HashMap<>();
+	// ostatnia LiczbaKursowPromu każdego promu; wynik eksperymentu to ich suma
+	private Map<ObjectInstanceHandle, Integer> tripCounts = new HashMap<>();
 
 	private boolean simulationStartRequested = false;
-	private int requestedLiczbaStacji = 0;
+	private ExperimentParameters requestedParameters;
+	private long requestedExperimentSeed;
 
 	private int liczbaStacji = 0;
+	private ExperimentParameters parameters = ExperimentParameters.defaults();
 	private boolean simulationStarted = false;
 	private boolean simulationFinished = false;
 	private int finalTripCount = 0;
-	private Random random = new Random();
+	// strumień liczb losowych każdej lokalnej stacji, od nowa w każdym eksperymencie
+	private SplittableRandom[] stationRandom = new SplittableRandom[0];
+
+	// napływ w trakcie eksperymentu (Config.ARRIVALS_*); null: kolejki wypełniane tylko na starcie
+	private ArrivalProcess arrivals;
+	private double experimentStart;
+	private double nextArrivals;              // czas następnej paczki przybyć
+	private long arrivedPeople, arrivedCars;  // przybyło na lokalne stacje w tym eksperymencie
+	private final Metrics.Counter arrivalsCounter = metrics.counter( "arrivals" );
+
+	private String federateName;              // set when we join, names our snapshots
+
+	// when true the federate does not wait for the user (see Config.HEADLESS)
+	protected boolean headless;
+	private volatile boolean stopRequested = false;
 	//----------------------------------------------------------
 	//                      CONSTRUCTORS
 	//----------------------------------------------------------
+	public StacjaFederate()
+	{
+		this( Config.HEADLESS );
+	}
+
+	public StacjaFederate( boolean headless )
+	{
+		this( headless, 0, 1 );
+	}
+
+	public StacjaFederate( boolean headless, int partycja, int liczbaPartycji )
+	{
+		if( partycja < 0 || partycja >= liczbaPartycji )
+			throw new IllegalArgumentException( "Partition " + partycja + " out of " + liczbaPartycji );
+
+		this.headless = headless;
+		this.partycja = partycja;
+		this.liczbaPartycji = liczbaPartycji;
+	}
 
 	//----------------------------------------------------------
 	//                    INSTANCE METHODS
 	//----------------------------------------------------------
 	private static class QueuedBoarding {
+		int station;
 		int people;
 		int cars;
-		QueuedBoarding(int p, int c) {
+		QueuedBoarding(int s, int p, int c) {
+			this.station = s;
 			this.people = p;
 			this.cars = c;
 		}
@@ -85,7 +199,7 @@ public class StacjaFederate
 
 	private void log( String message )
 	{
-		System.out.println( "StationFederate   : " + message );
+		LOG.info( message );
 	}
 
 	/**
@@ -124,7 +238,7 @@ public class StacjaFederate
 
 		log("Connecting...");
 		fedamb = new StacjaFederateAmbassador(this);
-		rtiamb.connect(fedamb, CallbackModel.HLA_EVOKED);
+		rtiamb.connect(fedamb, immediateCallbacks ? CallbackModel.HLA_IMMEDIATE : CallbackModel.HLA_EVOKED);
 
 		//////////////////////////////
 		// 3. create the federation //
@@ -162,6 +276,7 @@ public class StacjaFederate
 		                                 );           // modules we want to add
 
 		log( "Joined Federation as " + federateName );
+		this.federateName = federateName;
 
 		// cache the time factory for easy access
 		this.timeFactory = (HLAfloat64TimeFactory)rtiamb.getTimeFactory();
@@ -174,16 +289,18 @@ public class StacjaFederate
 		// but we don't care about that, as long as someone registered it
 		rtiamb.registerFederationSynchronizationPoint( READY_TO_RUN, null );
 		// wait until the point is announced
-		while( fedamb.isAnnounced == false )
+		while( fedamb.isAnnounced == false && !stopRequested )
 		{
-			rtiamb.evokeMultipleCallbacks( 0.1, 0.2 );
+			tick();
 		}
 
 		// WAIT FOR USER TO KICK US OFF
 		// So that there is time to add other federates, we will wait until the
 		// user hits enter before proceeding. That was, you have time to start
-		// other federates.
-		waitForUser();
+		// other federates. In headless mode the Manager holds the sync point
+		// until every federate has joined, so we can achieve it straight away.
+		if( !headless )
+			waitForUser();
 
 		///////////////////////////////////////////////////////
 		// 6. achieve the point and wait for synchronization //
@@ -192,9 +309,9 @@ public class StacjaFederate
 		// until the federation has synchronized on
 		rtiamb.synchronizationPointAchieved( READY_TO_RUN );
 		log( "Achieved sync point: " +READY_TO_RUN+ ", waiting for federation..." );
-		while( fedamb.isReadyToRun == false )
+		while( fedamb.isReadyToRun == false && !stopRequested )
 		{
-			rtiamb.evokeMultipleCallbacks( 0.1, 0.2 );
+			tick();
 		}
 
 		/////////////////////////////
@@ -218,163 +335,625 @@ public class StacjaFederate
 		// here is where we do the meat of our work. in each iteration, we will
 		// update the attribute values of the object we registered, and will
 		// send an interaction.
-		while (fedamb.isRunning) {
+		while (fedamb.isRunning && !stopRequested) {
 			if (this.simulationStartRequested) {
-				startSimulation(this.requestedLiczbaStacji);
+				startSimulation(this.requestedParameters, this.requestedExperimentSeed);
 				this.simulationStartRequested = false;
 			}
 			if (!simulationStarted) {
-				advanceTime(1.0);
+				advanceIdle();
 				continue;
 			}
 
-			updateAllStationAttributes();
+			if (arrivals != null) {
+				generateArrivals();
+			}
+			updateChangedStationAttributes();
 
-			if (!simulationFinished && areAllQueuesEmpty()) {
-				log(" Wszystkie kolejki puste. Kończenie eksperymentu");
+			if (waitReportRequested) {
+				sendWaitReport();
+				waitReportRequested = false;
+			}
+			if (partycja == 0 && !simulationFinished && isExperimentOver()) {
+				if (arrivals == null) {
+					log(" Wszystkie kolejki puste. Kończenie eksperymentu");
+				} else {
+					log(" Upłynął czas eksperymentu (" + arrivals.duration() + "). Przybyło " + arrivedPeople + " osób i " +
+					    arrivedCars + " samochodów, czeka jeszcze " + waitingUnits() + " (stacje tej partycji)");
+				}
+				sendWaitReport();
 				sendEndSimulationInteraction();
 				simulationFinished = true;
 			}
-			advanceTime(1.0);
+			advanceIdle();
 		}
 
+		if (!tags.latencySummary().isEmpty())
+			log("Message latency: " + tags.latencySummary());
+		dumpMetrics(federateName);
 		rtiamb.resignFederationExecution(ResignAction.DELETE_OBJECTS);
 		log("Resigned from Federation");
+		try {
+			rtiamb.destroyFederationExecution(Config.FEDERATION_NAME);
+			log("Destroyed Federation");
+		} catch (FederationExecutionDoesNotExist | FederatesCurrentlyJoined | RTIinternalError e) {
+			log("Didn't destroy federation: " + e.getMessage());
+		}
 	}
 
 	////////////////////////////////////////////////////////////////////////////
 	////////////////////////////// Helper Methods //////////////////////////////
 	////////////////////////////////////////////////////////////////////////////
-	public void requestStartSimulation(int liczbaStacji) {
+	/**
+	 * Asks the federate to leave the federation: every wait (sync point, time grant, save
+	 * or restore) gives up and the main loop ends after the current step. Safe to call
+	 * from another thread, e.g. by the in-process launcher once the Manager is done or
+	 * has failed.
+	 */
+	public void stop()
+	{
+		this.stopRequested = true;
+	}
+
+	public void requestStartSimulation(ExperimentParameters parameters, long ziarno, int numerEksperymentu) {
 		this.simulationStartRequested = true;
-		this.requestedLiczbaStacji = liczbaStacji;
-		log("Received request to start simulation with " + liczbaStacji + " stations.");
+		this.requestedParameters = parameters;
+		this.requestedExperimentSeed = RandomStreams.experimentSeed(ziarno, numerEksperymentu);
+		log("Received request to start simulation: " + parameters + ", experiment " + numerEksperymentu + ", ziarno " + ziarno);
 	}
 
-	protected void startSimulation(int liczbaStacji) throws RTIexception {
-		if (!this.simulationStarted) { // First time setup
-			this.liczbaStacji = liczbaStacji;
+	protected void startSimulation(ExperimentParameters parameters, long experimentSeed) throws RTIexception {
+		if (!this.simulationStarted || parameters.liczbaStacji != this.liczbaStacji) {
+			// first experiment, or the plan moved on to a different station count
+			if (this.simulationStarted) {
+				removeStations();
+			}
+			this.liczbaStacji = parameters.liczbaStacji;
 			initializeStations();
 			this.simulationStarted = true;
 		}
+		this.parameters = parameters;
+		this.arrivals = ArrivalProcess.fromConfig(liczbaStacji);
+		// keyed by the global station id, so the queues do not depend on the partitioning
+		stationRandom = new SplittableRandom[liczbaLokalnych];
+		for (int i = 0; i < liczbaLokalnych; i++) {
+			stationRandom[i] = RandomStreams.stationStream(experimentSeed, pierwszaStacja + i);
+		}
 		resetForNewExperiment();
 	}
 
 	private void resetForNewExperiment() {
 		log("Resetowanie stanu stacji na potrzeby nowego eksperymentu.");
-		for (Queue<Object> queue : peopleQueues) {
-			queue.clear();
-		}
-		for (Queue<Object> queue : carQueues) {
-			queue.clear();
-		}
+		queues.clear();
 		pendingBoardings.clear();
+		tripCounts.replaceAll((prom, trips) -> 0);
+		// every station goes out in full once per experiment, so partition 0 hears from
+		// all of them even if a queue happens to refill to the same lengths
+		for (int i = 0; i < liczbaLokalnych; i++) {
+			fullUpdateRequested[i] = true;
+			markDirty(i);
+		}
+		Arrays.fill(remoteLoad, -1);
+		remoteUnreported = liczbaStacji - liczbaLokalnych;
+		remoteNonEmpty = 0;
+		experimentStart = fedamb.federateTime;
+		queueStats.start(experimentStart);
 		FillQueues();
 		simulationFinished = false;
+		waitReportRequested = false;
 		finalTripCount = 0;
+
+		arrivedPeople = 0;
+		arrivedCars = 0;
+		if (arrivals != null) {
+			nextArrivals = experimentStart + arrivals.batch();
+			log("Napływ: " + arrivals);
+		}
 	}
 
-	private void FillQueues() {
-		for (int i = 0; i < this.liczbaStacji; i++) {
-			for (int j = 0; j < Config.MAKS_LACZNA_POJEMNOSC_STACJI; j++) {
-				if (random.nextDouble() < Config.CAR_PROBABILITY) {
-						carQueues.get(i).add(new Object());
-				} else {
-						peopleQueues.get(i).add(new Object());
+	/**
+	 * Adds the batches of arrivals that are due by the current time, for the local stations.
+	 * The stations draw them from their own random streams, right after the initial filling,
+	 * so the queues match those of the standalone engine (Model.FerrySimulation).
+	 */
+	private void generateArrivals() {
+		double end = experimentStart + arrivals.duration();
+		while (nextArrivals <= fedamb.federateTime && nextArrivals <= end) {
+			double to = nextArrivals - experimentStart;
+			for (int i = 0; i < liczbaLokalnych; i++) {
+				int people = queues.people(i);
+				int cars = queues.cars(i);
+				arrivals.arrive(queues, i, pierwszaStacja + i, to - arrivals.batch(), to, stationRandom[i]);
+				int newPeople = queues.people(i) - people;
+				int newCars = queues.cars(i) - cars;
+				if (newPeople > 0 || newCars > 0) {
+					arrivedPeople += newPeople;
+					arrivedCars += newCars;
+					arrivalsCounter.add(newPeople + newCars);
+					queueStats.arrived(i, newPeople, newCars, nextArrivals);
+					markDirty(i);
 				}
 			}
-			log("Station " + i + ": Filled with " + peopleQueues.get(i).size() + " people and " + carQueues.get(i).size() + " cars.");
+			nextArrivals += arrivals.batch();
 		}
 	}
 
-	private boolean areAllQueuesEmpty() {
-		for (Queue<Object> queue : peopleQueues) {
-			if (!queue.isEmpty()) return false;
+	/** True while batches of arrivals are still to come in this experiment */
+	private boolean arrivalsPending() {
+		return arrivals != null && simulationStarted && nextArrivals <= experimentStart + arrivals.duration();
+	}
+
+	/**
+	 * Without arrivals an experiment is over once every queue is empty, with arrivals once
+	 * its duration has passed.
+	 */
+	private boolean isExperimentOver() {
+		if (arrivals == null) {
+			return areAllQueuesEmpty();
+		}
+		return fedamb.federateTime >= experimentStart + arrivals.duration();
+	}
+
+	private long waitingUnits() {
+		long waiting = 0;
+		for (int i = 0; i < liczbaLokalnych; i++) {
+			waiting += queues.people(i) + queues.cars(i);
 		}
-		for (Queue<Object> queue : carQueues) {
-			if (!queue.isEmpty()) return false;
+		return waiting;
+	}
+
+	private void FillQueues() {
+		for (int i = 0; i < liczbaLokalnych; i++) {
+			queues.fill(i, parameters.maksPojemnoscStacji, parameters.prawdopodobienstwoSamochodu, stationRandom[i]);
+			queueStats.arrived(i, queues.people(i), queues.cars(i), experimentStart);
+			int station = i;
+			LOG.debug(() -> "Station " + (pierwszaStacja + station) + ": Filled with " + queues.people(station) + " people and " + queues.cars(station) + " cars.");
 		}
-		return true;
+	}
+
+	/**
+	 * True once every station of the network is empty. Only partition 0 can tell, as it
+	 * is the one following the stations of the other partitions.
+	 */
+	private boolean areAllQueuesEmpty() {
+		return queues.isEmpty() && remoteUnreported == 0 && remoteNonEmpty == 0;
 	}
 
 	private void sendEndSimulationInteraction() throws RTIexception {
 		log("Wysyłanie interakcji 'WszystkieJednostkiPrzetransportowane' z liczbą kursów: " + this.finalTripCount);
 		ParameterHandleValueMap parameters = rtiamb.getParameterHandleValueMapFactory().create(1);
-		parameters.put(rtiamb.getParameterHandle(this.endSimulationHandle, "LiczbaWykonanychKursow"),
-				encoderFactory.createHLAinteger32BE(this.finalTripCount).toByteArray());
-		HLAfloat64Time time = timeFactory.makeTime(fedamb.federateTime + fedamb.federateLookahead);
-		rtiamb.sendInteraction(this.endSimulationHandle, parameters, generateTag(), time);
+		parameters.put(this.liczbaWykonanychKursowParam, HlaCodec.encodeInt32(this.finalTripCount));
+		HLAfloat64Time time = sendTime();
+		sendInteraction(this.endSimulationHandle, parameters, time);
+	}
+
+	/**
+	 * Sends the waiting times and queue lengths of the local stations to the Manager, at
+	 * the end of the experiment. Partition 0 sends them right before the end signal, the
+	 * other partitions as soon as they have received it.
+	 */
+	private void sendWaitReport() throws RTIexception {
+		QueueStatistics.Report report = queueStats.report(pierwszaStacja, fedamb.federateTime);
+		log("Statystyki oczekiwania: " + report);
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		try (DataOutputStream out = new DataOutputStream(bytes)) {
+			report.writeTo(out);
+		} catch (IOException e) {
+			throw new RTIinternalError("Could not encode the waiting statistics: " + e.getMessage());
+		}
+		ParameterHandleValueMap parameters = rtiamb.getParameterHandleValueMapFactory().create(2);
+		parameters.put(this.waitReportPartycjaParam, HlaCodec.encodeInt32(partycja));
+		parameters.put(this.waitReportStatystykiParam, bytes.toByteArray());
+		sendInteraction(this.waitReportHandle, parameters, sendTime());
+	}
+
+	/** End signal of partition 0, seen by the other partitions */
+	protected void handleExperimentEnd() {
+		if (partycja == 0 || !simulationStarted || simulationFinished) {
+			return;
+		}
+		simulationFinished = true;
+		waitReportRequested = true;
 	}
 
-	protected void updateTripCount(int trips) {
-		this.finalTripCount = trips;
-		log("Received trip count update from Ferry: " + trips);
+	protected void updateTripCount(ObjectInstanceHandle prom, int trips) {
+		Integer previous = tripCounts.put(prom, trips);
+		this.finalTripCount += trips - (previous == null ? 0 : previous);
+		LOG.debug(() -> "Received trip count update from Ferry " + prom + ": " + trips + ", all ferries: " + finalTripCount);
 	}
 
 	private void initializeStations() throws RTIexception {
-		for (int i = 0; i < this.liczbaStacji; i++) {
-			peopleQueues.add(new LinkedList<>());
-			carQueues.add(new LinkedList<>());
-			ObjectInstanceHandle handle = rtiamb.registerObjectInstance(stationHandle, "Stacja" + i);
-			stationInstanceHandles.add(handle);
-			log("Registered Stacja " + i + " with handle " + handle);
+		pierwszaStacja = this.liczbaStacji * partycja / liczbaPartycji;
+		liczbaLokalnych = this.liczbaStacji * (partycja + 1) / liczbaPartycji - pierwszaStacja;
+		log("Partition " + partycja + "/" + liczbaPartycji + ": stations " + pierwszaStacja + ".." + (pierwszaStacja + liczbaLokalnych - 1));
+
+		queues = new StationQueues(liczbaLokalnych);
+		queueStats = new QueueStatistics(liczbaLokalnych);
+		stationInstanceHandles = new ObjectInstanceHandle[liczbaLokalnych];
+		publishedPeople = new int[liczbaLokalnych];
+		publishedCars = new int[liczbaLokalnych];
+		fullUpdateRequested = new boolean[liczbaLokalnych];
+		dirtyStations = new int[liczbaLokalnych];
+		dirty = new boolean[liczbaLokalnych];
+		Arrays.fill(publishedPeople, -1);
+		Arrays.fill(publishedCars, -1);
+		for (int i = 0; i < liczbaLokalnych; i++) {
+			String name = "Stacja" + (pierwszaStacja + i) + (generacja > 0 ? "_" + generacja : "");
+			ObjectInstanceHandle handle = rtiamb.registerObjectInstance(stationHandle, name);
+			stationInstanceHandles[i] = handle;
+			stationIndexByHandle.put(handle, i);
+		}
+		log("Registered " + liczbaLokalnych + " Stacja instances");
+
+		remoteLoad = new int[this.liczbaStacji];
+		remotePeople = new int[this.liczbaStacji];
+		remoteCars = new int[this.liczbaStacji];
+		if (partycja == 0 && liczbaPartycji > 1) {
+			// the other partitions register their stations on the same start signal
+			rtiamb.subscribeObjectClassAttributes(stationHandle, stationAttributes);
+		}
+	}
+
+	/**
+	 * Deletes the instances of the previous station layout before a new one is registered.
+	 * The deletes carry the same time stamp as the updates that follow, so the Prom and the
+	 * other partitions drop the old stations before they see the new ones.
+	 */
+	private void removeStations() throws RTIexception {
+		HLAfloat64Time time = sendTime();
+		for (ObjectInstanceHandle handle : stationInstanceHandles) {
+			rtiamb.deleteObjectInstance(handle, generateTag(), time);
+		}
+		log("Deleted " + stationInstanceHandles.length + " Stacja instances of " + liczbaStacji + " stations");
+		stationIndexByHandle.clear();
+		remoteStationIds.clear();
+		dirtyCount = 0;
+		generacja++;
+	}
+
+	/**
+	 * Federation save: writes the state of our stations, the boardings in progress and the
+	 * stations and ferries we follow to the snapshot (see Common.Snapshots). The random
+	 * streams are not part of it, they are derived again at the next start.
+	 */
+	protected void saveState(String label) {
+		try {
+			rtiamb.federateSaveBegun();
+			Snapshots.write(label, federateName, "Station", this::writeState);
+			rtiamb.federateSaveComplete();
+			log("Saved state as " + label);
+		} catch (IOException | RTIexception e) {
+			log("Could not save state as " + label + ": " + e.getMessage());
+			try {
+				rtiamb.federateSaveNotComplete();
+			} catch (RTIexception notComplete) {
+				notComplete.printStackTrace();
+			}
+		}
+	}
+
+	/** Federation restore: reads back the snapshot this federate saved under the given name */
+	protected void loadState(String label, String savedName) {
+		try {
+			Snapshots.read(label, savedName, "Station", this::readState);
+			rtiamb.federateRestoreComplete();
+			log("Restored state of " + savedName + " from " + label);
+		} catch (IOException | RTIexception e) {
+			log("Could not restore state from " + label + ": " + e.getMessage());
+			try {
+				rtiamb.federateRestoreNotComplete();
+			} catch (RTIexception notComplete) {
+				notComplete.printStackTrace();
+			}
+		}
+	}
+
+	private void writeState(DataOutputStream out) throws IOException {
+		out.writeInt(partycja);
+		out.writeInt(liczbaPartycji);
+		out.writeDouble(fedamb.federateTime);
+		out.writeBoolean(simulationStarted);
+		out.writeBoolean(simulationFinished);
+		out.writeInt(liczbaStacji);
+		out.writeInt(parameters.pojemnoscOsobPromu);
+		out.writeInt(parameters.maksPojemnoscStacji);
+		out.writeDouble(parameters.prawdopodobienstwoSamochodu);
+		out.writeInt(generacja);
+		out.writeInt(finalTripCount);
+		out.writeDouble(experimentStart);
+		out.writeDouble(nextArrivals);
+		out.writeLong(arrivedPeople);
+		out.writeLong(arrivedCars);
+
+		out.writeInt(liczbaLokalnych);
+		for (int i = 0; i < liczbaLokalnych; i++) {
+			Snapshots.writeHandle(out, stationInstanceHandles[i]);
+			out.writeInt(queues.people(i));
+			out.writeInt(queues.cars(i));
+			out.writeInt(publishedPeople[i]);
+			out.writeInt(publishedCars[i]);
+		}
+		queueStats.writeTo(out);
+
+		out.writeInt(remoteStationIds.size());
+		for (Map.Entry<ObjectInstanceHandle, Integer> entry : remoteStationIds.entrySet()) {
+			Snapshots.writeHandle(out, entry.getKey());
+			out.writeInt(entry.getValue());
+		}
+		out.writeInt(remoteLoad.length);
+		for (int i = 0; i < remoteLoad.length; i++) {
+			out.writeInt(remoteLoad[i]);
+			out.writeInt(remotePeople[i]);
+			out.writeInt(remoteCars[i]);
+		}
+		out.writeInt(remoteUnreported);
+		out.writeInt(remoteNonEmpty);
+
+		out.writeInt(pendingBoardings.size());
+		for (Map.Entry<String, List<QueuedBoarding>> entry : pendingBoardings.entrySet()) {
+			out.writeUTF(entry.getKey());
+			out.writeInt(entry.getValue().size());
+			for (QueuedBoarding b : entry.getValue()) {
+				out.writeInt(b.station);
+				out.writeInt(b.people);
+				out.writeInt(b.cars);
+			}
+		}
+		out.writeInt(tripCounts.size());
+		for (Map.Entry<ObjectInstanceHandle, Integer> entry : tripCounts.entrySet()) {
+			Snapshots.writeHandle(out, entry.getKey());
+			out.writeInt(entry.getValue());
+		}
+		fedamb.writeState(out);
+	}
+
+	private void readState(DataInputStream in) throws IOException {
+		ObjectInstanceHandleFactory handles;
+		try {
+			handles = rtiamb.getObjectInstanceHandleFactory();
+		} catch (RTIexception e) {
+			throw new IOException(e);
+		}
+		int savedPartycja = in.readInt();
+		int savedLiczbaPartycji = in.readInt();
+		if (savedPartycja != partycja || savedLiczbaPartycji != liczbaPartycji) {
+			throw new IOException("snapshot of partition " + savedPartycja + "/" + savedLiczbaPartycji +
+					", this is " + partycja + "/" + liczbaPartycji);
+		}
+		fedamb.federateTime = in.readDouble();
+		simulationStarted = in.readBoolean();
+		simulationFinished = in.readBoolean();
+		liczbaStacji = in.readInt();
+		parameters = new ExperimentParameters(Math.max(liczbaStacji, 1), in.readInt(), in.readInt(), in.readDouble());
+		generacja = in.readInt();
+		finalTripCount = in.readInt();
+		experimentStart = in.readDouble();
+		nextArrivals = in.readDouble();
+		arrivedPeople = in.readLong();
+		arrivedCars = in.readLong();
+		arrivals = simulationStarted ? ArrivalProcess.fromConfig(Math.max(liczbaStacji, 1)) : null;
+
+		liczbaLokalnych = in.readInt();
+		pierwszaStacja = liczbaStacji * partycja / liczbaPartycji;
+		queues = new StationQueues(liczbaLokalnych);
+		stationInstanceHandles = new ObjectInstanceHandle[liczbaLokalnych];
+		stationIndexByHandle.clear();
+		publishedPeople = new int[liczbaLokalnych];
+		publishedCars = new int[liczbaLokalnych];
+		fullUpdateRequested = new boolean[liczbaLokalnych];
+		dirtyStations = new int[liczbaLokalnych];
+		dirty = new boolean[liczbaLokalnych];
+		dirtyCount = 0;
+		for (int i = 0; i < liczbaLokalnych; i++) {
+			stationInstanceHandles[i] = Snapshots.readHandle(in, handles);
+			stationIndexByHandle.put(stationInstanceHandles[i], i);
+			queues.set(i, in.readInt(), in.readInt());
+			publishedPeople[i] = in.readInt();
+			publishedCars[i] = in.readInt();
+		}
+		queueStats = QueueStatistics.readFrom(in);
+
+		remoteStationIds.clear();
+		int remote = in.readInt();
+		for (int i = 0; i < remote; i++) {
+			ObjectInstanceHandle handle = Snapshots.readHandle(in, handles);
+			remoteStationIds.put(handle, in.readInt());
+		}
+		int stations = in.readInt();
+		remoteLoad = new int[stations];
+		remotePeople = new int[stations];
+		remoteCars = new int[stations];
+		for (int i = 0; i < stations; i++) {
+			remoteLoad[i] = in.readInt();
+			remotePeople[i] = in.readInt();
+			remoteCars[i] = in.readInt();
+		}
+		remoteUnreported = in.readInt();
+		remoteNonEmpty = in.readInt();
+
+		pendingBoardings.clear();
+		int proms = in.readInt();
+		for (int p = 0; p < proms; p++) {
+			List<QueuedBoarding> boardings = new ArrayList<>();
+			pendingBoardings.put(in.readUTF(), boardings);
+			int count = in.readInt();
+			for (int i = 0; i < count; i++) {
+				boardings.add(new QueuedBoarding(in.readInt(), in.readInt(), in.readInt()));
+			}
+		}
+		tripCounts.clear();
+		int counted = in.readInt();
+		for (int i = 0; i < counted; i++) {
+			ObjectInstanceHandle handle = Snapshots.readHandle(in, handles);
+			tripCounts.put(handle, in.readInt());
+		}
+		fedamb.readState(in, handles);
+	}
+
+	/** A station of another partition was deleted (partition 0 only) */
+	protected void forgetRemoteStation(ObjectInstanceHandle theObject) {
+		remoteStationIds.remove(theObject);
+	}
+
+	private void markDirty(int local) {
+		if (!dirty[local]) {
+			dirty[local] = true;
+			dirtyStations[dirtyCount++] = local;
 		}
 	}
 
+	/** Local index of a station id, or -1 when the station belongs to another partition */
+	private int localIndex(int stationId) {
+		int local = stationId - pierwszaStacja;
+		return local >= 0 && local < liczbaLokalnych ? local : -1;
+	}
+
 
-	private void updateAllStationAttributes() throws RTIexception {
-		HLAfloat64Time time = timeFactory.makeTime(fedamb.federateTime + fedamb.federateLookahead);
+	/**
+	 * Sends an update only for stations whose queue lengths changed since the last one,
+	 * and only the attributes that changed. The static IdentyfikatorStacji goes out with
+	 * the first update after registration, or when another federate asks for it through
+	 * provideAttributeValueUpdate. Only the stations touched since the last pass are
+	 * looked at, so the cost follows the number of events rather than of stations.
+	 */
+	private void updateChangedStationAttributes() throws RTIexception {
+		HLAfloat64Time time = null;
+
+		for (int d = 0; d < dirtyCount; d++) {
+			int i = dirtyStations[d];
+			dirty[i] = false;
+			int people = queues.people(i);
+			int cars = queues.cars(i);
+			boolean fullUpdate = fullUpdateRequested[i] || publishedPeople[i] < 0;
+			boolean peopleChanged = fullUpdate || people != publishedPeople[i];
+			boolean carsChanged = fullUpdate || cars != publishedCars[i];
+			if (!peopleChanged && !carsChanged) {
+				continue;
+			}
 
-		for (int i = 0; i < this.liczbaStacji; i++) {
 			AttributeHandleValueMap attributes = rtiamb.getAttributeHandleValueMapFactory().create(3);
+			if (fullUpdate) {
+				attributes.put(stationIdHandle, HlaCodec.encodeInt32(pierwszaStacja + i));
+			}
+			if (peopleChanged) {
+				attributes.put(peopleInQueueHandle, HlaCodec.encodeInt32(people));
+			}
+			if (carsChanged) {
+				attributes.put(carsInQueueHandle, HlaCodec.encodeInt32(cars));
+			}
+
+			if (time == null) {
+				time = sendTime();
+			}
+			updateAttributeValues(stationInstanceHandles[i], attributes, time);
+
+			publishedPeople[i] = people;
+			publishedCars[i] = cars;
+			fullUpdateRequested[i] = false;
+		}
+		dirtyCount = 0;
+	}
+
+	/**
+	 * Another federate asked for the current values of one of our stations; the next
+	 * update pass will republish all of its attributes.
+	 */
+	protected void requestFullStationUpdate(ObjectInstanceHandle theObject) {
+		Integer index = stationIndexByHandle.get(theObject);
+		if (index != null) {
+			fullUpdateRequested[index] = true;
+			markDirty(index);
+		}
+	}
 
-			HLAinteger32BE stationIdValue = encoderFactory.createHLAinteger32BE(i);
-			HLAinteger32BE peopleCountValue = encoderFactory.createHLAinteger32BE(peopleQueues.get(i).size());
-			HLAinteger32BE carCountValue = encoderFactory.createHLAinteger32BE(carQueues.get(i).size());
+	/**
+	 * A station of another partition was discovered (partition 0 only); its id is asked
+	 * for explicitly, like the Prom does, as it only travels with full updates.
+	 */
+	protected void discoverRemoteStation(ObjectInstanceHandle theObject) {
+		try {
+			rtiamb.requestAttributeValueUpdate(theObject, stationAttributes, null);
+		} catch (RTIexception e) {
+			e.printStackTrace();
+		}
+	}
 
-			attributes.put(stationIdHandle, stationIdValue.toByteArray());
-			attributes.put(peopleInQueueHandle, peopleCountValue.toByteArray());
-			attributes.put(carsInQueueHandle, carCountValue.toByteArray());
+	/**
+	 * New queue lengths of a station of another partition; -1 marks an attribute that
+	 * was not part of the update.
+	 */
+	protected void reflectRemoteStation(ObjectInstanceHandle theObject, int stationId, int people, int cars) {
+		if (stationId >= 0) {
+			remoteStationIds.put(theObject, stationId);
+		} else {
+			Integer known = remoteStationIds.get(theObject);
+			if (known == null) {
+				return;
+			}
+			stationId = known;
+		}
+		if (stationId >= remoteLoad.length) {
+			return;
+		}
+		if (people >= 0) {
+			remotePeople[stationId] = people;
+		}
+		if (cars >= 0) {
+			remoteCars[stationId] = cars;
+		}
 
-			rtiamb.updateAttributeValues(stationInstanceHandles.get(i), attributes, generateTag(), time);
+		int previous = remoteLoad[stationId];
+		int load = remotePeople[stationId] + remoteCars[stationId];
+		if (previous < 0) {
+			remoteUnreported--;
+		} else if (previous > 0) {
+			remoteNonEmpty--;
+		}
+		if (load > 0) {
+			remoteNonEmpty++;
 		}
+		remoteLoad[stationId] = load;
 	}
 
-	protected void handleBoarding(int stationId, int peopleCount, int carCount) {
-		log("Handling boarding at station " + stationId + ": " + peopleCount + " people, " + carCount + " cars.");
+	protected void handleBoarding(String promId, int stationId, int peopleCount, int carCount) {
+		if (localIndex(stationId) < 0) {
+			return; // station of another partition
+		}
+		LOG.debug(() -> "Handling boarding of " + promId + " at station " + stationId + ": " + peopleCount + " people, " + carCount + " cars.");
 
-		pendingBoardings.computeIfAbsent(stationId, k -> new ArrayList<>())
-				.add(new QueuedBoarding(peopleCount, carCount));
+		pendingBoardings.computeIfAbsent(promId, k -> new ArrayList<>())
+				.add(new QueuedBoarding(stationId, peopleCount, carCount));
 	}
 
-	public void handleBoardingCompleted(int stationId) {
-		log("Boarding completed at station " + stationId);
+	public void handleBoardingCompleted(String promId, int stationId, double time) {
+		LOG.debug(() -> "Boarding of " + promId + " completed at station " + stationId);
 
-		List<QueuedBoarding> queue = pendingBoardings.get(stationId);
+		List<QueuedBoarding> queue = pendingBoardings.get(promId);
 		if (queue != null && !queue.isEmpty()) {
-			for (QueuedBoarding b : queue) {
-				log("   => Unloading from queue: people=" + b.people + ", cars=" + b.cars);
-
-				Queue<Object> peopleQueue = peopleQueues.get(stationId);
-				Queue<Object> carQueue = carQueues.get(stationId);
-
-				for (int i = 0; i < b.people; i++) {
-					if (!peopleQueue.isEmpty()) {
-						peopleQueue.poll();
-					} else {
-						log("   !! Nie ma wystarczająco ludzi w kolejce na stacji " + stationId);
-					}
+			for (Iterator<QueuedBoarding> it = queue.iterator(); it.hasNext(); ) {
+				QueuedBoarding b = it.next();
+				if (b.station != stationId) {
+					continue;
+				}
+				it.remove();
+				int local = localIndex(stationId);
+				markDirty(local);
+				LOG.debug(() -> "   => Unloading from queue: people=" + b.people + ", cars=" + b.cars);
+
+				int zabraniLudzie = queues.removePeople(local, b.people);
+				int zabraneSamochody = queues.removeCars(local, b.cars);
+				queueStats.boarded(local, zabraniLudzie, zabraneSamochody, time);
+
+				int brakujacyLudzie = b.people - zabraniLudzie;
+				if (brakujacyLudzie > 0) {
+					LOG.warn(() -> "   !! Nie ma wystarczająco ludzi w kolejce na stacji " + stationId + " (brakuje " + brakujacyLudzie + ")");
 				}
 
-				for (int i = 0; i < b.cars; i++) {
-					if (!carQueue.isEmpty()) {
-						carQueue.poll();
-					} else {
-						log("   !! Nie ma wystarczająco samochodów w kolejce na stacji " + stationId);
-					}
+				int brakujaceSamochody = b.cars - zabraneSamochody;
+				if (brakujaceSamochody > 0) {
+					LOG.warn(() -> "   !! Nie ma wystarczająco samochodów w kolejce na stacji " + stationId + " (brakuje " + brakujaceSamochody + ")");
 				}
 			}
-			queue.clear();
 		}
 	}
 
@@ -397,9 +976,9 @@ public class StacjaFederate
 		this.rtiamb.enableTimeRegulation( lookahead );
 
 		// tick until we get the callback
-		while( fedamb.isRegulating == false )
+		while( fedamb.isRegulating == false && !stopRequested )
 		{
-			rtiamb.evokeMultipleCallbacks( 0.1, 0.2 );
+			tick();
 		}
 
 		/////////////////////////////
@@ -408,9 +987,9 @@ public class StacjaFederate
 		this.rtiamb.enableTimeConstrained();
 
 		// tick until we get the callback
-		while( fedamb.isConstrained == false )
+		while( fedamb.isConstrained == false && !stopRequested )
 		{
-			rtiamb.evokeMultipleCallbacks( 0.1, 0.2 );
+			tick();
 		}
 	}
 
@@ -424,30 +1003,77 @@ public class StacjaFederate
 		stationIdHandle = rtiamb.getAttributeHandle(stationHandle, "IdentyfikatorStacji");
 		peopleInQueueHandle = rtiamb.getAttributeHandle(stationHandle, "LiczbaOczekujacychOsob");
 		carsInQueueHandle = rtiamb.getAttributeHandle(stationHandle, "LiczbaOczekujacychSamochodow");
-		AttributeHandleSet attributes = rtiamb.getAttributeHandleSetFactory().create();
-		attributes.add(stationIdHandle);
-		attributes.add(peopleInQueueHandle);
-		attributes.add(carsInQueueHandle);
-		rtiamb.publishObjectClassAttributes(stationHandle, attributes);
+		stationAttributes = rtiamb.getAttributeHandleSetFactory().create();
+		stationAttributes.add(stationIdHandle);
+		stationAttributes.add(peopleInQueueHandle);
+		stationAttributes.add(carsInQueueHandle);
+		rtiamb.publishObjectClassAttributes(stationHandle, stationAttributes);
 
 		zaladunekHandle = rtiamb.getInteractionClassHandle("HLAinteractionRoot.OperacjePromu.ZaladunekRozpoczety");
+		zaladunekPromIdParam = rtiamb.getParameterHandle(zaladunekHandle, "IdentyfikatorPromu");
+		zaladunekStacjaIdParam = rtiamb.getParameterHandle(zaladunekHandle, "IdentyfikatorStacji");
+		zaladunekTypParam = rtiamb.getParameterHandle(zaladunekHandle, "TypZaladunku");
+		zaladunekLiczbaParam = rtiamb.getParameterHandle(zaladunekHandle, "LiczbaZabieranychJednostek");
 		rtiamb.subscribeInteractionClass(zaladunekHandle);
 		startSimulationHandle = rtiamb.getInteractionClassHandle("HLAinteractionRoot.ZarzadzanieSymulacja.RozpocznijSymulacje");
+		liczbaStacjiParam = rtiamb.getParameterHandle(startSimulationHandle, "LiczbaStacji");
+		pojemnoscOsobParam = rtiamb.getParameterHandle(startSimulationHandle, "PojemnoscOsobPromu");
+		maksPojemnoscStacjiParam = rtiamb.getParameterHandle(startSimulationHandle, "MaksPojemnoscStacji");
+		prawdopodobienstwoSamochoduParam = rtiamb.getParameterHandle(startSimulationHandle, "PrawdopodobienstwoSamochodu");
+		ziarnoParam = rtiamb.getParameterHandle(startSimulationHandle, "Ziarno");
+		numerEksperymentuParam = rtiamb.getParameterHandle(startSimulationHandle, "NumerEksperymentu");
 		rtiamb.subscribeInteractionClass(startSimulationHandle);
 		zaladunekZakonczonyHandle = rtiamb.getInteractionClassHandle("HLAinteractionRoot.OperacjePromu.ZaladunekZakonczony");
+		zaladunekZakonczonyPromIdParam = rtiamb.getParameterHandle(zaladunekZakonczonyHandle, "IdentyfikatorPromu");
+		zaladunekZakonczonyStacjaIdParam = rtiamb.getParameterHandle(zaladunekZakonczonyHandle, "IdentyfikatorStacji");
 		rtiamb.subscribeInteractionClass(zaladunekZakonczonyHandle);
 		odplyniecieHandle = rtiamb.getInteractionClassHandle("HLAinteractionRoot.OperacjePromu.OdplynieciePromuZeStacji");
 		rtiamb.subscribeInteractionClass(odplyniecieHandle);
 
 		this.endSimulationHandle = rtiamb.getInteractionClassHandle("HLAinteractionRoot.ZarzadzanieSymulacja.WszystkieJednostkiPrzetransportowane");
+		this.liczbaWykonanychKursowParam = rtiamb.getParameterHandle(this.endSimulationHandle, "LiczbaWykonanychKursow");
 		rtiamb.publishInteractionClass(this.endSimulationHandle);
+		if (partycja > 0) {
+			// only partition 0 tells when an experiment is over; the others report their statistics then
+			rtiamb.subscribeInteractionClass(this.endSimulationHandle);
+		}
+
+		this.waitReportHandle = rtiamb.getInteractionClassHandle("HLAinteractionRoot.ZarzadzanieSymulacja.StatystykiOczekiwania");
+		this.waitReportPartycjaParam = rtiamb.getParameterHandle(this.waitReportHandle, "Partycja");
+		this.waitReportStatystykiParam = rtiamb.getParameterHandle(this.waitReportHandle, "Statystyki");
+		rtiamb.publishInteractionClass(this.waitReportHandle);
 
-		ObjectClassHandle promHandle = rtiamb.getObjectClassHandle("HLAobjectRoot.Prom");
+		this.promHandle = rtiamb.getObjectClassHandle("HLAobjectRoot.Prom");
 		this.promTripCountHandle = rtiamb.getAttributeHandle(promHandle, "LiczbaKursowPromu");
 		AttributeHandleSet promAttributes = rtiamb.getAttributeHandleSetFactory().create();
 		promAttributes.add(this.promTripCountHandle);
 		rtiamb.subscribeObjectClassAttributes(promHandle, promAttributes);
 	}
+	/**
+	 * Gives the RTI a chance to deliver callbacks. In HLA_EVOKED mode this evokes them
+	 * on this thread; in HLA_IMMEDIATE mode the RTI has already called the ambassador on
+	 * its own thread and we apply whatever it queued, waking up as soon as it arrives.
+	 * While a federation save or restore is in progress it does not return, so the
+	 * caller makes no other RTI calls until the federation is running again.
+	 */
+	private void tick() throws RTIexception
+	{
+		do
+		{
+			if( immediateCallbacks )
+			{
+				callbacksPerTick.record( callbacks.awaitAndDrain(200) );
+			}
+			else
+			{
+				long before = callbacksDelivered.get();
+				rtiamb.evokeMultipleCallbacks( 0.1, 0.2 );
+				callbacksPerTick.record( callbacksDelivered.get() - before );
+			}
+		}
+		while( (fedamb.isSaving || fedamb.isRestoring) && !stopRequested );
+	}
+
 	/**
 	 * This method will request a time advance to the current time, plus the given
 	 * timestep. It will then wait until a notification of the time advance grant
@@ -455,17 +1081,23 @@ public class StacjaFederate
 	 */
 	private void advanceTime( double timestep ) throws RTIexception
 	{
+		// a grant we stopped waiting for may still be pending, so no new request
+		if( stopRequested )
+			return;
+
 		// request the advance
+		long requested = System.nanoTime();
 		fedamb.isAdvancing = true;
 		HLAfloat64Time time = timeFactory.makeTime( fedamb.federateTime + timestep );
 		rtiamb.timeAdvanceRequest( time );
 
 		// wait for the time advance to be granted. ticking will tell the
 		// LRC to start delivering callbacks to the federate
-		while( fedamb.isAdvancing )
+		while( fedamb.isAdvancing && !stopRequested )
 		{
-			rtiamb.evokeMultipleCallbacks( 0.1, 0.2 );
+			tick();
 		}
+		timeAdvanceGrant.recordSince( requested );
 	}
 
 	private short getTimeAsShort()
@@ -473,9 +1105,94 @@ public class StacjaFederate
 		return (short)fedamb.federateTime;
 	}
 
+	/**
+	 * Event-driven counterpart of advanceTime. Asks the RTI for the time of the next
+	 * message addressed to us, but no later than the given horizon, and waits for the
+	 * grant. The federate ends up at the time of that message (or the horizon), so an
+	 * idle federate costs one round-trip per received event rather than per step.
+	 */
+	private void advanceToNextEvent( double horizon ) throws RTIexception
+	{
+		// a grant we stopped waiting for may still be pending, so no new request
+		if( stopRequested )
+			return;
+
+		long requested = System.nanoTime();
+		fedamb.isAdvancing = true;
+		HLAfloat64Time time = timeFactory.makeTime( fedamb.federateTime + horizon );
+		rtiamb.nextMessageRequest( time );
+
+		while( fedamb.isAdvancing && !stopRequested )
+		{
+			tick();
+		}
+		nextMessageGrant.recordSince( requested );
+	}
+
+	/**
+	 * Moves time forward while we have nothing of our own scheduled and are only
+	 * waiting for messages: a fixed step, or straight to the next message in
+	 * next-event mode (see Config.NEXT_EVENT_ADVANCE).
+	 */
+	private void advanceIdle() throws RTIexception
+	{
+		double step = Config.NEXT_EVENT_ADVANCE ? Config.NEXT_EVENT_HORIZON : 1.0;
+		// never past the next batch of arrivals, they have to go out at their time
+		if( arrivalsPending() )
+			step = Math.min( step, nextArrivals - fedamb.federateTime );
+
+		if( Config.NEXT_EVENT_ADVANCE )
+			advanceToNextEvent( step );
+		else
+			advanceTime( step );
+	}
+
+	/**
+	 * The earliest time stamp we may put on an outgoing message: our current time
+	 * plus the lookahead of this federate type (see Config.LOOKAHEAD_*).
+	 */
+	private HLAfloat64Time sendTime()
+	{
+		return timeFactory.makeTime( fedamb.federateTime + fedamb.federateLookahead );
+	}
+
+	private void sendInteraction( InteractionClassHandle interaction, ParameterHandleValueMap parameters,
+	                              HLAfloat64Time time ) throws RTIexception
+	{
+		long start = System.nanoTime();
+		rtiamb.sendInteraction( interaction, parameters, generateTag(), time );
+		interactionSend.recordSince( start );
+	}
+
+	private void updateAttributeValues( ObjectInstanceHandle object, AttributeHandleValueMap attributes,
+	                                    HLAfloat64Time time ) throws RTIexception
+	{
+		long start = System.nanoTime();
+		rtiamb.updateAttributeValues( object, attributes, generateTag(), time );
+		attributeUpdate.recordSince( start );
+	}
+
+	/** Writes the metrics of this federate to Config.METRICS_DIR, if one is configured */
+	private void dumpMetrics( String federateName )
+	{
+		if( Config.METRICS_DIR == null )
+			return;
+
+		Path file = Paths.get( Config.METRICS_DIR, federateName + ".metrics.txt" );
+		try
+		{
+			metrics.dump( file );
+			log( "Metrics written to " + file );
+		}
+		catch( IOException e )
+		{
+			log( "Could not write metrics to " + file + ": " + e.getMessage() );
+		}
+	}
+
 	private byte[] generateTag()
 	{
-		return ("(timestamp) "+System.currentTimeMillis()).getBytes();
+		return tags.next();
 	}
 
 	//----------------------------------------------------------
@@ -483,17 +1200,25 @@ public class StacjaFederate
 	//----------------------------------------------------------
 	public static void main( String[] args )
 	{
-		// get a federate name, use "exampleFederate" as default
+		// get a federate name, use "Stacja" as default; with the stations split over
+		// several federates, also the partition number and the number of partitions
 		String federateName = "Stacja";
+		int partycja = 0;
+		int liczbaPartycji = Config.LICZBA_PARTYCJI_STACJI;
 		if( args.length != 0 )
 		{
 			federateName = args[0];
 		}
+		if( args.length > 2 )
+		{
+			partycja = Integer.parseInt( args[1] );
+			liczbaPartycji = Integer.parseInt( args[2] );
+		}
 
 		try
 		{
 			// run the example federate
-			new StacjaFederate().runFederate( federateName );
+			new StacjaFederate( Config.HEADLESS, partycja, liczbaPartycji ).runFederate( federateName );
 		}
 		catch( Exception rtie )
 		{
@@ -14,13 +14,23 @@
  */
 package Stacja;
 
+import Common.HlaCodec;
+import Common.Log;
+import Common.Metrics;
+import Common.Snapshots;
+import Config.Config;
+import Config.ExperimentParameters;
 import hla.rti1516e.*;
 import hla.rti1516e.encoding.DecoderException;
-import hla.rti1516e.encoding.HLAinteger32BE;
+import hla.rti1516e.encoding.HLAunicodeString;
 import hla.rti1516e.exceptions.FederateInternalError;
-import hla.rti1516e.exceptions.RTIexception;
 import hla.rti1516e.time.HLAfloat64Time;
-import org.portico.impl.hla1516e.types.encoding.HLA1516eInteger32BE;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Set;
 
 /**
  * This class handles all incoming callbacks from the RTI regarding a particular
@@ -32,27 +42,41 @@ public class StacjaFederateAmbassador extends NullFederateAmbassador
 	//----------------------------------------------------------
 	//                    STATIC VARIABLES
 	//----------------------------------------------------------
+	private static final Log LOG = Log.get( "FederateAmbassador" );
 
 	//----------------------------------------------------------
 	//                   INSTANCE VARIABLES
 	//----------------------------------------------------------
 	private StacjaFederate federate;
 
+	// callback counters, registered in the federate's metrics
+	private final Metrics.Counter grants;
+	private final Metrics.Counter discoveries;
+	private final Metrics.Counter reflects;
+	private final Metrics.Counter interactions;
+	private final Metrics.Counter removals;
+	private final Metrics.Counter updateRequests;
+
 	// these variables are accessible in the package
-	protected double federateTime        = 0.0;
-	protected double federateLookahead   = 1.0;
+	protected volatile double federateTime = 0.0;
+	protected double federateLookahead   = Config.LOOKAHEAD_STACJA;
 	
-	protected boolean isRegulating       = false;
-	protected boolean isConstrained      = false;
-	protected boolean isAdvancing        = false;
+	protected volatile boolean isRegulating       = false;
+	protected volatile boolean isConstrained      = false;
+	protected volatile boolean isAdvancing        = false;
 	
-	protected boolean isAnnounced        = false;
-	protected boolean isReadyToRun       = false;
+	protected volatile boolean isAnnounced        = false;
+	protected volatile boolean isReadyToRun       = false;
+
+	// federation save/restore in progress: tick() keeps delivering callbacks until it is over
+	protected volatile boolean isSaving           = false;
+	protected volatile boolean isRestoring        = false;
 
 
-	protected boolean isRunning       = true;
+	protected volatile boolean isRunning = true;
 
-	private ObjectInstanceHandle promObjectHandle;
+	private Set<ObjectInstanceHandle> promObjectHandles = new HashSet<>();
+	private HLAunicodeString promIdDecoder; // only used on the callback thread
 	//----------------------------------------------------------
 	//                      CONSTRUCTORS
 	//----------------------------------------------------------
@@ -60,6 +84,12 @@ public class StacjaFederateAmbassador extends NullFederateAmbassador
 	public StacjaFederateAmbassador(StacjaFederate federate )
 	{
 		this.federate = federate;
+		this.grants = federate.metrics.counter( "callback.timeAdvanceGrant" );
+		this.discoveries = federate.metrics.counter( "callback.discoverObjectInstance" );
+		this.reflects = federate.metrics.counter( "callback.reflectAttributeValues" );
+		this.interactions = federate.metrics.counter( "callback.receiveInteraction" );
+		this.removals = federate.metrics.counter( "callback.removeObjectInstance" );
+		this.updateRequests = federate.metrics.counter( "callback.provideAttributeValueUpdate" );
 	}
 
 	//----------------------------------------------------------
@@ -67,7 +97,44 @@ public class StacjaFederateAmbassador extends NullFederateAmbassador
 	//----------------------------------------------------------
 	private void log( String message )
 	{
-		System.out.println( "FederateAmbassador: " + message );
+		LOG.info( message );
+	}
+
+	/**
+	 * Applies a state change coming from a callback. With HLA_EVOKED we are already on
+	 * the simulation thread and run it directly; with HLA_IMMEDIATE it is queued for
+	 * the simulation thread to pick up in its next tick.
+	 */
+	private void dispatch( Runnable event )
+	{
+		if( federate.immediateCallbacks )
+			federate.callbacks.post( event );
+		else
+			event.run();
+	}
+
+	/** Counts a delivered callback, both per type and in the federate's total */
+	private void count( Metrics.Counter callback )
+	{
+		callback.increment();
+		federate.callbacksDelivered.increment();
+	}
+
+	/** Records the delivery latency of a message whose tag carries a send timestamp */
+	private void observe( byte[] tag )
+	{
+		long latency = federate.tags.observe( tag );
+		if( latency >= 0 )
+			federate.messageLatency.record( latency );
+	}
+
+	/** Decodes the IdentyfikatorPromu parameter, reusing one decoder on the callback thread */
+	private String decodePromId( byte[] bytes ) throws DecoderException
+	{
+		if( promIdDecoder == null )
+			promIdDecoder = federate.encoderFactory.createHLAunicodeString();
+		promIdDecoder.decode( bytes );
+		return promIdDecoder.getValue();
 	}
 	
 
@@ -92,7 +159,7 @@ public class StacjaFederateAmbassador extends NullFederateAmbassador
 	{
 		log( "Synchronization point announced: " + label );
 		if( label.equals(StacjaFederate.READY_TO_RUN) )
-			this.isAnnounced = true;
+			dispatch( () -> this.isAnnounced = true );
 	}
 
 	@Override
@@ -100,7 +167,7 @@ public class StacjaFederateAmbassador extends NullFederateAmbassador
 	{
 		log( "Federation Synchronized: " + label );
 		if( label.equals(StacjaFederate.READY_TO_RUN) )
-			this.isReadyToRun = true;
+			dispatch( () -> this.isReadyToRun = true );
 	}
 
 	/**
@@ -109,38 +176,51 @@ public class StacjaFederateAmbassador extends NullFederateAmbassador
 	@Override
 	public void timeRegulationEnabled( LogicalTime time )
 	{
-		this.federateTime = ((HLAfloat64Time)time).getValue();
-		this.isRegulating = true;
+		double granted = ((HLAfloat64Time)time).getValue();
+		dispatch( () -> {
+			this.federateTime = granted;
+			this.isRegulating = true;
+		} );
 	}
 
 	@Override
 	public void timeConstrainedEnabled( LogicalTime time )
 	{
-		this.federateTime = ((HLAfloat64Time)time).getValue();
-		this.isConstrained = true;
+		double granted = ((HLAfloat64Time)time).getValue();
+		dispatch( () -> {
+			this.federateTime = granted;
+			this.isConstrained = true;
+		} );
 	}
 
 	@Override
 	public void timeAdvanceGrant( LogicalTime time )
 	{
-		this.federateTime = ((HLAfloat64Time)time).getValue();
-		this.isAdvancing = false;
+		count( grants );
+		// queued like every other callback, so all messages delivered before the
+		// grant have been applied by the time the federate sees isAdvancing == false
+		double granted = ((HLAfloat64Time)time).getValue();
+		dispatch( () -> {
+			this.federateTime = granted;
+			this.isAdvancing = false;
+		} );
 	}
 
 	@Override
 	public void discoverObjectInstance(ObjectInstanceHandle theObject,
 									   ObjectClassHandle theObjectClass,
 									   String objectName) throws FederateInternalError {
+		count(discoveries);
 
-		log("Discovered Object: handle=" + theObject + ", classHandle=" +
+		LOG.debug(() -> "Discovered Object: handle=" + theObject + ", classHandle=" +
 				theObjectClass + ", name=" + objectName);
 
-		try {
-			if (theObjectClass.equals(federate.rtiamb.getObjectClassHandle("HLAobjectRoot.Prom"))) {
-				this.promObjectHandle = theObject;
-			}
-		} catch (RTIexception e) {
-			e.printStackTrace();
+		if (theObjectClass.equals(federate.promHandle)) {
+			dispatch(() -> this.promObjectHandles.add(theObject));
+		}
+		else if (theObjectClass.equals(federate.stationHandle)) {
+			// only partition 0 subscribes to the stations of the other partitions
+			dispatch(() -> federate.discoverRemoteStation(theObject));
 		}
 	}
 
@@ -153,16 +233,26 @@ public class StacjaFederateAmbassador extends NullFederateAmbassador
 									   LogicalTime time,
 									   OrderType receivedOrdering,
 									   SupplementalReflectInfo reflectInfo) throws FederateInternalError {
-		if (theObject.equals(this.promObjectHandle)) {
+		count(reflects);
+		observe(tag);
+		try {
 			if (theAttributes.containsKey(federate.promTripCountHandle)) {
-				try {
-					HLAinteger32BE tripsDecoder = new HLA1516eInteger32BE();
-					tripsDecoder.decode(theAttributes.get(federate.promTripCountHandle));
-					federate.updateTripCount(tripsDecoder.getValue());
-				} catch (DecoderException e) {
-					e.printStackTrace();
-				}
+				int trips = HlaCodec.decodeInt32(theAttributes.get(federate.promTripCountHandle));
+				dispatch(() -> {
+					if (this.promObjectHandles.contains(theObject)) {
+						federate.updateTripCount(theObject, trips);
+					}
+				});
+			}
+			else {
+				// -1 marks an attribute that was not part of this update
+				int stationId = HlaCodec.decodeInt32(theAttributes.get(federate.stationIdHandle), -1);
+				int people = HlaCodec.decodeInt32(theAttributes.get(federate.peopleInQueueHandle), -1);
+				int cars = HlaCodec.decodeInt32(theAttributes.get(federate.carsInQueueHandle), -1);
+				dispatch(() -> federate.reflectRemoteStation(theObject, stationId, people, cars));
 			}
+		} catch (DecoderException e) {
+			e.printStackTrace();
 		}
 	}
 
@@ -176,60 +266,176 @@ public class StacjaFederateAmbassador extends NullFederateAmbassador
 								   LogicalTime time,
 								   OrderType receivedOrdering,
 								   SupplementalReceiveInfo receiveInfo) throws FederateInternalError {
+		count(interactions);
+		observe(tag);
 
 		try {
 			if (interactionClass.equals(federate.startSimulationHandle)) {
 				log("Received 'RozpocznijSymulacje' interaction!");
 
-				HLAinteger32BE stacjeDecoder = new HLA1516eInteger32BE();
-				stacjeDecoder.decode(theParameters.get(federate.rtiamb.getParameterHandle(interactionClass, "LiczbaStacji")));
-				federate.requestStartSimulation(stacjeDecoder.getValue());
+				ExperimentParameters parameters = decodeParameters(theParameters);
+				long ziarno = HlaCodec.decodeInt64(theParameters.get(federate.ziarnoParam));
+				int numerEksperymentu = HlaCodec.decodeInt32(theParameters.get(federate.numerEksperymentuParam));
+				dispatch(() -> federate.requestStartSimulation(parameters, ziarno, numerEksperymentu));
 			}
 			else if (interactionClass.equals(federate.zaladunekZakonczonyHandle)) {
-				log("Received 'ZaladunekZakonczony' interaction!");
-
-				HLAinteger32BE stationIdDecoder = new HLA1516eInteger32BE();
-				stationIdDecoder.decode(theParameters.get(federate.rtiamb.getParameterHandle(interactionClass, "IdentyfikatorStacji")));
+				LOG.debug(() -> "Received 'ZaladunekZakonczony' interaction!");
 
-				int stationId = stationIdDecoder.getValue();
-				federate.handleBoardingCompleted(stationId);
+				String promId = decodePromId(theParameters.get(federate.zaladunekZakonczonyPromIdParam));
+				int stationId = HlaCodec.decodeInt32(theParameters.get(federate.zaladunekZakonczonyStacjaIdParam));
+				// znacznik czasu zdarzenia; federateTime to jeszcze czas poprzedniego grantu
+				double boardingTime = time == null ? this.federateTime : ((HLAfloat64Time)time).getValue();
+				dispatch(() -> federate.handleBoardingCompleted(promId, stationId, boardingTime));
 			}
 
 			else if (interactionClass.equals(federate.zaladunekHandle)) {
 
-				HLAinteger32BE stationIdDecoder = new HLA1516eInteger32BE();
-				stationIdDecoder.decode(theParameters.get(federate.rtiamb.getParameterHandle(interactionClass, "IdentyfikatorStacji")));
-				HLAinteger32BE entityTypeDecoder = new HLA1516eInteger32BE();
-				entityTypeDecoder.decode(theParameters.get(federate.rtiamb.getParameterHandle(interactionClass, "TypZaladunku")));
-				HLAinteger32BE countDecoder = new HLA1516eInteger32BE();
-				countDecoder.decode(theParameters.get(federate.rtiamb.getParameterHandle(interactionClass, "LiczbaZabieranychJednostek")));
-
-				int stationId = stationIdDecoder.getValue();
-				int entityType = entityTypeDecoder.getValue();
-				int count = countDecoder.getValue();
+				String promId = decodePromId(theParameters.get(federate.zaladunekPromIdParam));
+				int stationId = HlaCodec.decodeInt32(theParameters.get(federate.zaladunekStacjaIdParam));
+				int entityType = HlaCodec.decodeInt32(theParameters.get(federate.zaladunekTypParam));
+				int count = HlaCodec.decodeInt32(theParameters.get(federate.zaladunekLiczbaParam));
 				int peopleCount = (entityType == 2) ? count : 0;
 				int carCount = (entityType == 1) ? count : 0;
 
-				federate.handleBoarding(stationId, peopleCount, carCount);
+				dispatch(() -> federate.handleBoarding(promId, stationId, peopleCount, carCount));
 			}
 			else if (interactionClass.equals(federate.odplyniecieHandle)) {
-			log("Prom odplynal");
+			LOG.debug(() -> "Prom odplynal");
 			}
 			else if (interactionClass.equals(federate.endSimulationHandle)) {
 				log("END SIGNAL");
-				this.isRunning = false;
+				dispatch(federate::handleExperimentEnd);
 			}
-		} catch (RTIexception | DecoderException e) {
+		} catch (DecoderException e) {
 			e.printStackTrace();
 		}
 	}
 
+	@Override
+	public void provideAttributeValueUpdate(ObjectInstanceHandle theObject,
+											AttributeHandleSet theAttributes,
+											byte[] tag) throws FederateInternalError {
+		count(updateRequests);
+		dispatch(() -> federate.requestFullStationUpdate(theObject));
+	}
+
+	@Override
+	public void removeObjectInstance(ObjectInstanceHandle theObject,
+									 byte[] tag,
+									 OrderType sentOrdering,
+									 SupplementalRemoveInfo removeInfo) throws FederateInternalError {
+		count(removals);
+		LOG.debug(() -> "Object Removed: handle=" + theObject);
+		dispatch(() -> federate.forgetRemoteStation(theObject));
+	}
+
+	// removeStations kasuje stacje ze znacznikiem czasu, więc przychodzą tutaj
 	@Override
 	public void removeObjectInstance(ObjectInstanceHandle theObject,
 									 byte[] tag,
 									 OrderType sentOrdering,
+									 LogicalTime time,
+									 OrderType receivedOrdering,
 									 SupplementalRemoveInfo removeInfo) throws FederateInternalError {
-		log("Object Removed: handle=" + theObject);
+		removeObjectInstance(theObject, tag, sentOrdering, removeInfo);
+	}
+
+	/**
+	 * Model parameters of RozpocznijSymulacje. The station capacity and car probability
+	 * fall back to Config when the sender leaves them out.
+	 */
+	private ExperimentParameters decodeParameters(ParameterHandleValueMap theParameters) throws DecoderException {
+		byte[] probability = theParameters.get(federate.prawdopodobienstwoSamochoduParam);
+		return new ExperimentParameters(
+				HlaCodec.decodeInt32(theParameters.get(federate.liczbaStacjiParam)),
+				HlaCodec.decodeInt32(theParameters.get(federate.pojemnoscOsobParam), Config.POJEMNOSC_OSOB_PROMU),
+				HlaCodec.decodeInt32(theParameters.get(federate.maksPojemnoscStacjiParam), Config.MAKS_LACZNA_POJEMNOSC_STACJI),
+				probability == null ? Config.CAR_PROBABILITY : HlaCodec.decodeFloat64(probability));
+	}
+
+	//////////////////////////////////////////////////////////////////////////
+	///////////////////////////// Save / Restore /////////////////////////////
+	//////////////////////////////////////////////////////////////////////////
+	@Override
+	public void initiateFederateSave( String label )
+	{
+		log( "Federation save initiated: " + label );
+		dispatch( () -> {
+			this.isSaving = true;
+			federate.saveState( label );
+		} );
+	}
+
+	@Override
+	public void initiateFederateSave( String label, LogicalTime time )
+	{
+		initiateFederateSave( label );
+	}
+
+	@Override
+	public void federationSaved()
+	{
+		log( "Federation saved" );
+		dispatch( () -> {
+			this.isSaving = false;
+		} );
+	}
+
+	@Override
+	public void federationNotSaved( SaveFailureReason reason )
+	{
+		log( "Federation not saved: " + reason );
+		dispatch( () -> {
+			this.isSaving = false;
+		} );
+	}
+
+	@Override
+	public void federationRestoreBegun()
+	{
+		log( "Federation restore begun" );
+		dispatch( () -> this.isRestoring = true );
+	}
+
+	@Override
+	public void initiateFederateRestore( String label, String federateName, FederateHandle federateHandle )
+	{
+		log( "Restoring " + federateName + " from " + label );
+		dispatch( () -> federate.loadState( label, federateName ) );
+	}
+
+	@Override
+	public void federationRestored()
+	{
+		log( "Federation restored" );
+		dispatch( () -> {
+			this.isRestoring = false;
+		} );
+	}
+
+	@Override
+	public void federationNotRestored( RestoreFailureReason reason )
+	{
+		log( "Federation not restored: " + reason );
+		dispatch( () -> {
+			this.isRestoring = false;
+		} );
+	}
+
+	/** The ferries we know of, for the federate's snapshot */
+	void writeState( DataOutputStream out ) throws IOException
+	{
+		out.writeInt( promObjectHandles.size() );
+		for( ObjectInstanceHandle handle : promObjectHandles )
+			Snapshots.writeHandle( out, handle );
+	}
+
+	void readState( DataInputStream in, ObjectInstanceHandleFactory handles ) throws IOException
+	{
+		promObjectHandles.clear();
+		int count = in.readInt();
+		for( int i = 0; i < count; i++ )
+			promObjectHandles.add( Snapshots.readHandle(in, handles) );
 	}
 
 	//----------------------------------------------------------